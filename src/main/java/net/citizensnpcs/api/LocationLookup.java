@@ -4,7 +4,10 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
@@ -24,49 +27,72 @@ import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.event.world.WorldUnloadEvent;
 import org.bukkit.potion.PotionEffectType;
 
-import com.google.common.collect.Collections2;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
 
 import ch.ethz.globis.phtree.PhTreeF;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntIterator;
 import net.citizensnpcs.api.npc.NPC;
 import net.citizensnpcs.api.npc.NPCRegistry;
+import net.citizensnpcs.api.util.GridSpatialIndex;
+import net.citizensnpcs.api.util.PhTreeSpatialIndex;
+import net.citizensnpcs.api.util.SpatialIndex;
 import net.citizensnpcs.api.util.schedulers.SchedulerRunnable;
 
+/**
+ * Indexes the locations of NPCs and players once per {@link #run() cycle} for fast nearby queries. Positions are those
+ * of the last cycle and may be up to a quarter of a block off, as entities are only moved in the index once they moved
+ * further than that.
+ *
+ * Queries return lazy iterables that read the index current when iteration starts. The index being read is updated
+ * again one cycle later, so iteration must finish within the cycle it started in; copy the results to keep them longer.
+ */
 public class LocationLookup extends SchedulerRunnable {
     private final Map<String, PerPlayerMetadata<?>> metadata = new ConcurrentHashMap<>();
-    private Future<Map<UUID, PhTreeF<NPC>>> npcFuture = null;
-    private Map<UUID, PhTreeF<NPC>> npcWorlds = new ConcurrentHashMap<>();
-    private Future<Map<UUID, PhTreeF<Player>>> playerFuture = null;
+    private final IncrementalIndex<NPC> npcIndex;
+    private final IncrementalIndex<Player> playerIndex;
+    private final Set<Player> quitPlayers = ConcurrentHashMap.newKeySet();
     private final NPCRegistry sourceRegistry;
-    private Map<UUID, PhTreeF<Player>> worlds = new ConcurrentHashMap<>();
+    private volatile Map<Player, PlayerVisibility> visibility = Collections.emptyMap();
 
     public LocationLookup() {
         this(CitizensAPI.getNPCRegistry());
     }
 
     public LocationLookup(NPCRegistry sourceRegistry) {
+        this(sourceRegistry, PhTreeSpatialIndex.FACTORY);
+    }
+
+    /**
+     * @param indexFactory
+     *            Creates the per-world indexes, e.g. {@link PhTreeSpatialIndex#FACTORY} or
+     *            {@link GridSpatialIndex#FACTORY}
+     */
+    public LocationLookup(NPCRegistry sourceRegistry, SpatialIndex.Factory indexFactory) {
         this.sourceRegistry = sourceRegistry;
+        this.npcIndex = new IncrementalIndex<>(indexFactory);
+        this.playerIndex = new IncrementalIndex<>(indexFactory);
+    }
+
+    /**
+     * Skips players that quit since the player index was last updated.
+     */
+    private Iterator<Player> filterQuitPlayers(Iterator<Player> players) {
+        return quitPlayers.isEmpty() ? players : Iterators.filter(players, player -> !quitPlayers.contains(player));
     }
 
     private Iterable<Player> filterToVisiblePlayers(Entity base, Iterable<Player> players) {
-        Player player = base instanceof Player ? (Player) base : null;
+        Map<Player, PlayerVisibility> snapshot = visibility;
+        World world = base.getWorld();
         return Iterables.filter(players, other -> {
-            boolean canSee = true;
-            if (SUPPORTS_ENTITY_CANSEE) {
-                try {
-                    canSee = other.canSee(base);
-                } catch (NoSuchMethodError t) {
-                    SUPPORTS_ENTITY_CANSEE = false;
-                    if (player != null) {
-                        canSee = other.canSee(player);
-                    }
-                }
-            } else if (player != null) {
-                canSee = other.canSee(player);
+            PlayerVisibility state = snapshot.get(other);
+            if (state == null) {
+                // joined since the last cycle
+                state = new PlayerVisibility(other);
             }
-            return other.getWorld() == base.getWorld() && canSee
-                    && !other.hasPotionEffect(PotionEffectType.INVISIBILITY)
-                    && other.getGameMode() != GameMode.SPECTATOR;
+            return state.world == world && !state.hidden && state.canSee(base);
         });
     }
 
@@ -75,10 +101,10 @@ public class LocationLookup extends SchedulerRunnable {
     }
 
     public Iterable<NPC> getNearbyNPCs(Location base, double dist) {
-        PhTreeF<NPC> tree = npcWorlds.get(base.getWorld().getUID());
-        if (tree == null)
+        IncrementalIndex.WorldIndex<NPC> index = npcIndex.get(base.getWorld().getUID());
+        if (index == null)
             return Collections.emptyList();
-        return () -> tree.rangeQuery(dist, base.getX(), base.getY(), base.getZ());
+        return () -> index.front.rangeQuery(dist, base.getX(), base.getY(), base.getZ());
     }
 
     public Iterable<NPC> getNearbyNPCs(NPC npc) {
@@ -86,17 +112,17 @@ public class LocationLookup extends SchedulerRunnable {
     }
 
     public Iterable<NPC> getNearbyNPCs(World world, double[] min, double[] max) {
-        PhTreeF<NPC> tree = npcWorlds.get(world.getUID());
-        if (tree == null)
+        IncrementalIndex.WorldIndex<NPC> index = npcIndex.get(world.getUID());
+        if (index == null)
             return Collections.emptyList();
-        return () -> tree.query(min, max);
+        return () -> index.front.query(min, max);
     }
 
     public Iterable<Player> getNearbyPlayers(Location base, double dist) {
-        PhTreeF<Player> tree = worlds.get(base.getWorld().getUID());
-        if (tree == null)
+        IncrementalIndex.WorldIndex<Player> index = playerIndex.get(base.getWorld().getUID());
+        if (index == null)
             return Collections.emptyList();
-        return () -> tree.rangeQuery(dist, base.getX(), base.getY(), base.getZ());
+        return () -> filterQuitPlayers(index.front.rangeQuery(dist, base.getX(), base.getY(), base.getZ()));
     }
 
     public Iterable<Player> getNearbyPlayers(NPC npc) {
@@ -104,10 +130,10 @@ public class LocationLookup extends SchedulerRunnable {
     }
 
     public Iterable<Player> getNearbyPlayers(World base, double[] min, double[] max) {
-        PhTreeF<Player> tree = worlds.get(base.getUID());
-        if (tree == null)
+        IncrementalIndex.WorldIndex<Player> index = playerIndex.get(base.getUID());
+        if (index == null)
             return Collections.emptyList();
-        return () -> tree.query(min, max);
+        return () -> filterQuitPlayers(index.front.query(min, max));
     }
 
     public Iterable<Player> getNearbyVisiblePlayers(Entity entity, double range) {
@@ -122,10 +148,35 @@ public class LocationLookup extends SchedulerRunnable {
         return filterToVisiblePlayers(base, getNearbyPlayers(location, range));
     }
 
+    /**
+     * @return Up to <code>k</code> NPCs within <code>maxDist</code> of the given location, nearest first
+     */
+    public Iterable<NPC> getNearestNPCs(Location base, int k, double maxDist) {
+        IncrementalIndex.WorldIndex<NPC> index = npcIndex.get(base.getWorld().getUID());
+        if (index == null)
+            return Collections.emptyList();
+        return () -> index.front.nearest(k, maxDist, base.getX(), base.getY(), base.getZ());
+    }
+
+    /**
+     * @return Up to <code>k</code> players within <code>maxDist</code> of the given location, nearest first
+     */
+    public Iterable<Player> getNearestPlayers(Location base, int k, double maxDist) {
+        IncrementalIndex.WorldIndex<Player> index = playerIndex.get(base.getWorld().getUID());
+        if (index == null)
+            return Collections.emptyList();
+        return () -> {
+            // ask for enough extra players to make up for any that quit
+            int quit = quitPlayers.size();
+            Iterator<Player> nearest = index.front.nearest(k + quit, maxDist, base.getX(), base.getY(), base.getZ());
+            return quit == 0 ? nearest : Iterators.limit(filterQuitPlayers(nearest), k);
+        };
+    }
+
     @SuppressWarnings({ "unchecked", "rawtypes" })
     public void onJoin(PlayerJoinEvent event) {
+        quitPlayers.remove(event.getPlayer());
         CitizensAPI.getScheduler().checkedRunEntityTask(event.getPlayer(), () -> {
-            updateWorld(event.getPlayer().getWorld());
             for (PerPlayerMetadata meta : metadata.values()) {
                 if (meta.onJoin != null) {
                     meta.onJoin.accept(meta, event);
@@ -135,23 +186,18 @@ public class LocationLookup extends SchedulerRunnable {
     }
 
     public void onQuit(PlayerQuitEvent event) {
+        // the player stays in the index until the next update
+        quitPlayers.add(event.getPlayer());
         CitizensAPI.getScheduler().checkedRunEntityTask(event.getPlayer(), () -> {
-            updateWorld(event.getPlayer().getWorld());
             for (PerPlayerMetadata<?> meta : metadata.values()) {
-                meta.sent.remove(event.getPlayer().getUniqueId());
+                meta.removePlayer(event.getPlayer().getUniqueId());
             }
         });
     }
 
     public void onWorldUnload(WorldUnloadEvent event) {
-        PhTreeF<Player> cache = worlds.remove(event.getWorld().getUID());
-        if (cache != null) {
-            cache.clear();
-        }
-        PhTreeF<NPC> npcCache = npcWorlds.remove(event.getWorld().getUID());
-        if (npcCache != null) {
-            npcCache.clear();
-        }
+        playerIndex.removeWorld(event.getWorld().getUID());
+        npcIndex.removeWorld(event.getWorld().getUID());
     }
 
     @SuppressWarnings("unchecked")
@@ -160,67 +206,37 @@ public class LocationLookup extends SchedulerRunnable {
         return (PerPlayerMetadata<T>) metadata.computeIfAbsent(key, s -> new PerPlayerMetadata<>(onJoin));
     }
 
+    /**
+     * Brings the NPC and player indexes up to date. Only entities that moved more than a quarter of a block since they
+     * were last indexed are moved in the indexes, so a stationary entity costs one position check per cycle. The
+     * visibility state of each player is snapshotted at the same time for
+     * {@link #getNearbyVisiblePlayers(Entity, double)}.
+     */
     @Override
     public void run() {
-        if (npcFuture != null && npcFuture.isDone()) {
-            try {
-                npcWorlds = npcFuture.get();
-            } catch (InterruptedException | ExecutionException e) {
-                e.printStackTrace();
-            }
-            npcFuture = null;
+        npcIndex.beginCycle();
+        for (NPC npc : sourceRegistry) {
+            if (npc.getEntity() == null)
+                continue;
+            npcIndex.track(npc, npc.getEntity());
         }
-        if (npcFuture == null) {
-            Map<UUID, Collection<TreeFactory.Node<NPC>>> map = new java.util.concurrent.ConcurrentHashMap<>();
-            Location loc = new Location(null, 0, 0, 0);
-            for (NPC npc : sourceRegistry) {
-                if (npc.getEntity() == null)
+        npcIndex.endCycle();
+
+        // players quitting during the update are still tracked by it, so keep filtering them
+        List<Player> quit = new ArrayList<>(quitPlayers);
+        playerIndex.beginCycle();
+        Map<Player, PlayerVisibility> nextVisibility = new HashMap<>();
+        for (World world : Bukkit.getServer().getWorlds()) {
+            for (Player player : world.getPlayers()) {
+                if (player.hasMetadata("NPC"))
                     continue;
-                npc.getEntity().getLocation(loc);
-                Collection<TreeFactory.Node<NPC>> nodes = map.computeIfAbsent(npc.getEntity().getWorld().getUID(),
-                        uid -> new ArrayList<>());
-                nodes.add(new TreeFactory.Node<>(new double[] { loc.getX(), loc.getY(), loc.getZ() }, npc));
-            }
-            npcFuture = ForkJoinPool.commonPool().submit(new TreeFactory<>(map));
-        }
-        if (playerFuture != null && playerFuture.isDone()) {
-            try {
-                worlds = playerFuture.get();
-            } catch (InterruptedException | ExecutionException e) {
-                e.printStackTrace();
+                playerIndex.track(player, player);
+                nextVisibility.put(player, new PlayerVisibility(player));
             }
-            playerFuture = null;
-        }
-        if (playerFuture == null) {
-            Map<UUID, Collection<TreeFactory.Node<Player>>> map = new HashMap<>();
-            Location loc = new Location(null, 0, 0, 0);
-            for (World world : Bukkit.getServer().getWorlds()) {
-                Collection<Player> players = Collections2.filter(world.getPlayers(), p -> !p.hasMetadata("NPC"));
-                if (players.isEmpty())
-                    continue;
-                map.put(world.getUID(), Collections2.transform(players, p -> {
-                    p.getLocation(loc);
-                    return new TreeFactory.Node<>(new double[] { loc.getX(), loc.getY(), loc.getZ() }, p);
-                }));
-            }
-            playerFuture = ForkJoinPool.commonPool().submit(new TreeFactory<>(map));
-        }
-    }
-
-    // TODO: remove?
-    private void updateWorld(World world) {
-        Collection<Player> players = Collections2.filter(world.getPlayers(), p -> !p.hasMetadata("NPC"));
-        if (players.isEmpty()) {
-            worlds.remove(world.getUID());
-            return;
-        }
-        PhTreeF<Player> tree = worlds.computeIfAbsent(world.getUID(), uid -> PhTreeF.create(3));
-        tree.clear();
-        Location loc = new Location(null, 0, 0, 0);
-        for (Player player : players) {
-            player.getLocation(loc);
-            tree.put(new double[] { loc.getX(), loc.getY(), loc.getZ() }, player);
         }
+        playerIndex.endCycle();
+        quitPlayers.removeAll(quit);
+        visibility = nextVisibility;
     }
 
     // TODO: separate out NPCs and Player lookups into this
@@ -260,36 +276,326 @@ public class LocationLookup extends SchedulerRunnable {
         }
     }
 
+    /**
+     * Keeps a {@link SpatialIndex} per world up to date by moving only the entries that moved noticeably. Each
+     * world has two indexes: queries read the front index while changes are applied to the back index, which is then
+     * swapped to the front. Changes are replayed on the other index during the following cycle, so an index is only
+     * modified a full cycle after queries stopped being directed at it.
+     */
+    private static class IncrementalIndex<T> {
+        private int cycle;
+        private final Map<T, IndexedEntry<T>> entries = new HashMap<>();
+        private final SpatialIndex.Factory factory;
+        private final Location scratch = new Location(null, 0, 0, 0);
+        private final Map<UUID, WorldIndex<T>> worlds = new ConcurrentHashMap<>();
+
+        private IncrementalIndex(SpatialIndex.Factory factory) {
+            this.factory = factory;
+        }
+
+        private void beginCycle() {
+            cycle++;
+        }
+
+        private void endCycle() {
+            for (Iterator<Map.Entry<T, IndexedEntry<T>>> itr = entries.entrySet().iterator(); itr.hasNext();) {
+                Map.Entry<T, IndexedEntry<T>> next = itr.next();
+                IndexedEntry<T> entry = next.getValue();
+                if (entry.cycle != cycle) {
+                    entry.world.queue(new Move<>(next.getKey(), entry.key, null));
+                    itr.remove();
+                }
+            }
+            for (WorldIndex<T> world : worlds.values()) {
+                world.flush();
+            }
+        }
+
+        private WorldIndex<T> get(UUID world) {
+            return worlds.get(world);
+        }
+
+        private void removeWorld(UUID world) {
+            WorldIndex<T> index = worlds.remove(world);
+            if (index == null)
+                return;
+            entries.values().removeIf(entry -> entry.world == index);
+        }
+
+        private void track(T value, Entity entity) {
+            entity.getLocation(scratch);
+            UUID world = entity.getWorld().getUID();
+            IndexedEntry<T> entry = entries.get(value);
+            if (entry == null) {
+                entry = new IndexedEntry<>();
+                entries.put(value, entry);
+            } else if (entry.world.uid.equals(world) && distanceSquared(entry.key, scratch) <= MOVE_THRESHOLD_SQUARED) {
+                entry.cycle = cycle;
+                return;
+            }
+            double[] key = { scratch.getX(), scratch.getY(), scratch.getZ() };
+            if (entry.world != null && entry.world.uid.equals(world)) {
+                entry.world.queue(new Move<>(value, entry.key, key));
+            } else {
+                if (entry.world != null) {
+                    entry.world.queue(new Move<>(value, entry.key, null));
+                }
+                entry.world = worlds.computeIfAbsent(world, uid -> new WorldIndex<>(uid, factory));
+                entry.world.queue(new Move<>(value, null, key));
+            }
+            entry.cycle = cycle;
+            entry.key = key;
+        }
+
+        private static class IndexedEntry<T> {
+            private int cycle;
+            private double[] key;
+            private WorldIndex<T> world;
+        }
+
+        private static class Move<T> {
+            private final double[] from;
+            private final double[] to;
+            private final T value;
+
+            private Move(T value, double[] from, double[] to) {
+                this.value = value;
+                this.from = from;
+                this.to = to;
+            }
+
+            private void apply(SpatialIndex<T> index) {
+                if (from != null && to != null) {
+                    index.move(value, from, to);
+                } else if (from != null) {
+                    index.remove(value, from);
+                } else {
+                    index.insert(to, value);
+                }
+            }
+        }
+
+        private static class WorldIndex<T> {
+            private List<Move<T>> applied = new ArrayList<>();
+            private SpatialIndex<T> back;
+            private volatile SpatialIndex<T> front;
+            private List<Move<T>> queued = new ArrayList<>();
+            private final UUID uid;
+
+            private WorldIndex(UUID uid, SpatialIndex.Factory factory) {
+                this.uid = uid;
+                this.back = factory.create();
+                this.front = factory.create();
+            }
+
+            private void flush() {
+                if (queued.isEmpty() && applied.isEmpty())
+                    return;
+                for (Move<T> move : applied) {
+                    move.apply(back);
+                }
+                for (Move<T> move : queued) {
+                    move.apply(back);
+                }
+                SpatialIndex<T> index = front;
+                front = back;
+                back = index;
+                List<Move<T>> moves = applied;
+                applied = queued;
+                queued = moves;
+                queued.clear();
+            }
+
+            private void queue(Move<T> move) {
+                queued.add(move);
+            }
+        }
+
+        private static double distanceSquared(double[] key, Location location) {
+            double dx = key[0] - location.getX(), dy = key[1] - location.getY(), dz = key[2] - location.getZ();
+            return dx * dx + dy * dy + dz * dz;
+        }
+    }
+
+    /**
+     * Stores a marker per player and value. Safe to use from any thread. Values are interned to int ids so each player
+     * only holds a small primitive-keyed map, and each value keeps track of the players holding it so that
+     * {@link #removeAllValues(String)} only visits those players.
+     */
     public static class PerPlayerMetadata<T> {
+        private final IntArrayList freeIds = new IntArrayList();
+        private final Map<String, MarkerKey> keys = new ConcurrentHashMap<>();
+        private final Int2ObjectOpenHashMap<MarkerKey> keysById = new Int2ObjectOpenHashMap<>();
         private final BiConsumer<PerPlayerMetadata<T>, PlayerJoinEvent> onJoin;
-        private final Map<UUID, Map<String, T>> sent = new HashMap<>();
+        private final Map<UUID, Int2ObjectOpenHashMap<T>> sent = new ConcurrentHashMap<>();
 
         public PerPlayerMetadata(BiConsumer<PerPlayerMetadata<T>, PlayerJoinEvent> onJoin) {
             this.onJoin = onJoin;
         }
 
+        /**
+         * @return The number of values currently held by at least one player
+         */
+        int getInternedCount() {
+            synchronized (keysById) {
+                return keysById.size();
+            }
+        }
+
         public T getMarker(UUID key, String value) {
-            return sent.getOrDefault(key, Collections.emptyMap()).get(value);
+            MarkerKey interned = keys.get(value);
+            Int2ObjectOpenHashMap<T> markers = sent.get(key);
+            if (interned == null || markers == null)
+                return null;
+            synchronized (markers) {
+                // a released key's id may already belong to another value
+                return interned.holders.contains(key) ? markers.get(interned.id) : null;
+            }
         }
 
         public boolean has(UUID key, String value) {
-            return sent.getOrDefault(key, Collections.emptyMap()).containsKey(value);
+            MarkerKey interned = keys.get(value);
+            Int2ObjectOpenHashMap<T> markers = sent.get(key);
+            if (interned == null || markers == null)
+                return false;
+            synchronized (markers) {
+                return interned.holders.contains(key);
+            }
+        }
+
+        /**
+         * Releases a key once no player holds it any more so that its id can be reused. Must be called while holding
+         * the lock on <code>keysById</code>.
+         */
+        private void release(MarkerKey interned) {
+            if (!interned.holders.isEmpty() || keysById.get(interned.id) != interned)
+                return;
+            keys.remove(interned.value, interned);
+            keysById.remove(interned.id);
+            freeIds.add(interned.id);
         }
 
         public boolean remove(UUID key, String value) {
-            return sent.getOrDefault(key, Collections.emptyMap()).remove(value) != null;
+            MarkerKey interned = keys.get(value);
+            Int2ObjectOpenHashMap<T> markers = sent.get(key);
+            if (interned == null || markers == null)
+                return false;
+            synchronized (markers) {
+                if (!interned.holders.remove(key))
+                    return false;
+                markers.remove(interned.id);
+                if (interned.holders.isEmpty()) {
+                    synchronized (keysById) {
+                        release(interned);
+                    }
+                }
+                return true;
+            }
         }
 
         public void removeAllValues(String value) {
-            for (Map<String, T> map : sent.values()) {
-                map.remove(value);
+            MarkerKey interned = keys.get(value);
+            if (interned == null)
+                return;
+            for (UUID holder : interned.holders) {
+                Int2ObjectOpenHashMap<T> markers = sent.get(holder);
+                if (markers == null)
+                    continue;
+                synchronized (markers) {
+                    if (interned.holders.remove(holder)) {
+                        markers.remove(interned.id);
+                    }
+                }
+            }
+            synchronized (keysById) {
+                release(interned);
+            }
+        }
+
+        /**
+         * Removes every marker of a player, at a cost proportional to the number of markers the player holds. Called
+         * by {@link LocationLookup#onQuit(PlayerQuitEvent)}.
+         */
+        void removePlayer(UUID key) {
+            Int2ObjectOpenHashMap<T> markers = sent.get(key);
+            if (markers == null)
+                return;
+            synchronized (markers) {
+                sent.remove(key, markers);
+                synchronized (keysById) {
+                    for (IntIterator itr = markers.keySet().iterator(); itr.hasNext();) {
+                        MarkerKey interned = keysById.get(itr.nextInt());
+                        interned.holders.remove(key);
+                        release(interned);
+                    }
+                }
+                markers.clear();
             }
         }
 
         public void set(UUID key, String value, T marker) {
             if (marker instanceof Location || marker instanceof World)
                 throw new IllegalArgumentException("Invalid marker");
-            sent.computeIfAbsent(key, k -> new HashMap<>()).put(value, marker);
+            while (true) {
+                Int2ObjectOpenHashMap<T> markers = sent.computeIfAbsent(key, k -> new Int2ObjectOpenHashMap<>(4));
+                synchronized (markers) {
+                    // removed by a concurrent removePlayer
+                    if (sent.get(key) != markers)
+                        continue;
+                    MarkerKey interned;
+                    synchronized (keysById) {
+                        interned = keys.get(value);
+                        if (interned == null) {
+                            // ids in use are 0..size-1 unless some were freed
+                            int id = freeIds.isEmpty() ? keysById.size() : freeIds.popInt();
+                            interned = new MarkerKey(value, id);
+                            keys.put(value, interned);
+                            keysById.put(id, interned);
+                        }
+                        interned.holders.add(key);
+                    }
+                    markers.put(interned.id, marker);
+                    return;
+                }
+            }
+        }
+
+        private static class MarkerKey {
+            private final Set<UUID> holders = ConcurrentHashMap.newKeySet();
+            private final int id;
+            private final String value;
+
+            private MarkerKey(String value, int id) {
+                this.value = value;
+                this.id = id;
+            }
+        }
+    }
+
+    /**
+     * The visibility-relevant state of a player for one cycle. {@link Player#canSee(Entity)} results are cached on
+     * first use as the set of hidden entities can't be read directly.
+     */
+    private static class PlayerVisibility {
+        private final Map<Entity, Boolean> cache = new ConcurrentHashMap<>();
+        private final boolean hidden;
+        private final Player player;
+        private final World world;
+
+        private PlayerVisibility(Player player) {
+            this.player = player;
+            this.world = player.getWorld();
+            this.hidden = player.getGameMode() == GameMode.SPECTATOR
+                    || player.hasPotionEffect(PotionEffectType.INVISIBILITY);
+        }
+
+        private boolean canSee(Entity base) {
+            Boolean result = cache.get(base);
+            if (result == null) {
+                result = LocationLookup.canSee(player, base);
+                cache.put(base, result);
+            }
+            return result;
         }
     }
 
@@ -324,5 +630,18 @@ public class LocationLookup extends SchedulerRunnable {
         }
     }
 
+    private static boolean canSee(Player other, Entity base) {
+        if (SUPPORTS_ENTITY_CANSEE) {
+            try {
+                return other.canSee(base);
+            } catch (NoSuchMethodError t) {
+                SUPPORTS_ENTITY_CANSEE = false;
+            }
+        }
+        return !(base instanceof Player) || other.canSee((Player) base);
+    }
+
+    // entities are moved in the index once they moved more than a quarter of a block
+    private static final double MOVE_THRESHOLD_SQUARED = 0.25 * 0.25;
     private static boolean SUPPORTS_ENTITY_CANSEE = true;
 }
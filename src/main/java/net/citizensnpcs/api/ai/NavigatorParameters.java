@@ -21,6 +21,7 @@ public class NavigatorParameters implements Cloneable {
     private AttackStrategy attackStrategy;
     private boolean avoidWater;
     private float baseSpeed = 1F;
+    private boolean bidirectionalSearch;
     private List<NavigatorCallback> callbacks = new ArrayList<>();
     private boolean debug;
     private AttackStrategy defaultStrategy;
@@ -160,6 +161,29 @@ public class NavigatorParameters implements Cloneable {
         return this;
     }
 
+    /**
+     * @see #bidirectionalSearch(boolean)
+     * @return Whether paths are searched from both ends at once
+     */
+    public boolean bidirectionalSearch() {
+        return bidirectionalSearch;
+    }
+
+    /**
+     * Sets whether paths should be searched from the start and the destination at once, meeting in the middle. An
+     * enclosed destination is then detected as soon as the search from it runs out of blocks, instead of after
+     * exploring everything reachable from the start. Assumes that every move can also be made in reverse, so it
+     * shouldn't be used with examiners that add one-way moves such as long drops or jumps.
+     *
+     * @see AStarMachine#runBidirectional
+     * @param bidirectional
+     *            Whether to search from both ends
+     */
+    public NavigatorParameters bidirectionalSearch(boolean bidirectional) {
+        this.bidirectionalSearch = bidirectional;
+        return this;
+    }
+
     /**
      * @return All callbacks currently registered
      */
@@ -3,6 +3,11 @@ package net.citizensnpcs.api.ai;
 public enum PathfinderType {
     CITIZENS,
     CITIZENS_ASYNC,
+    /**
+     * Follows a {@link net.citizensnpcs.api.astar.pathfinder.FlowField} shared by every NPC heading for the same
+     * target instead of searching individually.
+     */
+    CITIZENS_FLOW_FIELD,
     MINECRAFT,
     PLUGIN;
 
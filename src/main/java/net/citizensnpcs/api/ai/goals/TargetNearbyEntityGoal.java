@@ -1,15 +1,17 @@
 package net.citizensnpcs.api.ai.goals;
 
-import java.util.List;
 import java.util.Set;
 import java.util.function.Function;
 
+import org.bukkit.Bukkit;
 import org.bukkit.Location;
 import org.bukkit.entity.Entity;
 import org.bukkit.entity.EntityType;
+import org.bukkit.entity.Player;
 
 import com.destroystokyo.paper.entity.ai.Goal;
 
+import net.citizensnpcs.api.CitizensAPI;
 import net.citizensnpcs.api.ai.Navigator;
 import net.citizensnpcs.api.ai.event.CancelReason;
 import net.citizensnpcs.api.ai.tree.Behavior;
@@ -28,12 +30,39 @@ public class TargetNearbyEntityGoal implements Behavior {
     private final double radius;
     private CancelReason reason;
     private Entity target;
+    private final boolean useLocationLookup;
 
-    private TargetNearbyEntityGoal(NPC npc, boolean aggressive, double radius, Function<Entity, Boolean> filter) {
+    private TargetNearbyEntityGoal(NPC npc, boolean aggressive, double radius, Function<Entity, Boolean> filter,
+            boolean useLocationLookup) {
         this.npc = npc;
         this.filter = filter;
         this.aggressive = aggressive;
         this.radius = radius;
+        this.useLocationLookup = useLocationLookup;
+    }
+
+    private Entity findNearestEntity(Location npcLoc) {
+        Location cache = new Location(null, 0, 0, 0);
+        double min = Double.MAX_VALUE;
+        Entity closest = null;
+        for (Entity entity : npc.getEntity().getNearbyEntities(radius, radius, radius)) {
+            double dist = entity.getLocation(cache).distanceSquared(npcLoc);
+            if (dist >= min || !filter.apply(entity))
+                continue;
+            min = dist;
+            closest = entity;
+        }
+        return closest;
+    }
+
+    private Entity findNearestPlayer(Location npcLoc) {
+        // nearest first, so the first player passing the filter is the nearest one
+        int players = Bukkit.getOnlinePlayers().size();
+        for (Player player : CitizensAPI.getLocationLookup().getNearestPlayers(npcLoc, players, radius)) {
+            if (filter.apply(player))
+                return player;
+        }
+        return null;
     }
 
     @Override
@@ -55,18 +84,8 @@ public class TargetNearbyEntityGoal implements Behavior {
     public boolean shouldExecute() {
         if (!npc.isSpawned())
             return false;
-        List<Entity> nearby = npc.getEntity().getNearbyEntities(radius, radius, radius);
-        this.target = null;
         Location npcLoc = npc.getEntity().getLocation();
-        Location cache = new Location(null, 0, 0, 0);
-        nearby.sort((a, b) -> Double.compare(a.getLocation(cache).distanceSquared(npcLoc),
-                b.getLocation(cache).distanceSquared(npcLoc)));
-        for (Entity entity : nearby) {
-            if (filter.apply(entity)) {
-                target = entity;
-                break;
-            }
-        }
+        this.target = useLocationLookup ? findNearestPlayer(npcLoc) : findNearestEntity(npcLoc);
         if (target != null) {
             npc.getNavigator().setTarget(target, aggressive);
             npc.getNavigator().getLocalParameters().addSingleUseCallback(cancelReason -> {
@@ -83,6 +102,7 @@ public class TargetNearbyEntityGoal implements Behavior {
         private Function<Entity, Boolean> filter = e -> false;
         private final NPC npc;
         private double radius = 10D;
+        private boolean useLocationLookup;
 
         public Builder(NPC npc) {
             this.npc = npc;
@@ -94,7 +114,7 @@ public class TargetNearbyEntityGoal implements Behavior {
         }
 
         public TargetNearbyEntityGoal build() {
-            return new TargetNearbyEntityGoal(npc, aggressive, radius, filter);
+            return new TargetNearbyEntityGoal(npc, aggressive, radius, filter, useLocationLookup);
         }
 
         public Builder radius(double radius) {
@@ -111,6 +131,18 @@ public class TargetNearbyEntityGoal implements Behavior {
             this.filter = e -> targetTypes.contains(e.getType());
             return this;
         }
+
+        /**
+         * Finds targets among the players indexed by {@link net.citizensnpcs.api.LocationLookup} using
+         * {@link net.citizensnpcs.api.LocationLookup#getNearestPlayers(Location, int, double)} instead of scanning
+         * every nearby entity, which is cheaper around many entities. Only players that aren't NPCs can be targeted,
+         * the radius is spherical instead of cubic and positions may be one lookup cycle out of date. The target filter
+         * still applies.
+         */
+        public Builder useLocationLookup(boolean useLocationLookup) {
+            this.useLocationLookup = useLocationLookup;
+            return this;
+        }
     }
 
     public static Builder builder(NPC npc) {
@@ -3,6 +3,11 @@ package net.citizensnpcs.api.astar;
 import java.util.Objects;
 import java.util.function.Supplier;
 
+import org.bukkit.Location;
+import org.bukkit.util.Vector;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.citizensnpcs.api.astar.pathfinder.VectorGoal;
 import net.citizensnpcs.api.astar.pathfinder.VectorNode;
 
 public class AStarMachine<N extends AStarNode, P extends Plan> {
@@ -65,11 +70,15 @@ public class AStarMachine<N extends AStarNode, P extends Plan> {
      * @return The generated {@link Plan}, or <code>null</code> if not found
      */
     public P run(AStarState<N> state, int maxIterations) {
-        return run(state.storage, state.goal, state.start, maxIterations);
+        return run(state.storage, state.goal, state.start, maxIterations, state);
     }
 
+    /**
+     * @param state
+     *            The state to count polled nodes on, or <code>null</code>
+     */
     @SuppressWarnings("unchecked")
-    private P run(AStarStorage storage, AStarGoal<N> goal, N start, int maxIterations) {
+    private P run(AStarStorage storage, AStarGoal<N> goal, N start, int maxIterations, AStarState<N> state) {
         Objects.requireNonNull(goal);
         Objects.requireNonNull(start);
         Objects.requireNonNull(storage);
@@ -79,13 +88,18 @@ public class AStarMachine<N extends AStarNode, P extends Plan> {
             node = (N) storage.removeBestNode();
             if (node == null)
                 return null;
+            if (state != null) {
+                state.polls++;
+            }
             if (goal.isFinished(node))
                 return (P) node.buildPlan();
             storage.close(node);
             for (AStarNode neighbour : node.getNeighbours()) {
                 f(goal, node, (N) neighbour);
-                if (!storage.shouldExamine(neighbour))
+                if (!storage.shouldExamine(neighbour)) {
+                    neighbour.discard();
                     continue;
+                }
 
                 storage.open(neighbour);
                 neighbour.parent = node;
@@ -95,6 +109,73 @@ public class AStarMachine<N extends AStarNode, P extends Plan> {
         }
     }
 
+    /**
+     * Runs a search from the start and from the goal at once, alternating between the two until they meet along the
+     * cheapest path found so far and neither can improve on it. The goal is known to be unreachable as soon as either
+     * search runs out of nodes, so an enclosed goal fails after exploring only its enclosure rather than everything
+     * reachable from the start.
+     *
+     * The search from the goal expands the default neighbours in reverse, examining each move in the forward direction
+     * (see {@link VectorNode#getReverseNeighbours()}). Generated moves such as jumps and falls are only taken by the
+     * search from the start.
+     *
+     * @param goal
+     *            The {@link VectorGoal} state
+     * @param start
+     *            The starting node
+     * @param iterations
+     *            The maximum number of nodes to expand across both searches, or -1 for no limit
+     * @return The generated {@link Plan}, or <code>null</code> if it was not found
+     */
+    @SuppressWarnings("unchecked")
+    public P runBidirectional(VectorGoal goal, VectorNode start, int iterations) {
+        Vector origin = start.getVector();
+        VectorGoal reverseGoal = new VectorGoal(new Location(null, origin.getX(), origin.getY(), origin.getZ()), 0);
+        try {
+            Frontier forward = new Frontier(storageSupplier.get(), goal, start);
+            Frontier backward = new Frontier(storageSupplier.get(), reverseGoal, start.createReverseRoot(reverseGoal));
+            float best = Float.POSITIVE_INFINITY;
+            VectorNode meetForward = null, meetBackward = null;
+            for (int i = 0; iterations < 0 || i <= iterations; i++) {
+                AStarNode forwardBest = forward.storage.getBestNode();
+                AStarNode backwardBest = backward.storage.getBestNode();
+                if (forwardBest == null || backwardBest == null)
+                    break;
+                if (forward.estimate(forwardBest) >= best || backward.estimate(backwardBest) >= best)
+                    break;
+                Frontier side = (i & 1) == 0 ? forward : backward;
+                Frontier other = side == forward ? backward : forward;
+                AStarNode node = side.storage.removeBestNode();
+                if (side == forward && goal.isFinished((VectorNode) node))
+                    return (P) node.buildPlan();
+                side.storage.close(node);
+                Iterable<AStarNode> neighbours = side == forward ? node.getNeighbours()
+                        : ((VectorNode) node).getReverseNeighbours();
+                for (AStarNode neighbour : neighbours) {
+                    neighbour.g = node.g + side.goal.g((VectorNode) node, (VectorNode) neighbour);
+                    neighbour.h = side.goal.h((VectorNode) neighbour);
+                    if (!side.storage.shouldExamine(neighbour)) {
+                        neighbour.discard();
+                        continue;
+                    }
+                    side.storage.open(neighbour);
+                    neighbour.parent = node;
+                    long key = ((VectorNode) neighbour).getPackedPosition();
+                    side.seen.put(key, (VectorNode) neighbour);
+                    VectorNode match = other.seen.get(key);
+                    if (match != null && side.pathCost(neighbour) + other.pathCost(match) < best) {
+                        best = side.pathCost(neighbour) + other.pathCost(match);
+                        meetForward = (VectorNode) (side == forward ? neighbour : match);
+                        meetBackward = (VectorNode) (side == forward ? match : neighbour);
+                    }
+                }
+            }
+            return meetForward == null ? null : (P) meetForward.buildPlan(meetBackward);
+        } finally {
+            ((AStarNode) start).onSearchFinished();
+        }
+    }
+
     /**
      * Runs the machine until a plan is either found or cannot be generated.
      *
@@ -117,7 +198,11 @@ public class AStarMachine<N extends AStarNode, P extends Plan> {
      * @return The generated {@link Plan}, or <code>null</code> if it was not found
      */
     public P runFully(AStarGoal<N> goal, N start, int iterations) {
-        return run(getInitialisedStorage(goal, start), goal, start, iterations);
+        try {
+            return run(getInitialisedStorage(goal, start), goal, start, iterations, null);
+        } finally {
+            start.onSearchFinished();
+        }
     }
 
     /**
@@ -132,6 +217,7 @@ public class AStarMachine<N extends AStarNode, P extends Plan> {
 
     public static class AStarState<T extends AStarNode> {
         private final AStarGoal<T> goal;
+        private int polls;
         private final T start;
         private final AStarStorage storage;
 
@@ -141,16 +227,56 @@ public class AStarMachine<N extends AStarNode, P extends Plan> {
             this.storage = storage;
         }
 
+        void finish() {
+            start.onSearchFinished();
+        }
+
         @SuppressWarnings("unchecked")
         public T getBestNode() {
             return (T) storage.getBestNode();
         }
 
+        /**
+         * @return The number of nodes polled from the storage by {@link AStarMachine#run(AStarState, int)} so far
+         */
+        int getPolls() {
+            return polls;
+        }
+
         public boolean isEmpty() {
             return storage.getBestNode() == null;
         }
     }
 
+    /**
+     * One direction of a {@link AStarMachine#runBidirectional(VectorGoal, VectorNode, int)} search.
+     */
+    private static class Frontier {
+        private final VectorGoal goal;
+        private final float initialCost;
+        private final Long2ObjectOpenHashMap<VectorNode> seen = new Long2ObjectOpenHashMap<>();
+        private final AStarStorage storage;
+
+        private Frontier(AStarStorage storage, VectorGoal goal, VectorNode root) {
+            this.storage = storage;
+            this.goal = goal;
+            this.initialCost = goal.getInitialCost(root);
+            AStarNode node = root;
+            node.g = initialCost;
+            node.h = 0;
+            storage.open(root);
+            seen.put(root.getPackedPosition(), root);
+        }
+
+        private float estimate(AStarNode node) {
+            return node.g + node.h - initialCost;
+        }
+
+        private float pathCost(AStarNode node) {
+            return node.g - initialCost;
+        }
+    }
+
     /**
      * Creates an AStarMachine using {@link SimpleAStarStorage} as the storage backend.
      *
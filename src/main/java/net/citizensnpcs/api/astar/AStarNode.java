@@ -20,6 +20,13 @@ public abstract class AStarNode implements Comparable<AStarNode> {
         return Float.compare(g + h, other.g + other.h);
     }
 
+    /**
+     * Called by {@link AStarMachine} when a node returned from {@link #getNeighbours()} was not added to the frontier
+     * and will no longer be referenced by the search. Pooled implementations may recycle the node.
+     */
+    protected void discard() {
+    }
+
     @Override
     public abstract boolean equals(Object other);
 
@@ -36,6 +43,14 @@ public abstract class AStarNode implements Comparable<AStarNode> {
     @Override
     public abstract int hashCode();
 
+    /**
+     * Called on the start node once {@link AStarMachine#runFully(AStarGoal, AStarNode, int)} has finished and the
+     * resulting {@link Plan} (if any) has been built. Pooled implementations may release every node created during the
+     * search at this point.
+     */
+    protected void onSearchFinished() {
+    }
+
     @SuppressWarnings("unchecked")
     protected <T extends AStarNode> Iterable<T> orderedPath() {
         if (parents != null)
@@ -49,4 +64,16 @@ public abstract class AStarNode implements Comparable<AStarNode> {
         Collections.reverse(parents);
         return (Iterable<T>) parents;
     }
+
+    /**
+     * Clears the search state of this node so that it can be reused for a new position.
+     *
+     * @param parent
+     *            The new parent node
+     */
+    protected void reset(AStarNode parent) {
+        this.parent = parent;
+        this.parents = null;
+        g = h = 0;
+    }
 }
@@ -0,0 +1,184 @@
+package net.citizensnpcs.api.astar;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+import net.citizensnpcs.api.CitizensAPI;
+import net.citizensnpcs.api.astar.AStarMachine.AStarState;
+import net.citizensnpcs.api.util.Messaging;
+import net.citizensnpcs.api.util.schedulers.SchedulerTask;
+
+/**
+ * Runs many {@link AStarState}s incrementally on the main thread within a fixed per-tick budget. Each tick, searches
+ * are resumed in priority order (round-robin between searches of equal priority) in small slices until either the
+ * iteration or the time budget is spent.
+ *
+ * @see AStarMachine#getStateFor(AStarGoal, AStarNode)
+ */
+public class AStarScheduler {
+    private final int iterationsPerTick;
+    private final long nanosPerTick;
+    private final PriorityQueue<ScheduledSearch<?, ?>> queue = new PriorityQueue<>(
+            Comparator.<ScheduledSearch<?, ?>> comparingInt(search -> -search.priority)
+                    .thenComparingLong(search -> search.sequence));
+    private long sequence;
+    private SchedulerTask task;
+
+    /**
+     * @param iterationsPerTick
+     *            The maximum number of iterations to run across all searches per tick, or -1 for no limit
+     * @param microsPerTick
+     *            The maximum time to spend per tick in microseconds, or -1 for no limit
+     */
+    public AStarScheduler(int iterationsPerTick, long microsPerTick) {
+        this.iterationsPerTick = iterationsPerTick;
+        this.nanosPerTick = microsPerTick < 0 ? -1 : microsPerTick * 1000;
+    }
+
+    private boolean cancel(ScheduledSearch<?, ?> search) {
+        if (search.done || !queue.remove(search))
+            return false;
+        finish(search);
+        return true;
+    }
+
+    private void finish(ScheduledSearch<?, ?> search) {
+        search.state.finish();
+        search.done = true;
+    }
+
+    /**
+     * @return The number of searches that haven't finished yet
+     */
+    public int getPendingCount() {
+        return queue.size();
+    }
+
+    /**
+     * Schedules a search to be resumed each tick until it finds a plan, runs out of nodes or exceeds
+     * <code>maxIterations</code>. The callback is invoked on the main thread with the generated plan, or
+     * <code>null</code> if none was found.
+     *
+     * @param priority
+     *            Searches with a higher priority are given budget first
+     * @return A handle that can be used to cancel the search
+     */
+    public <N extends AStarNode, P extends Plan> ScheduledSearch<N, P> schedule(AStarMachine<N, P> machine,
+            AStarState<N> state, int maxIterations, int priority, Consumer<P> callback) {
+        ScheduledSearch<N, P> search = new ScheduledSearch<>(this, machine, state, maxIterations, priority, callback);
+        search.sequence = sequence++;
+        queue.add(search);
+        return search;
+    }
+
+    public void start() {
+        if (task != null)
+            return;
+        task = CitizensAPI.getScheduler().runTaskTimer(this::tick, 1, 1);
+    }
+
+    public void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+        for (ScheduledSearch<?, ?> search : queue) {
+            finish(search);
+        }
+        queue.clear();
+    }
+
+    /**
+     * Spends one tick's budget. Called automatically once {@link #start()}ed.
+     */
+    public void tick() {
+        long deadline = nanosPerTick < 0 ? Long.MAX_VALUE : System.nanoTime() + nanosPerTick;
+        int budget = iterationsPerTick < 0 ? Integer.MAX_VALUE : iterationsPerTick;
+        while (budget > 0 && !queue.isEmpty() && System.nanoTime() < deadline) {
+            ScheduledSearch<?, ?> search = queue.poll();
+            int slice = Math.min(budget, SLICE_ITERATIONS);
+            if (search.maxIterations >= 0) {
+                slice = Math.min(slice, search.maxIterations - search.iterations);
+            }
+            int before = search.iterations;
+            boolean finished;
+            try {
+                finished = search.step(slice);
+                budget -= search.iterations - before;
+            } catch (Throwable t) {
+                Messaging.severe("Error while running scheduled pathfinding search", t);
+                search.plan = null;
+                finished = true;
+                budget -= slice;
+            }
+            if (finished) {
+                finish(search);
+                try {
+                    search.complete();
+                } catch (Throwable t) {
+                    Messaging.severe("Error in scheduled pathfinding callback", t);
+                }
+            } else {
+                search.sequence = sequence++;
+                queue.add(search);
+            }
+        }
+    }
+
+    public static class ScheduledSearch<N extends AStarNode, P extends Plan> {
+        private final Consumer<P> callback;
+        private boolean done;
+        private int iterations;
+        private final AStarMachine<N, P> machine;
+        private final int maxIterations;
+        private P plan;
+        private final int priority;
+        private final AStarScheduler scheduler;
+        private long sequence;
+        private final AStarState<N> state;
+
+        private ScheduledSearch(AStarScheduler scheduler, AStarMachine<N, P> machine, AStarState<N> state,
+                int maxIterations, int priority, Consumer<P> callback) {
+            this.scheduler = scheduler;
+            this.machine = machine;
+            this.state = state;
+            this.maxIterations = maxIterations;
+            this.priority = priority;
+            this.callback = callback;
+        }
+
+        /**
+         * Stops the search without invoking its callback.
+         *
+         * @return Whether the search was still pending
+         */
+        public boolean cancel() {
+            return scheduler.cancel(this);
+        }
+
+        private void complete() {
+            callback.accept(plan);
+        }
+
+        public int getIterations() {
+            return iterations;
+        }
+
+        public boolean isDone() {
+            return done;
+        }
+
+        private boolean step(int slice) {
+            if (slice <= 0)
+                return true;
+            // run() performs one more iteration than its limit
+            int before = state.getPolls();
+            plan = machine.run(state, slice - 1);
+            iterations += state.getPolls() - before;
+            return plan != null || state.isEmpty() || (maxIterations >= 0 && iterations >= maxIterations);
+        }
+    }
+
+    private static final int SLICE_ITERATIONS = 64;
+}
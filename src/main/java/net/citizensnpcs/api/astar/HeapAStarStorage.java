@@ -0,0 +1,117 @@
+package net.citizensnpcs.api.astar;
+
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2FloatOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import net.citizensnpcs.api.astar.pathfinder.VectorNode;
+
+/**
+ * Implementation of {@link AStarStorage} that keeps the frontier in an {@link IntFloatHeap}, with one heap entry for
+ * the packed block position of each queued {@link VectorNode}. Unlike {@link PackedAStarStorage}, a position is only
+ * ever present once in the frontier: re-opening a position with a better cost replaces the queued node in place
+ * (decrease-key) instead of leaving a stale entry behind to be polled later.
+ */
+public class HeapAStarStorage implements AStarStorage {
+    private final Long2FloatOpenHashMap closed = new Long2FloatOpenHashMap();
+    private final IntArrayList freeHandles = new IntArrayList();
+    private final IntFloatHeap heap = new IntFloatHeap(INITIAL_CAPACITY);
+    private final Long2IntOpenHashMap index = new Long2IntOpenHashMap();
+    private AStarNode[] nodes = new AStarNode[INITIAL_CAPACITY];
+    private long[] positions = new long[INITIAL_CAPACITY];
+    private int usedHandles;
+
+    public HeapAStarStorage() {
+        closed.defaultReturnValue(Float.POSITIVE_INFINITY);
+        index.defaultReturnValue(-1);
+    }
+
+    private int allocateHandle() {
+        if (!freeHandles.isEmpty())
+            return freeHandles.removeInt(freeHandles.size() - 1);
+        if (usedHandles == nodes.length) {
+            nodes = Arrays.copyOf(nodes, usedHandles * 2);
+            positions = Arrays.copyOf(positions, usedHandles * 2);
+        }
+        return usedHandles++;
+    }
+
+    @Override
+    public void close(AStarNode node) {
+        long key = ((VectorNode) node).getPackedPosition();
+        int handle = index.remove(key);
+        if (handle != -1) {
+            heap.remove(handle);
+            releaseHandle(handle);
+        }
+        closed.put(key, node.g);
+    }
+
+    @Override
+    public AStarNode getBestNode() {
+        return heap.isEmpty() ? null : nodes[heap.peek()];
+    }
+
+    @Override
+    public void open(AStarNode node) {
+        long key = ((VectorNode) node).getPackedPosition();
+        closed.remove(key);
+        int handle = index.get(key);
+        if (handle == -1) {
+            handle = allocateHandle();
+            index.put(key, handle);
+            positions[handle] = key;
+        }
+        nodes[handle] = node;
+        heap.update(handle, node.getPathCost());
+    }
+
+    private void releaseHandle(int handle) {
+        nodes[handle] = null;
+        freeHandles.add(handle);
+    }
+
+    @Override
+    public AStarNode removeBestNode() {
+        if (heap.isEmpty())
+            return null;
+        int handle = heap.pop();
+        AStarNode best = nodes[handle];
+        index.remove(positions[handle]);
+        releaseHandle(handle);
+        return best;
+    }
+
+    @Override
+    public boolean shouldExamine(AStarNode node) {
+        long key = ((VectorNode) node).getPackedPosition();
+        int handle = index.get(key);
+        if (handle != -1 && nodes[handle].g - IMPROVEMENT_REWEIGHT_THRESHOLD <= node.g)
+            return false;
+        float closedG = closed.get(key);
+        if (closedG != Float.POSITIVE_INFINITY) {
+            if (closedG - IMPROVEMENT_REWEIGHT_THRESHOLD <= node.g)
+                return false;
+            closed.remove(key);
+        }
+        return true;
+    }
+
+    /**
+     * @return The number of positions currently in the frontier
+     */
+    public int size() {
+        return heap.size();
+    }
+
+    @Override
+    public String toString() {
+        return "HeapAStarStorage [closed=" + closed + ", open=" + index + "]";
+    }
+
+    public static final Supplier<AStarStorage> FACTORY = HeapAStarStorage::new;
+    private static final float IMPROVEMENT_REWEIGHT_THRESHOLD = 1;
+    private static final int INITIAL_CAPACITY = 128;
+}
@@ -0,0 +1,168 @@
+package net.citizensnpcs.api.astar;
+
+import java.util.Arrays;
+
+/**
+ * An indexed 4-ary min-heap of non-negative <code>int</code> values ordered by <code>float</code> keys, kept in
+ * primitive arrays. Each value is present at most once, so lowering the key of a queued value moves it in place
+ * (decrease-key) instead of leaving a stale entry behind to be skipped when polled.
+ */
+public class IntFloatHeap {
+    private float[] keys;
+    private int[] slots = new int[0];
+    private int size;
+    private int[] values;
+
+    public IntFloatHeap() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public IntFloatHeap(int capacity) {
+        keys = new float[Math.max(capacity, 1)];
+        values = new int[keys.length];
+    }
+
+    /**
+     * Removes every value from the heap.
+     */
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            slots[values[i]] = -1;
+        }
+        size = 0;
+    }
+
+    public boolean contains(int value) {
+        return value < slots.length && slots[value] != -1;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return The value with the lowest key
+     */
+    public int peek() {
+        return values[0];
+    }
+
+    /**
+     * @return The lowest key in the heap
+     */
+    public float peekKey() {
+        return keys[0];
+    }
+
+    /**
+     * Removes and returns the value with the lowest key.
+     */
+    public int pop() {
+        int top = values[0];
+        removeAt(0);
+        return top;
+    }
+
+    /**
+     * Removes the given value if it is queued.
+     *
+     * @return Whether the value was queued
+     */
+    public boolean remove(int value) {
+        if (!contains(value))
+            return false;
+        removeAt(slots[value]);
+        return true;
+    }
+
+    private void removeAt(int slot) {
+        slots[values[slot]] = -1;
+        int last = --size;
+        if (slot == last)
+            return;
+        float old = keys[slot];
+        set(slot, values[last], keys[last]);
+        if (keys[slot] < old) {
+            siftUp(slot);
+        } else {
+            siftDown(slot);
+        }
+    }
+
+    private void set(int slot, int value, float key) {
+        values[slot] = value;
+        keys[slot] = key;
+        slots[value] = slot;
+    }
+
+    private void siftDown(int slot) {
+        int value = values[slot];
+        float key = keys[slot];
+        while (true) {
+            int first = slot * ARITY + 1;
+            if (first >= size)
+                break;
+            int best = first;
+            int end = Math.min(first + ARITY, size);
+            for (int child = first + 1; child < end; child++) {
+                if (keys[child] < keys[best]) {
+                    best = child;
+                }
+            }
+            if (keys[best] >= key)
+                break;
+            set(slot, values[best], keys[best]);
+            slot = best;
+        }
+        set(slot, value, key);
+    }
+
+    private void siftUp(int slot) {
+        int value = values[slot];
+        float key = keys[slot];
+        while (slot > 0) {
+            int parent = (slot - 1) / ARITY;
+            if (keys[parent] <= key)
+                break;
+            set(slot, values[parent], keys[parent]);
+            slot = parent;
+        }
+        set(slot, value, key);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Queues the given value with the given key, replacing its key if it is already queued.
+     */
+    public void update(int value, float key) {
+        if (value >= slots.length) {
+            int length = slots.length;
+            slots = Arrays.copyOf(slots, Math.max(value + 1, length * 2));
+            Arrays.fill(slots, length, slots.length, -1);
+        }
+        int slot = slots[value];
+        if (slot == -1) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            slot = size++;
+            set(slot, value, key);
+            siftUp(slot);
+            return;
+        }
+        float old = keys[slot];
+        keys[slot] = key;
+        if (key < old) {
+            siftUp(slot);
+        } else {
+            siftDown(slot);
+        }
+    }
+
+    private static final int ARITY = 4;
+    private static final int INITIAL_CAPACITY = 64;
+}
@@ -4,8 +4,6 @@ import java.util.PriorityQueue;
 import java.util.Queue;
 import java.util.function.Supplier;
 
-import org.bukkit.util.Vector;
-
 import it.unimi.dsi.fastutil.longs.Long2FloatOpenHashMap;
 import net.citizensnpcs.api.astar.pathfinder.VectorNode;
 
@@ -20,7 +18,7 @@ public class PackedAStarStorage implements AStarStorage {
 
     @Override
     public void close(AStarNode node) {
-        long key = packPosition((VectorNode) node);
+        long key = ((VectorNode) node).getPackedPosition();
         open.remove(key);
         closed.put(key, node.g);
     }
@@ -32,18 +30,12 @@ public class PackedAStarStorage implements AStarStorage {
 
     @Override
     public void open(AStarNode node) {
-        long key = packPosition((VectorNode) node);
+        long key = ((VectorNode) node).getPackedPosition();
         queue.offer(node);
         open.put(key, node.g);
         closed.remove(key);
     }
 
-    private long packPosition(VectorNode node) {
-        Vector vector = node.getVector();
-        return ((long) vector.getBlockX() & 0x3FFFFFF) << 38 | ((long) vector.getBlockZ() & 0x3FFFFFF) << 12
-                | ((long) vector.getBlockY() & 0xFFF);
-    }
-
     @Override
     public AStarNode removeBestNode() {
         return queue.poll();
@@ -51,7 +43,7 @@ public class PackedAStarStorage implements AStarStorage {
 
     @Override
     public boolean shouldExamine(AStarNode node) {
-        long key = packPosition((VectorNode) node);
+        long key = ((VectorNode) node).getPackedPosition();
         float openG = open.get(key);
         if (openG - IMPROVEMENT_REWEIGHT_THRESHOLD > node.g) {
             open.remove(key);
@@ -3,18 +3,29 @@ package net.citizensnpcs.api.astar.pathfinder;
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Queue;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 
 import org.bukkit.Bukkit;
 import org.bukkit.Chunk;
@@ -24,9 +35,13 @@ import org.bukkit.Material;
 import org.bukkit.World;
 import org.bukkit.block.data.BlockData;
 import org.bukkit.plugin.Plugin;
+import org.bukkit.util.Vector;
 
 import com.google.common.collect.ImmutableList;
 
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import net.citizensnpcs.api.CitizensAPI;
 import net.citizensnpcs.api.ai.NavigatorParameters;
 import net.citizensnpcs.api.astar.AStarMachine;
@@ -36,15 +51,46 @@ import net.citizensnpcs.api.util.Messaging;
 import net.citizensnpcs.api.util.SpigotUtil;
 
 public class AsyncChunkCache {
+    private final LongAdder coalesced = new LongAdder();
+    private final Queue<Runnable> completions = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean completionsScheduled = new AtomicBoolean();
+    private final Thread dispatcher;
+    private final LongAdder evictions = new LongAdder();
     private final ScheduledExecutorService evictionExecutor;
+    private final LongAdder hits = new LongAdder();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // how often chunks were invalidated, striped by chunk coordinates
+    private final AtomicLongArray invalidations = new AtomicLongArray(INVALIDATION_STRIPES);
+    private volatile int maxSnapshots;
+    private final LongAdder misses = new LongAdder();
+    private final long palettedBudgetBytes;
+    private final Map<ChunkKey, PalettedChunk> palettedCache = new ConcurrentHashMap<>();
+    private final AtomicLong palettedCacheBytes = new AtomicLong();
+    private volatile long pathResultTtlMillis;
+    private final Map<PathKey, CachedPath> pathResults = new ConcurrentHashMap<>();
+    private final Map<PathKey, CompletableFuture<Path>> pathSearches = new ConcurrentHashMap<>();
     private final Plugin plugin;
+    private final Queue<PendingSearch> requests = new ConcurrentLinkedQueue<>();
     private final Map<ChunkKey, CompletableFuture<ChunkSnapshot>> snapshotCache = new ConcurrentHashMap<>();
     private final Map<ChunkKey, Long> snapshotCacheExpiry = new ConcurrentHashMap<>();
+    private final Map<ChunkKey, Long> snapshotLastAccess = new ConcurrentHashMap<>();
     private final long ttlMillis;
     private final ForkJoinPool workerPool;
 
     public AsyncChunkCache(Plugin plugin, int workerThreads, long cacheTtlMillis) {
+        this(plugin, workerThreads, cacheTtlMillis, 0);
+    }
+
+    /**
+     * @param palettedBudgetBytes
+     *            If positive, fetched chunk snapshots are converted once into a compact {@link PalettedChunk} that is
+     *            shared between all searches, and the snapshot itself is dropped. Paletted chunks are evicted least
+     *            recently used first once their estimated size exceeds this budget, as well as by
+     *            <code>cacheTtlMillis</code>. Ignored before 1.13, which has no block data to palette.
+     */
+    public AsyncChunkCache(Plugin plugin, int workerThreads, long cacheTtlMillis, long palettedBudgetBytes) {
         this.plugin = plugin;
+        this.palettedBudgetBytes = palettedBudgetBytes > 0 && SpigotUtil.isUsing1_13API() ? palettedBudgetBytes : 0;
         this.workerPool = new ForkJoinPool(Math.min(Runtime.getRuntime().availableProcessors(), workerThreads));
         this.ttlMillis = cacheTtlMillis;
         if (cacheTtlMillis > 0) {
@@ -55,6 +101,9 @@ public class AsyncChunkCache {
         } else {
             evictionExecutor = null;
         }
+        dispatcher = new Thread(this::dispatchLoop, "Citizens Async Pathfinder Dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
     }
 
     private CompletableFuture<Path> completeOnMainThread(CompletableFuture<Path> workerFuture) {
@@ -70,13 +119,54 @@ public class AsyncChunkCache {
             if (Bukkit.isPrimaryThread()) {
                 cb.run();
             } else {
-                CitizensAPI.getScheduler().runTask(cb);
+                completions.add(cb);
+                // one main thread task drains every completion that arrives before it runs
+                if (completionsScheduled.compareAndSet(false, true)) {
+                    CitizensAPI.getScheduler().runTask(this::drainCompletions);
+                }
             }
         });
         return result;
     }
 
     private BlockSource createSnapshotBlockSource(SnapshotProvider provider, World world) {
+        if (palettedBudgetBytes > 0)
+            return new BlockSource() {
+                @Override
+                public BlockData getBlockDataAt(int x, int y, int z) {
+                    return provider.getPaletted(x >> 4, z >> 4).getBlockData(x, y, z);
+                }
+
+                @Override
+                public BoundingBox getCollisionBox(int x, int y, int z) {
+                    return null;
+                }
+
+                @Override
+                public Material getMaterialAt(int x, int y, int z) {
+                    return provider.getPaletted(x >> 4, z >> 4).getType(x, y, z);
+                }
+
+                @Override
+                public int getMaxHeight() {
+                    return SpigotUtil.getMaxHeight(world);
+                }
+
+                @Override
+                public int getMinHeight() {
+                    return SpigotUtil.getMinHeight(world);
+                }
+
+                @Override
+                public int getTraitsAt(int x, int y, int z) {
+                    return provider.getPaletted(x >> 4, z >> 4).getTraits(x, y, z);
+                }
+
+                @Override
+                public boolean isYWithinBounds(int y) {
+                    return SpigotUtil.checkYSafe(y, world);
+                }
+            };
         return new BlockSource() {
             @Override
             public BlockData getBlockDataAt(int x, int y, int z) {
@@ -93,6 +183,16 @@ public class AsyncChunkCache {
                 return provider.get(x >> 4, z >> 4).getBlockType(x & 15, y, z & 15);
             }
 
+            @Override
+            public int getMaxHeight() {
+                return SpigotUtil.getMaxHeight(world);
+            }
+
+            @Override
+            public int getMinHeight() {
+                return SpigotUtil.getMinHeight(world);
+            }
+
             @Override
             public boolean isYWithinBounds(int y) {
                 return SpigotUtil.checkYSafe(y, world);
@@ -100,6 +200,65 @@ public class AsyncChunkCache {
         };
     }
 
+    private void dispatch(List<PendingSearch> batch) {
+        List<Runnable> fetches = new ArrayList<>();
+        for (PendingSearch pending : batch) {
+            World world = pending.from.getWorld();
+            List<CompletableFuture<ChunkSnapshot>> chunks = new ArrayList<>();
+            for (Rect rect : getPrefetchRects(pending.from, pending.to, pending.prefetchRadius)) {
+                if (reserveChunks(world, rect, chunks)) {
+                    fetches.add(() -> prefetchRectangle(world, rect));
+                }
+            }
+            CompletableFuture.allOf(chunks.toArray(new CompletableFuture[0])).handle((v, ex) -> null)
+                    .thenApplyAsync(v -> pending.search.get(), workerPool)
+                    .whenComplete((path, ex) -> {
+                        if (ex != null) {
+                            pending.result.completeExceptionally(ex);
+                        } else {
+                            pending.result.complete(path);
+                        }
+                    });
+        }
+        if (!fetches.isEmpty()) {
+            CitizensAPI.getScheduler().runTask(() -> {
+                for (Runnable fetch : fetches) {
+                    fetch.run();
+                }
+            });
+        }
+    }
+
+    private void dispatchLoop() {
+        List<PendingSearch> batch = new ArrayList<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            PendingSearch next;
+            while ((next = requests.poll()) != null) {
+                batch.add(next);
+            }
+            if (batch.isEmpty()) {
+                LockSupport.park(this);
+                continue;
+            }
+            try {
+                dispatch(batch);
+            } catch (Throwable t) {
+                for (PendingSearch pending : batch) {
+                    pending.result.completeExceptionally(t);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    private void drainCompletions() {
+        completionsScheduled.set(false);
+        Runnable cb;
+        while ((cb = completions.poll()) != null) {
+            cb.run();
+        }
+    }
+
     private void evictStaleChunks() {
         long now = System.currentTimeMillis();
         // Iterate the cache itself, not just the expiry map: exceptionally-completed/abandoned entries never
@@ -110,30 +269,50 @@ public class AsyncChunkCache {
             if (cf == null || !cf.isDone())
                 continue;
             if (cf.isCompletedExceptionally()) {
-                snapshotCache.remove(key, cf);
-                snapshotCacheExpiry.remove(key);
+                removeSnapshot(key, cf, true);
                 continue;
             }
             Long expiry = snapshotCacheExpiry.get(key);
             if (expiry == null || now > expiry) {
-                snapshotCache.remove(key, cf);
-                snapshotCacheExpiry.remove(key);
+                removeSnapshot(key, cf, true);
+            }
+        }
+        for (Map.Entry<ChunkKey, PalettedChunk> e : palettedCache.entrySet()) {
+            if (now > e.getValue().expiry) {
+                removePaletted(e.getKey(), e.getValue());
+            }
+        }
+        evictStalePaths(now);
+    }
+
+    private void evictStalePaths(long now) {
+        for (Map.Entry<PathKey, CachedPath> e : pathResults.entrySet()) {
+            if (now > e.getValue().expiry) {
+                pathResults.remove(e.getKey(), e.getValue());
             }
         }
     }
 
     // guaranteed to complete on main thread, but may throw exception on alternate thread
-    private CompletableFuture<ChunkSnapshot> fetchChunkSnapshotAsync(World world, int cx, int cz) {
+    CompletableFuture<ChunkSnapshot> fetchChunkSnapshotAsync(World world, int cx, int cz) {
         ChunkKey key = new ChunkKey(world.getUID(), cx, cz);
 
         CompletableFuture<ChunkSnapshot> existing = snapshotCache.get(key);
-        if (existing != null)
+        if (existing != null) {
+            hits.increment();
+            if (maxSnapshots > 0) {
+                snapshotLastAccess.put(key, System.nanoTime());
+            }
             return existing;
-
+        }
         CompletableFuture<ChunkSnapshot> future = new CompletableFuture<>();
         CompletableFuture<ChunkSnapshot> raced = snapshotCache.putIfAbsent(key, future);
-        if (raced != null)
+        if (raced != null) {
+            hits.increment();
             return raced;
+        }
+        misses.increment();
+        trackInFlight(key, future);
         Messaging.debug("AsyncChunkCache: Fetching chunk", world, cx, cz);
 
         if (WORLD_GET_CHUNK_AT_ASYNC != null) {
@@ -171,26 +350,107 @@ public class AsyncChunkCache {
     }
 
     public CompletableFuture<Path> findHPAPathAsync(HPAPathRequest req) {
-        CompletableFuture<Void>[] futures = prefetchRegions(req.from.getWorld(),
-                getPrefetchRects(req.from, req.to, req.prefetchRadius));
-        CompletableFuture<Path> workerFuture = CompletableFuture.allOf(futures).thenCompose(v -> CompletableFuture
-                .supplyAsync(() -> runHPAPathfinder(req, new SnapshotProvider(req.from.getWorld())), workerPool));
-
-        return completeOnMainThread(workerFuture);
+        return completeOnMainThread(submit(req.from, req.to, req.prefetchRadius,
+                () -> runHPAPathfinder(req, new SnapshotProvider(req.from.getWorld()))));
     }
 
     /**
-     * Returned future completes on the main thread
+     * Returned future completes on the main thread. Requests with the same world, start block, goal block, equivalent
+     * examiners (see {@link BlockExaminer#getSearchKey()}), search direction and search limits share a single search
+     * while it is running (and for {@link #setPathResultTtl(long)} after it finishes); each caller receives its own
+     * {@link Path#copy()}.
      */
     public CompletableFuture<Path> findPathAsync(PathRequest req) {
-        // TODO: setup work currently happens on main thread. request queue could be made async
+        PathKey key = new PathKey(req);
+        long resultTtl = pathResultTtlMillis;
+        if (resultTtl > 0) {
+            CachedPath cached = pathResults.get(key);
+            if (cached != null) {
+                if (System.currentTimeMillis() <= cached.expiry) {
+                    coalesced.increment();
+                    return CompletableFuture.completedFuture(cached.path == null ? null : cached.path.copy());
+                }
+                pathResults.remove(key, cached);
+            }
+        }
+        CompletableFuture<Path> search = new CompletableFuture<>();
+        CompletableFuture<Path> existing = pathSearches.putIfAbsent(key, search);
+        if (existing != null) {
+            coalesced.increment();
+            return completeOnMainThread(existing.thenApply(path -> path == null ? null : path.copy()));
+        }
+        long[] submitted = getInvalidations();
+        submit(req.from, req.to, req.prefetchRadius,
+                () -> runPathfinder(req, new SnapshotProvider(req.from.getWorld()))).whenComplete((path, ex) -> {
+                    if (ex == null && resultTtl > 0) {
+                        trimPathResults();
+                        CachedPath cached = new CachedPath(path, System.currentTimeMillis() + resultTtl);
+                        pathResults.put(key, cached);
+                        // checked after caching, as invalidateChunks counts before it drops cached results
+                        if (isInvalidatedSince(submitted, cached.chunks)) {
+                            pathResults.remove(key, cached);
+                        }
+                    }
+                    pathSearches.remove(key, search);
+                    if (ex != null) {
+                        search.completeExceptionally(ex);
+                    } else {
+                        search.complete(path);
+                    }
+                });
+        return completeOnMainThread(search.thenApply(path -> path == null ? null : path.copy()));
+    }
+
+    /**
+     * @return The number of chunk snapshots currently cached or being fetched
+     */
+    public int getCachedSnapshotCount() {
+        return snapshotCache.size();
+    }
+
+    /**
+     * @return The number of {@link #findPathAsync(PathRequest)} calls answered by an identical in-flight or recently
+     *         completed search instead of a new one
+     */
+    public long getCoalescedPathCount() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return The number of snapshots evicted so far, either by TTL or by {@link #setMaxCachedSnapshots(int)}.
+     *         Snapshots dropped because their chunk changed or was converted into a paletted chunk are not counted.
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
 
-        CompletableFuture<Void>[] futures = prefetchRegions(req.from.getWorld(),
-                getPrefetchRects(req.from, req.to, req.prefetchRadius));
-        CompletableFuture<Path> workerFuture = CompletableFuture.allOf(futures).thenCompose(v -> CompletableFuture
-                .supplyAsync(() -> runPathfinder(req, new SnapshotProvider(req.from.getWorld())), workerPool));
+    /**
+     * @return The number of chunk lookups made by searches that found an existing (possibly prefetched) snapshot
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
 
-        return completeOnMainThread(workerFuture);
+    /**
+     * @return The number of chunk fetches that have been requested but not yet completed
+     */
+    public int getInFlightCount() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return The number of chunk lookups made by searches that had to fetch a new snapshot
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    private long[] getInvalidations() {
+        long[] counts = new long[INVALIDATION_STRIPES];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = invalidations.get(i);
+        }
+        return counts;
     }
 
     private List<Rect> getPrefetchRects(Location from, Location to, int prefetchRadius) {
@@ -207,6 +467,62 @@ public class AsyncChunkCache {
         return ImmutableList.of(start, end);
     }
 
+    /**
+     * Drops cached snapshots of the given chunks so that the next search fetches the current blocks, as well as the
+     * cached path results in the same world that cross them. Failed searches are dropped on any change in their world.
+     * Chunks that are still being fetched are left alone.
+     *
+     * @param chunkKeys
+     *            Chunk coordinates packed as <code>(long) chunkX &lt;&lt; 32 | chunkZ &amp; 0xFFFFFFFFL</code>
+     * @see ChunkInvalidationFeed
+     */
+    public void invalidateChunks(UUID world, LongSet chunkKeys) {
+        LongIterator itr = chunkKeys.iterator();
+        while (itr.hasNext()) {
+            long packed = itr.nextLong();
+            // counted first so that anything cached from the old blocks afterwards is caught by its own check
+            invalidations.incrementAndGet(getInvalidationStripe(packed));
+            ChunkKey key = new ChunkKey(world, (int) (packed >> 32), (int) packed);
+            CompletableFuture<ChunkSnapshot> snapshot = snapshotCache.get(key);
+            if (snapshot != null && snapshot.isDone()) {
+                removeSnapshot(key, snapshot, false);
+            }
+            PalettedChunk chunk = palettedCache.get(key);
+            if (chunk != null) {
+                removePaletted(key, chunk);
+            }
+        }
+        if (chunkKeys.isEmpty())
+            return;
+        for (Map.Entry<PathKey, CachedPath> e : pathResults.entrySet()) {
+            if (Objects.equals(e.getKey().world, world) && e.getValue().crosses(chunkKeys)) {
+                pathResults.remove(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * @param chunks
+     *            The chunks to check, or <code>null</code> to check every chunk
+     * @return Whether any of the given chunks may have been invalidated since the given
+     *         {@link #getInvalidations() counts} were taken
+     */
+    private boolean isInvalidatedSince(long[] counts, LongSet chunks) {
+        if (chunks == null) {
+            for (int i = 0; i < counts.length; i++) {
+                if (invalidations.get(i) != counts[i])
+                    return true;
+            }
+            return false;
+        }
+        for (LongIterator itr = chunks.iterator(); itr.hasNext();) {
+            int stripe = getInvalidationStripe(itr.nextLong());
+            if (invalidations.get(stripe) != counts[stripe])
+                return true;
+        }
+        return false;
+    }
+
     private CompletableFuture<Void> prefetchIndividualChunks(World world, Rect rect) {
         List<ChunkFutureRequest> chunkFutures = new ArrayList<>();
 
@@ -318,24 +634,47 @@ public class AsyncChunkCache {
         return result;
     }
 
-    @SuppressWarnings("unchecked")
-    private CompletableFuture<Void>[] prefetchRegions(World world, List<Rect> rects) {
-        CompletableFuture<Void>[] futures = new CompletableFuture[rects.size()];
-        for (int i = 0; i < rects.size(); i++) {
-            Rect rect = rects.get(i);
-            int chunkCount = 0;
-            for (int cx = rect.minX; cx <= rect.maxX; cx++) {
-                for (int cz = rect.minZ; cz <= rect.maxZ; cz++) {
-                    CompletableFuture<ChunkSnapshot> old = snapshotCache
-                            .putIfAbsent(new ChunkKey(world.getUID(), cx, cz), new CompletableFuture<ChunkSnapshot>());
-                    if (old == null || !old.isDone()) {
-                        chunkCount++;
-                    }
+    private void removePaletted(ChunkKey key, PalettedChunk chunk) {
+        if (palettedCache.remove(key, chunk)) {
+            palettedCacheBytes.addAndGet(-chunk.sizeBytes());
+        }
+    }
+
+    private void removeSnapshot(ChunkKey key, CompletableFuture<ChunkSnapshot> future, boolean evicted) {
+        if (snapshotCache.remove(key, future)) {
+            snapshotCacheExpiry.remove(key);
+            snapshotLastAccess.remove(key);
+            if (evicted) {
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Adds a pending snapshot future to the cache for every chunk in the rect that isn't cached yet, and collects the
+     * futures of every chunk that is still being fetched.
+     *
+     * @return Whether any chunk was newly reserved and so needs to be fetched
+     */
+    private boolean reserveChunks(World world, Rect rect, List<CompletableFuture<ChunkSnapshot>> pending) {
+        boolean reserved = false;
+        for (int cx = rect.minX; cx <= rect.maxX; cx++) {
+            for (int cz = rect.minZ; cz <= rect.maxZ; cz++) {
+                ChunkKey key = new ChunkKey(world.getUID(), cx, cz);
+                if (palettedCache.containsKey(key))
+                    continue;
+                CompletableFuture<ChunkSnapshot> future = new CompletableFuture<>();
+                CompletableFuture<ChunkSnapshot> old = snapshotCache.putIfAbsent(key, future);
+                if (old == null) {
+                    trackInFlight(key, future);
+                    pending.add(future);
+                    reserved = true;
+                } else if (!old.isDone()) {
+                    pending.add(old);
                 }
             }
-            futures[i] = chunkCount == 0 ? CompletableFuture.completedFuture(null) : prefetchRectangle(world, rect);
         }
-        return futures;
+        return reserved;
     }
 
     private Path runHPAPathfinder(HPAPathRequest req, SnapshotProvider provider) {
@@ -356,11 +695,42 @@ public class AsyncChunkCache {
         VectorGoal goal = new VectorGoal(req.to, (float) req.parameters.pathDistanceMargin());
         // Bound async search by the same cap as the sync pathfinder; runFully(-1) was unbounded and, for
         // unreachable/far targets, explored the whole reachable area, fetching a snapshot per region (leak).
-        return AStarMachine.<VectorNode, Path> createWithVectorStorage().runFully(goal, new VectorNode(goal, req.from,
-                createSnapshotBlockSource(provider, req.from.getWorld()), req.parameters), req.maxIterations);
+        // each search runs start to finish on one worker thread, so nodes can be pooled per thread
+        VectorNode start = new VectorNode(goal, req.from, createSnapshotBlockSource(provider, req.from.getWorld()),
+                req.parameters, true);
+        AStarMachine<VectorNode, Path> machine = AStarMachine.createWithVectorStorage();
+        if (req.parameters.bidirectionalSearch())
+            return machine.runBidirectional(goal, start, req.maxIterations);
+        return machine.runFully(goal, start, req.maxIterations);
+    }
+
+    /**
+     * Sets the maximum number of completed chunk snapshots to keep cached. Once exceeded, the least recently used
+     * snapshots are evicted. Chunks that are still being fetched are never evicted.
+     *
+     * @param maxSnapshots
+     *            The maximum number of snapshots, or 0 to only evict by TTL
+     */
+    public void setMaxCachedSnapshots(int maxSnapshots) {
+        this.maxSnapshots = maxSnapshots;
+    }
+
+    /**
+     * Sets how long a completed {@link #findPathAsync(PathRequest)} result (including a failed search) is reused for
+     * identical requests.
+     *
+     * @param millis
+     *            The time to live, or 0 to only share searches that are still running
+     */
+    public void setPathResultTtl(long millis) {
+        this.pathResultTtlMillis = millis;
+        if (millis <= 0) {
+            pathResults.clear();
+        }
     }
 
     public void shutdown() {
+        dispatcher.interrupt();
         try {
             workerPool.shutdownNow();
         } catch (Throwable ignored) {
@@ -373,6 +743,142 @@ public class AsyncChunkCache {
         }
         snapshotCache.clear();
         snapshotCacheExpiry.clear();
+        snapshotLastAccess.clear();
+        palettedCache.clear();
+        palettedCacheBytes.set(0);
+        pathResults.clear();
+    }
+
+    /**
+     * Queues a search for the dispatcher thread, which prefetches the chunks around both ends in batches before
+     * running the search on the worker pool.
+     */
+    private CompletableFuture<Path> submit(Location from, Location to, int prefetchRadius, Supplier<Path> search) {
+        PendingSearch pending = new PendingSearch(from, to, prefetchRadius, search);
+        requests.add(pending);
+        LockSupport.unpark(dispatcher);
+        return pending.result;
+    }
+
+    private void trackInFlight(ChunkKey key, CompletableFuture<ChunkSnapshot> future) {
+        inFlight.incrementAndGet();
+        if (maxSnapshots > 0) {
+            snapshotLastAccess.put(key, System.nanoTime());
+        }
+        future.whenComplete((snapshot, ex) -> {
+            inFlight.decrementAndGet();
+            if (maxSnapshots > 0 && snapshotCache.size() > maxSnapshots) {
+                workerPool.execute(this::trimSnapshotCache);
+            }
+        });
+    }
+
+    private void trimPalettedCache() {
+        if (palettedCacheBytes.get() <= palettedBudgetBytes)
+            return;
+        synchronized (palettedCache) {
+            if (palettedCacheBytes.get() <= palettedBudgetBytes)
+                return;
+            List<Map.Entry<ChunkKey, PalettedChunk>> entries = new ArrayList<>(palettedCache.entrySet());
+            entries.sort(Comparator.comparingLong(e -> e.getValue().lastAccess));
+            // trim below the budget so that a steady stream of new chunks doesn't sort on every insert
+            long target = palettedBudgetBytes - palettedBudgetBytes / 10;
+            for (Map.Entry<ChunkKey, PalettedChunk> e : entries) {
+                if (palettedCacheBytes.get() <= target)
+                    break;
+                removePaletted(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    private void trimPathResults() {
+        if (pathResults.size() < MAX_CACHED_PATHS)
+            return;
+        synchronized (pathResults) {
+            evictStalePaths(System.currentTimeMillis());
+            if (pathResults.size() < MAX_CACHED_PATHS)
+                return;
+            List<Map.Entry<PathKey, CachedPath>> entries = new ArrayList<>(pathResults.entrySet());
+            // results share one time to live, so the earliest to expire are the oldest
+            entries.sort(Comparator.comparingLong(e -> e.getValue().expiry));
+            int target = MAX_CACHED_PATHS - MAX_CACHED_PATHS / 10;
+            for (Map.Entry<PathKey, CachedPath> e : entries) {
+                if (pathResults.size() <= target)
+                    break;
+                pathResults.remove(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    private void trimSnapshotCache() {
+        int max = maxSnapshots;
+        if (max <= 0 || snapshotCache.size() <= max)
+            return;
+        synchronized (snapshotCache) {
+            List<Map.Entry<ChunkKey, CompletableFuture<ChunkSnapshot>>> entries = new ArrayList<>();
+            for (Map.Entry<ChunkKey, CompletableFuture<ChunkSnapshot>> e : snapshotCache.entrySet()) {
+                // pending futures are completed by looking them up in the cache, so they must stay
+                if (e.getValue().isDone()) {
+                    entries.add(e);
+                }
+            }
+            entries.sort(Comparator.comparingLong(e -> snapshotLastAccess.getOrDefault(e.getKey(), 0L)));
+            int target = max - max / 10;
+            for (Map.Entry<ChunkKey, CompletableFuture<ChunkSnapshot>> e : entries) {
+                if (snapshotCache.size() <= target)
+                    break;
+                removeSnapshot(e.getKey(), e.getValue(), true);
+            }
+        }
+    }
+
+    private static class CachedPath {
+        private final LongSet chunks;
+        private final long expiry;
+        private final Path path;
+
+        private CachedPath(Path path, long expiry) {
+            this.path = path;
+            this.expiry = expiry;
+            this.chunks = path == null ? null : chunksCrossed(path);
+        }
+
+        private boolean crosses(LongSet changed) {
+            if (chunks == null)
+                return true;
+            LongSet smaller = changed.size() < chunks.size() ? changed : chunks;
+            LongSet larger = smaller == changed ? chunks : changed;
+            for (LongIterator itr = smaller.iterator(); itr.hasNext();) {
+                if (larger.contains(itr.nextLong()))
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * Walks the straight segments between the (simplified) path points block by block, collecting the chunks of
+         * each block and of the blocks diagonally beside it, which diagonal moves are checked against.
+         */
+        private static LongSet chunksCrossed(Path path) {
+            LongSet chunks = new LongOpenHashSet();
+            Vector previous = null;
+            for (Vector vector : path.getPath()) {
+                Vector from = previous == null ? vector : previous;
+                double dx = vector.getX() - from.getX(), dz = vector.getZ() - from.getZ();
+                int steps = Math.max(1, (int) Math.ceil(Math.max(Math.abs(dx), Math.abs(dz))));
+                for (int i = 0; i <= steps; i++) {
+                    int x = (int) Math.floor(from.getX() + dx * i / steps);
+                    int z = (int) Math.floor(from.getZ() + dz * i / steps);
+                    for (int ox = -1; ox <= 1; ox += 2) {
+                        for (int oz = -1; oz <= 1; oz += 2) {
+                            chunks.add((long) (x + ox >> 4) << 32 | (z + oz >> 4) & 0xFFFFFFFFL);
+                        }
+                    }
+                }
+                previous = vector;
+            }
+            return chunks;
+        }
     }
 
     private static class ChunkFutureRequest {
@@ -456,6 +962,65 @@ public class AsyncChunkCache {
         }
     }
 
+    private static class LastChunk<T> {
+        private final T chunk;
+        private final int cx, cz;
+
+        private LastChunk(int cx, int cz, T chunk) {
+            this.cx = cx;
+            this.cz = cz;
+            this.chunk = chunk;
+        }
+    }
+
+    private static class PathKey {
+        private final boolean bidirectional;
+        private final List<Object> examiners;
+        private final int fromX, fromY, fromZ;
+        private final double margin;
+        private final int maxIterations;
+        private final int toX, toY, toZ;
+        private final UUID world;
+
+        private PathKey(PathRequest req) {
+            world = req.from.getWorld() == null ? null : req.from.getWorld().getUID();
+            fromX = req.from.getBlockX();
+            fromY = req.from.getBlockY();
+            fromZ = req.from.getBlockZ();
+            toX = req.to.getBlockX();
+            toY = req.to.getBlockY();
+            toZ = req.to.getBlockZ();
+            margin = req.parameters.pathDistanceMargin();
+            maxIterations = req.maxIterations;
+            bidirectional = req.parameters.bidirectionalSearch();
+            BlockExaminer[] source = req.parameters.examiners();
+            Object[] keys = new Object[source.length];
+            for (int i = 0; i < source.length; i++) {
+                keys[i] = source[i].getSearchKey();
+            }
+            examiners = Arrays.asList(keys);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof PathKey))
+                return false;
+            PathKey k = (PathKey) o;
+            return fromX == k.fromX && fromY == k.fromY && fromZ == k.fromZ && toX == k.toX && toY == k.toY
+                    && toZ == k.toZ && maxIterations == k.maxIterations && Double.compare(margin, k.margin) == 0
+                    && bidirectional == k.bidirectional && Objects.equals(world, k.world)
+                    && examiners.equals(k.examiners);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(world, fromX, fromY, fromZ, toX, toY, toZ, margin, maxIterations, bidirectional,
+                    examiners);
+        }
+    }
+
     public static final class PathRequest {
         private final Location from;
         private final int maxIterations;
@@ -477,6 +1042,21 @@ public class AsyncChunkCache {
         }
     }
 
+    private static class PendingSearch {
+        private final Location from;
+        private final int prefetchRadius;
+        private final CompletableFuture<Path> result = new CompletableFuture<>();
+        private final Supplier<Path> search;
+        private final Location to;
+
+        private PendingSearch(Location from, Location to, int prefetchRadius, Supplier<Path> search) {
+            this.from = from;
+            this.to = to;
+            this.prefetchRadius = prefetchRadius;
+            this.search = search;
+        }
+    }
+
     private static class Rect {
         final int minX, minZ, maxX, maxZ;
 
@@ -498,6 +1078,10 @@ public class AsyncChunkCache {
     }
 
     private class SnapshotProvider {
+        // immutable holders so that providers shared between threads (e.g. parallel HPA builds) never see a
+        // mismatched chunk and position
+        private LastChunk<PalettedChunk> lastChunk;
+        private LastChunk<ChunkSnapshot> lastSnapshot;
         private final World world;
 
         SnapshotProvider(World world) {
@@ -505,6 +1089,9 @@ public class AsyncChunkCache {
         }
 
         public ChunkSnapshot get(int cx, int cz) {
+            LastChunk<ChunkSnapshot> last = lastSnapshot;
+            if (last != null && last.cx == cx && last.cz == cz)
+                return last.chunk;
             CompletableFuture<ChunkSnapshot> chunk = getAsync(cx, cz);
             if (!chunk.isDone() && Thread.currentThread() instanceof ForkJoinWorkerThread) {
                 try {
@@ -514,14 +1101,56 @@ public class AsyncChunkCache {
                     throw new CompletionException(e);
                 }
             }
-            return chunk.join();
+            ChunkSnapshot snapshot = chunk.join();
+            lastSnapshot = new LastChunk<>(cx, cz, snapshot);
+            return snapshot;
         }
 
         public CompletableFuture<ChunkSnapshot> getAsync(int cx, int cz) {
             return fetchChunkSnapshotAsync(world, cx, cz);
         }
+
+        public PalettedChunk getPaletted(int cx, int cz) {
+            LastChunk<PalettedChunk> last = lastChunk;
+            if (last != null && last.cx == cx && last.cz == cz)
+                return last.chunk;
+            ChunkKey key = new ChunkKey(world.getUID(), cx, cz);
+            PalettedChunk chunk = palettedCache.get(key);
+            if (chunk == null) {
+                int stripe = getInvalidationStripe((long) cx << 32 | cz & 0xFFFFFFFFL);
+                long invalidated = invalidations.get(stripe);
+                chunk = PalettedChunk.convert(world, get(cx, cz));
+                chunk.expiry = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : Long.MAX_VALUE;
+                PalettedChunk raced = palettedCache.putIfAbsent(key, chunk);
+                if (raced != null) {
+                    chunk = raced;
+                } else if (invalidations.get(stripe) != invalidated) {
+                    // converted from blocks that changed meanwhile, only this search may still use it
+                    palettedCacheBytes.addAndGet(chunk.sizeBytes());
+                    removePaletted(key, chunk);
+                } else {
+                    palettedCacheBytes.addAndGet(chunk.sizeBytes());
+                    // the paletted copy replaces the snapshot
+                    CompletableFuture<ChunkSnapshot> snapshot = snapshotCache.get(key);
+                    if (snapshot != null && snapshot.isDone()) {
+                        removeSnapshot(key, snapshot, false);
+                    }
+                    trimPalettedCache();
+                }
+            }
+            chunk.lastAccess = System.nanoTime();
+            lastChunk = new LastChunk<>(cx, cz, chunk);
+            return chunk;
+        }
+    }
+
+    private static int getInvalidationStripe(long packedChunk) {
+        return Long.hashCode(packedChunk) * 0x9E3779B9 >>> 32 - INVALIDATION_STRIPE_BITS;
     }
 
+    private static final int INVALIDATION_STRIPE_BITS = 8;
+    private static final int INVALIDATION_STRIPES = 1 << INVALIDATION_STRIPE_BITS;
+    private static final int MAX_CACHED_PATHS = 1024;
     private static MethodHandle WORLD_GET_CHUNK_AT_ASYNC;
     private static MethodHandle WORLD_GET_CHUNKS_AT_ASYNC;
     static {
@@ -2,6 +2,8 @@ package net.citizensnpcs.api.astar.pathfinder;
 
 import java.util.List;
 
+import net.citizensnpcs.api.astar.pathfinder.PathPoint.PathCallback;
+
 public interface BlockExaminer {
     /**
      * Determines if the entity can stand at this position (checks block below for support). First STANDABLE result wins
@@ -15,6 +17,30 @@ public interface BlockExaminer {
 
     float getCost(BlockSource source, PathPoint point);
 
+    /**
+     * Returns a key that is equal for examiners giving identical results on identical blocks, used to share the results
+     * of path searches between NPCs. Defaults to the examiner itself, so that only searches using the same instance are
+     * shared. Examiners with settings should include every setting that affects their results.
+     *
+     * @return The equivalence key
+     */
+    default Object getSearchKey() {
+        return this;
+    }
+
+    /**
+     * Returns whether results from this examiner may be memoised for the duration of a single search. Cacheable
+     * examiners must return the same {@link #canStandAt} and {@link #isPassable} result for a position whenever it is
+     * reached the same way (from the side and one block lower, or otherwise), and the same {@link #getCost} for a
+     * position regardless of how it was reached. Positions where {@link PathPoint#addCallback(PathCallback)} is called
+     * are always re-examined.
+     *
+     * @return Whether results can be cached
+     */
+    default boolean isCacheable() {
+        return false;
+    }
+
     /**
      * Determines if the entity can pass through the block at this position. First PASSABLE result wins during
      * evaluation.
@@ -32,6 +58,9 @@ public interface BlockExaminer {
     }
 
     public static interface ReplacementNeighbourGenerator extends BlockExaminer {
+        /**
+         * @return The neighbours of the point, or <code>null</code> to use the default neighbours
+         */
         public List<PathPoint> getNeighbours(BlockSource source, PathPoint point);
     }
 
@@ -25,5 +25,70 @@ public abstract class BlockSource {
         return getMaterialAt(pos.getBlockX(), pos.getBlockY(), pos.getBlockZ());
     }
 
+    private int findYWithinBounds() {
+        for (int y = 0; y <= HEIGHT_SEARCH_LIMIT; y++) {
+            if (isYWithinBounds(y))
+                return y;
+            if (isYWithinBounds(-y))
+                return -y;
+        }
+        return Integer.MIN_VALUE;
+    }
+
+    /**
+     * Returns the highest y coordinate for which {@link #isYWithinBounds(int)} holds. Sources that know their bounds
+     * should override this, the default searches for them assuming that the bounds are contiguous.
+     *
+     * @return The highest y coordinate, or <code>-1</code> if no y coordinate is within bounds
+     */
+    public int getMaxHeight() {
+        int anchor = findYWithinBounds();
+        if (anchor == Integer.MIN_VALUE)
+            return -1;
+        int lo = anchor, hi = HEIGHT_SEARCH_LIMIT;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >> 1;
+            if (isYWithinBounds(mid)) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the lowest y coordinate for which {@link #isYWithinBounds(int)} holds. Sources that know their bounds
+     * should override this, see {@link #getMaxHeight()}.
+     *
+     * @return The lowest y coordinate, or <code>0</code> if no y coordinate is within bounds
+     */
+    public int getMinHeight() {
+        int anchor = findYWithinBounds();
+        if (anchor == Integer.MIN_VALUE)
+            return 0;
+        int lo = -HEIGHT_SEARCH_LIMIT, hi = anchor;
+        while (lo < hi) {
+            int mid = (lo + hi) >> 1;
+            if (isYWithinBounds(mid)) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the {@link MinecraftBlockExaminer} material traits of the block at the given position, see
+     * {@link MinecraftBlockExaminer#getTraits(Material)}.
+     */
+    public int getTraitsAt(int x, int y, int z) {
+        return MinecraftBlockExaminer.getTraits(getMaterialAt(x, y, z));
+    }
+
     public abstract boolean isYWithinBounds(int y);
+
+    // vanilla worlds are limited to y -2032..2031
+    private static final int HEIGHT_SEARCH_LIMIT = 2048;
 }
@@ -81,6 +81,16 @@ public abstract class CachingChunkBlockSource<T> extends BlockSource {
         return SUPPORT_GET_TYPE ? world.getType(x, y, z) : world.getBlockAt(x, y, z).getType();
     }
 
+    @Override
+    public int getMaxHeight() {
+        return SpigotUtil.getMaxHeight(world);
+    }
+
+    @Override
+    public int getMinHeight() {
+        return SpigotUtil.getMinHeight(world);
+    }
+
     @SuppressWarnings("unchecked")
     private T getSpecific(int x, int z) {
         int xx = (x >> 4) - chunkX;
@@ -0,0 +1,238 @@
+package net.citizensnpcs.api.astar.pathfinder;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.BlockExplodeEvent;
+import org.bukkit.event.block.BlockFadeEvent;
+import org.bukkit.event.block.BlockFormEvent;
+import org.bukkit.event.block.BlockFromToEvent;
+import org.bukkit.event.block.BlockPistonExtendEvent;
+import org.bukkit.event.block.BlockPistonRetractEvent;
+import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.block.LeavesDecayEvent;
+import org.bukkit.event.entity.EntityChangeBlockEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.plugin.Plugin;
+
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.citizensnpcs.api.CitizensAPI;
+import net.citizensnpcs.api.hpastar.HPAGraph;
+import net.citizensnpcs.api.util.schedulers.SchedulerTask;
+
+/**
+ * Listens for block changes and, once per tick, invalidates the affected chunks in every registered
+ * {@link AsyncChunkCache}, {@link FlowFieldCache} and {@link HPAGraph}. Changes are batched per chunk so a large
+ * explosion or a burst of flowing liquid only costs one invalidation per chunk. Graphs are told about the individual
+ * blocks that changed so they only need to repair the clusters containing them.
+ */
+public class ChunkInvalidationFeed implements Listener {
+    private final List<AsyncChunkCache> caches = new CopyOnWriteArrayList<>();
+    private Map<UUID, DirtyBatch> dirty = new HashMap<>();
+    private final List<FlowFieldCache> flowFields = new CopyOnWriteArrayList<>();
+    private final List<RegisteredGraph> graphs = new CopyOnWriteArrayList<>();
+    private SchedulerTask task;
+
+    public void addCache(AsyncChunkCache cache) {
+        caches.add(cache);
+    }
+
+    /**
+     * Rebuilds the flow fields of the given cache that cover changed chunks. The cache is only accessed on the main
+     * thread.
+     */
+    public void addFlowFieldCache(FlowFieldCache cache) {
+        flowFields.add(cache);
+    }
+
+    private void flush() {
+        Map<UUID, DirtyBatch> batch;
+        synchronized (this) {
+            if (dirty.isEmpty())
+                return;
+            batch = dirty;
+            dirty = new HashMap<>();
+        }
+        for (Map.Entry<UUID, DirtyBatch> entry : batch.entrySet()) {
+            DirtyBatch changes = entry.getValue();
+            for (AsyncChunkCache cache : caches) {
+                cache.invalidateChunks(entry.getKey(), changes.chunks);
+            }
+            for (FlowFieldCache cache : flowFields) {
+                cache.markDirty(entry.getKey(), changes.chunks);
+            }
+            for (RegisteredGraph registered : graphs) {
+                if (!registered.world.equals(entry.getKey()))
+                    continue;
+                for (LongIterator itr = changes.blocks.iterator(); itr.hasNext();) {
+                    long key = itr.nextLong();
+                    registered.graph.markDirtyBlock((int) (key >> 38), (int) (key << 52 >> 52),
+                            (int) (key << 26 >> 38));
+                }
+                for (LongIterator itr = changes.wholeChunks.iterator(); itr.hasNext();) {
+                    long key = itr.nextLong();
+                    registered.graph.markDirtyChunk((int) (key >> 32), (int) key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks the chunk containing the given block as changed. Called by the built-in event handlers, but may also be
+     * called for changes made without firing events (e.g. by world editing plugins).
+     */
+    public synchronized void markDirty(Block block) {
+        int x = block.getX(), y = block.getY(), z = block.getZ();
+        DirtyBatch changes = dirty.computeIfAbsent(block.getWorld().getUID(), uuid -> new DirtyBatch());
+        changes.chunks.add(packChunk(x >> 4, z >> 4));
+        changes.blocks.add((x & 0x3FFFFFFL) << 38 | (z & 0x3FFFFFFL) << 12 | (y & 0xFFFL));
+    }
+
+    /**
+     * Marks a whole chunk as changed when the individual blocks aren't known.
+     */
+    public synchronized void markDirty(World world, int chunkX, int chunkZ) {
+        DirtyBatch changes = dirty.computeIfAbsent(world.getUID(), uuid -> new DirtyBatch());
+        changes.chunks.add(packChunk(chunkX, chunkZ));
+        changes.wholeChunks.add(packChunk(chunkX, chunkZ));
+    }
+
+    private void markDirty(Collection<Block> blocks) {
+        for (Block block : blocks) {
+            markDirty(block);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBreak(BlockBreakEvent event) {
+        markDirty(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockExplode(BlockExplodeEvent event) {
+        markDirty(event.blockList());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockFade(BlockFadeEvent event) {
+        markDirty(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockForm(BlockFormEvent event) {
+        markDirty(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockFromTo(BlockFromToEvent event) {
+        // liquid flowing into a block, or a dragon egg teleporting
+        markDirty(event.getBlock());
+        markDirty(event.getToBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPistonExtend(BlockPistonExtendEvent event) {
+        markDirty(event.getBlock());
+        // the piston head moves into this cell even when nothing is pushed
+        markDirty(event.getBlock().getRelative(event.getDirection()));
+        for (Block block : event.getBlocks()) {
+            markDirty(block.getRelative(event.getDirection()));
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPistonRetract(BlockPistonRetractEvent event) {
+        markDirty(event.getBlock());
+        markDirty(event.getBlocks());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPlace(BlockPlaceEvent event) {
+        markDirty(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityChangeBlock(EntityChangeBlockEvent event) {
+        markDirty(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityExplode(EntityExplodeEvent event) {
+        markDirty(event.blockList());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onLeavesDecay(LeavesDecayEvent event) {
+        markDirty(event.getBlock());
+    }
+
+    /**
+     * Forwards changes in the given world to the graph via {@link HPAGraph#markDirtyBlock(int, int, int)}.
+     */
+    public void registerGraph(World world, HPAGraph graph) {
+        graphs.add(new RegisteredGraph(world.getUID(), graph));
+    }
+
+    public void removeCache(AsyncChunkCache cache) {
+        caches.remove(cache);
+    }
+
+    public void removeFlowFieldCache(FlowFieldCache cache) {
+        flowFields.remove(cache);
+    }
+
+    public void start(Plugin plugin) {
+        if (task != null)
+            return;
+        Bukkit.getPluginManager().registerEvents(this, plugin);
+        task = CitizensAPI.getScheduler().runTaskTimer(this::flush, 1, 1);
+    }
+
+    public void stop() {
+        if (task == null)
+            return;
+        HandlerList.unregisterAll(this);
+        task.cancel();
+        task = null;
+        synchronized (this) {
+            dirty.clear();
+        }
+    }
+
+    public void unregisterGraph(HPAGraph graph) {
+        graphs.removeIf(registered -> registered.graph == graph);
+    }
+
+    private static class DirtyBatch {
+        private final LongOpenHashSet blocks = new LongOpenHashSet();
+        private final LongOpenHashSet chunks = new LongOpenHashSet();
+        private final LongOpenHashSet wholeChunks = new LongOpenHashSet();
+    }
+
+    private static class RegisteredGraph {
+        private final HPAGraph graph;
+        private final UUID world;
+
+        private RegisteredGraph(UUID world, HPAGraph graph) {
+            this.world = world;
+            this.graph = graph;
+        }
+    }
+
+    private static long packChunk(int chunkX, int chunkZ) {
+        return (long) chunkX << 32 | chunkZ & 0xFFFFFFFFL;
+    }
+}
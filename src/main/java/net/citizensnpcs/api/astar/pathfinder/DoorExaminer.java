@@ -32,6 +32,16 @@ public class DoorExaminer implements BlockExaminer {
         return 0F;
     }
 
+    @Override
+    public Object getSearchKey() {
+        return DoorExaminer.class;
+    }
+
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     @Override
     public PassableState isPassable(BlockSource source, PathPoint point) {
         Material in = source.getMaterialAt(point.getVector());
@@ -80,6 +90,11 @@ public class DoorExaminer implements BlockExaminer {
             tryArmSwing(npc);
         }
 
+        @Override
+        public PathCallback copy() {
+            return new DoorOpener();
+        }
+
         @Override
         public void onReached(NPC npc, Block point) {
             Location doorCentre = point.getLocation().add(0.5, 0, 0.5);
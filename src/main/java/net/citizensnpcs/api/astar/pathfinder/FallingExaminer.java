@@ -1,5 +1,6 @@
 package net.citizensnpcs.api.astar.pathfinder;
 
+import java.util.Arrays;
 import java.util.List;
 
 import org.bukkit.util.Vector;
@@ -26,20 +27,16 @@ public class FallingExaminer implements AdditionalNeighbourGenerator {
                 int x = base.getBlockX() + dx;
                 int z = base.getBlockZ() + dz;
 
-                if (!MinecraftBlockExaminer.canStandIn(source.getMaterialAt(x, base.getBlockY(), z),
-                        source.getBlockDataAt(x, base.getBlockY(), z))
-                        || MinecraftBlockExaminer.canStandOn(source.getMaterialAt(x, base.getBlockY() - 1, z),
-                                source.getBlockDataAt(x, base.getBlockY() - 1, z)))
+                if (!MinecraftBlockExaminer.canStandIn(source, x, base.getBlockY(), z)
+                        || MinecraftBlockExaminer.canStandOn(source, x, base.getBlockY() - 1, z))
                     continue;
 
                 for (int dy = 2; dy <= maxFallDistance; dy++) {
                     if (!source.isYWithinBounds(base.getBlockY() - dy))
                         break;
 
-                    if (MinecraftBlockExaminer.canStandIn(source.getMaterialAt(x, base.getBlockY() - dy + 1, z),
-                            source.getBlockDataAt(x, base.getBlockY() - dy + 1, z))
-                            && MinecraftBlockExaminer.canStandOn(source.getMaterialAt(x, base.getBlockY() - dy, z),
-                                    source.getBlockDataAt(x, base.getBlockY() - dy, z))) {
+                    if (MinecraftBlockExaminer.canStandIn(source, x, base.getBlockY() - dy + 1, z)
+                            && MinecraftBlockExaminer.canStandOn(source, x, base.getBlockY() - dy, z)) {
                         Vector vector = new Vector(x + 0.5, base.getBlockY() - dy, z + 0.5);
                         PathPoint next = point.createAtOffset(vector, (dy + 1) * 2.5f);
                         next.setPathVectors(ImmutableList.of(new Vector(x + 0.5, base.getBlockY(), z + 0.5), vector));
@@ -61,6 +58,16 @@ public class FallingExaminer implements AdditionalNeighbourGenerator {
         return 0;
     }
 
+    @Override
+    public Object getSearchKey() {
+        return Arrays.asList(FallingExaminer.class, maxFallDistance);
+    }
+
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     @Override
     public PassableState isPassable(BlockSource source, PathPoint point) {
         return PassableState.IGNORE;
@@ -0,0 +1,296 @@
+package net.citizensnpcs.api.astar.pathfinder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Function;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.util.Vector;
+
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.citizensnpcs.api.astar.IntFloatHeap;
+
+/**
+ * An integration field of walking distances to a single target, shared by every NPC heading for that target. Instead
+ * of each NPC running its own search, the field is computed once by expanding outwards from the target over a box of
+ * blocks around it, and each NPC then follows the field downhill from wherever it stands.
+ *
+ * When the target moves within the box the field is repaired rather than recomputed: the old distance of a block plus
+ * the old distance of the new target position is still the length of a valid path, so the expansion from the new
+ * target only visits blocks that it brings closer. The box is recentred and the field rebuilt once the target nears
+ * its edge.
+ *
+ * @see net.citizensnpcs.api.ai.PathfinderType#CITIZENS_FLOW_FIELD
+ * @see FlowFieldCache
+ */
+public class FlowField {
+    private BlockSource blockSource;
+    private final float[] cost;
+    private final IntFloatHeap heap = new IntFloatHeap(256);
+    private final int height;
+    private int minX, minY, minZ;
+    private final int radius;
+    private final int sizeXZ;
+    private final int sizeY;
+    private final Function<Location, BlockSource> sources;
+    private int targetCell = -1;
+    private int targetX, targetY, targetZ;
+    private final byte[] walkable;
+    private World world;
+
+    /**
+     * @param sources
+     *            Supplies the blocks around the target whenever the field is rebuilt
+     * @param radius
+     *            The horizontal distance from the target covered by the field
+     * @param height
+     *            The vertical distance from the target covered by the field
+     */
+    public FlowField(Function<Location, BlockSource> sources, int radius, int height) {
+        this.sources = sources;
+        this.radius = radius;
+        this.height = height;
+        this.sizeXZ = radius * 2 + 1;
+        this.sizeY = height * 2 + 1;
+        this.cost = new float[sizeXZ * sizeXZ * sizeY];
+        this.walkable = new byte[cost.length];
+    }
+
+    private int cellAt(int x, int y, int z) {
+        return ((y - minY) * sizeXZ + (z - minZ)) * sizeXZ + (x - minX);
+    }
+
+    private boolean contains(int x, int y, int z) {
+        return x >= minX && x < minX + sizeXZ && y >= minY && y < minY + sizeY && z >= minZ && z < minZ + sizeXZ;
+    }
+
+    /**
+     * Returns the neighbouring cell with the lowest distance to the target, or -1 if no neighbour is closer.
+     */
+    private int descend(int cell) {
+        int x = minX + cell % sizeXZ, z = minZ + cell / sizeXZ % sizeXZ, y = minY + cell / (sizeXZ * sizeXZ);
+        int best = -1;
+        float bestCost = cost[cell];
+        for (int dir = 0; dir < DX.length; dir++) {
+            boolean diagonal = DX[dir] != 0 && DZ[dir] != 0;
+            for (int dy = diagonal ? 0 : -1; dy <= (diagonal ? 0 : 1); dy++) {
+                int nx = x + DX[dir], ny = y + dy, nz = z + DZ[dir];
+                if (!contains(nx, ny, nz))
+                    continue;
+                int next = cellAt(nx, ny, nz);
+                if (cost[next] >= bestCost || !isStep(x, y, z, nx, ny, nz))
+                    continue;
+                best = next;
+                bestCost = cost[next];
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Propagates the distances of the queued cells outwards until no cell can be improved.
+     */
+    private void expand() {
+        while (!heap.isEmpty()) {
+            float key = heap.peekKey();
+            int cell = heap.pop();
+            int x = minX + cell % sizeXZ, z = minZ + cell / sizeXZ % sizeXZ, y = minY + cell / (sizeXZ * sizeXZ);
+            for (int dir = 0; dir < DX.length; dir++) {
+                boolean diagonal = DX[dir] != 0 && DZ[dir] != 0;
+                for (int dy = diagonal ? 0 : -1; dy <= (diagonal ? 0 : 1); dy++) {
+                    int nx = x + DX[dir], ny = y + dy, nz = z + DZ[dir];
+                    if (!contains(nx, ny, nz))
+                        continue;
+                    int next = cellAt(nx, ny, nz);
+                    float nextCost = key + (diagonal ? DIAGONAL_COST : dy == 0 ? STRAIGHT_COST : STEP_COST);
+                    // compare first so that settled cells never query blocks again
+                    if (nextCost >= cost[next] || !isStep(x, y, z, nx, ny, nz))
+                        continue;
+                    cost[next] = nextCost;
+                    heap.update(next, nextCost);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Whether the box covered by the field overlaps any of the given chunks, packed as in
+     *         {@link ChunkInvalidationFeed}, of the given world
+     */
+    boolean overlaps(UUID worldId, LongSet chunks) {
+        if (targetCell == -1 || world == null || !world.getUID().equals(worldId))
+            return false;
+        for (LongIterator itr = chunks.iterator(); itr.hasNext();) {
+            long key = itr.nextLong();
+            int chunkX = (int) (key >> 32), chunkZ = (int) key;
+            if (chunkX >= minX >> 4 && chunkX <= minX + sizeXZ - 1 >> 4 && chunkZ >= minZ >> 4
+                    && chunkZ <= minZ + sizeXZ - 1 >> 4)
+                return true;
+        }
+        return false;
+    }
+
+    private int findStandingCell(Location location) {
+        int x = location.getBlockX(), y = location.getBlockY(), z = location.getBlockZ();
+        // entities in the middle of a jump or fall are snapped to the ground below them
+        for (int dy = 0; dy <= MAX_SNAP_DISTANCE; dy++) {
+            if (contains(x, y - dy, z) && isWalkable(cellAt(x, y - dy, z), x, y - dy, z))
+                return cellAt(x, y - dy, z);
+        }
+        return -1;
+    }
+
+    /**
+     * @return The walking distance from the given location to the target, or {@link Float#POSITIVE_INFINITY} if the
+     *         location is outside the field or cannot reach the target
+     */
+    public float getCost(Location location) {
+        if (targetCell == -1)
+            return Float.POSITIVE_INFINITY;
+        int cell = findStandingCell(location);
+        return cell == -1 ? Float.POSITIVE_INFINITY : cost[cell];
+    }
+
+    /**
+     * Follows the field downhill from the given location towards the target.
+     *
+     * @param maxLength
+     *            The maximum number of blocks in the path
+     * @return The path, or <code>null</code> if the location is outside the field or cannot reach the target
+     */
+    public Path getPath(Location from, int maxLength) {
+        if (targetCell == -1)
+            return null;
+        int cell = findStandingCell(from);
+        if (cell == -1 || cost[cell] == Float.POSITIVE_INFINITY)
+            return null;
+        List<Vector> path = new ArrayList<>();
+        path.add(toVector(cell));
+        while (cell != targetCell && path.size() < maxLength) {
+            cell = descend(cell);
+            if (cell == -1)
+                break;
+            path.add(toVector(cell));
+        }
+        return new Path(path);
+    }
+
+    private boolean hasHeadroom(int x, int y, int z) {
+        return blockSource.isYWithinBounds(y + 2) && MinecraftBlockExaminer.canStandIn(blockSource, x, y + 2, z);
+    }
+
+    private boolean isStep(int x, int y, int z, int nx, int ny, int nz) {
+        if (!isWalkable(cellAt(nx, ny, nz), nx, ny, nz))
+            return false;
+        // climbing onto the higher block, or dropping off it, passes through the block above the head at the lower one
+        if (ny > y)
+            return hasHeadroom(x, y, z);
+        if (ny < y)
+            return hasHeadroom(nx, ny, nz);
+        if (x == nx || z == nz)
+            return true;
+        // don't cut corners, diagonal steps are always level so both corners are in the field
+        return isWalkable(cellAt(nx, y, z), nx, y, z) && isWalkable(cellAt(x, y, nz), x, y, nz);
+    }
+
+    private boolean isWalkable(int cell, int x, int y, int z) {
+        byte state = walkable[cell];
+        if (state == UNKNOWN) {
+            state = walkable(x, y, z) ? WALKABLE : BLOCKED;
+            walkable[cell] = state;
+        }
+        return state == WALKABLE;
+    }
+
+    /**
+     * Discards the cached walkability of the field so that the next {@link #update(Location)} rebuilds it from the
+     * current blocks.
+     */
+    public void markDirty() {
+        targetCell = -1;
+    }
+
+    private void rebuild(Location target) {
+        blockSource = sources.apply(target);
+        world = target.getWorld();
+        minX = target.getBlockX() - radius;
+        minY = target.getBlockY() - height;
+        minZ = target.getBlockZ() - radius;
+        Arrays.fill(walkable, UNKNOWN);
+        Arrays.fill(cost, Float.POSITIVE_INFINITY);
+        targetCell = findStandingCell(target);
+        if (targetCell == -1) {
+            // keep the box centred on the target so that the next update can retry
+            targetCell = cellAt(target.getBlockX(), target.getBlockY(), target.getBlockZ());
+        }
+        cost[targetCell] = 0;
+        heap.update(targetCell, 0);
+        expand();
+    }
+
+    private void repair(int cell) {
+        // blocks newly reached by the expansion must be read from the current world
+        blockSource = sources.apply(new Location(world, minX + radius, minY + height, minZ + radius));
+        float offset = cost[cell];
+        for (int i = 0; i < cost.length; i++) {
+            cost[i] += offset;
+        }
+        targetCell = cell;
+        cost[cell] = 0;
+        heap.update(cell, 0);
+        expand();
+    }
+
+    private Vector toVector(int cell) {
+        return new Vector(minX + cell % sizeXZ + 0.5, minY + cell / (sizeXZ * sizeXZ),
+                minZ + cell / sizeXZ % sizeXZ + 0.5);
+    }
+
+    /**
+     * Moves the target of the field. Cheap when the target stays on the same block. Otherwise the field is repaired
+     * incrementally if the target is still well inside it and reachable, or rebuilt around the target if not.
+     */
+    public void update(Location target) {
+        int x = target.getBlockX(), y = target.getBlockY(), z = target.getBlockZ();
+        if (targetCell != -1 && x == targetX && y == targetY && z == targetZ)
+            return;
+        targetX = x;
+        targetY = y;
+        targetZ = z;
+        if (targetCell != -1 && Math.abs(x - minX - radius) <= radius - radius / 4
+                && Math.abs(y - minY - height) <= height - height / 4
+                && Math.abs(z - minZ - radius) <= radius - radius / 4) {
+            int cell = findStandingCell(target);
+            if (cell == targetCell)
+                return;
+            if (cell != -1 && cost[cell] != Float.POSITIVE_INFINITY) {
+                repair(cell);
+                return;
+            }
+        }
+        rebuild(target);
+    }
+
+    protected boolean walkable(int x, int y, int z) {
+        if (!blockSource.isYWithinBounds(y - 1) || !blockSource.isYWithinBounds(y)
+                || !blockSource.isYWithinBounds(y + 1))
+            return false;
+        return MinecraftBlockExaminer.canStandIn(blockSource, x, y, z)
+                && MinecraftBlockExaminer.canStandIn(blockSource, x, y + 1, z)
+                && MinecraftBlockExaminer.canStandOn(blockSource, x, y - 1, z);
+    }
+
+    private static final byte BLOCKED = 2;
+    private static final float DIAGONAL_COST = (float) Math.sqrt(2);
+    private static final int[] DX = { 1, -1, 0, 0, 1, 1, -1, -1 };
+    private static final int[] DZ = { 0, 0, 1, -1, 1, -1, 1, -1 };
+    private static final int MAX_SNAP_DISTANCE = 2;
+    private static final float STEP_COST = (float) Math.sqrt(2);
+    private static final float STRAIGHT_COST = 1;
+    private static final byte UNKNOWN = 0;
+    private static final byte WALKABLE = 1;
+}
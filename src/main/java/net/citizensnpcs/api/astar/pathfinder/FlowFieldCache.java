@@ -0,0 +1,95 @@
+package net.citizensnpcs.api.astar.pathfinder;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+
+import org.bukkit.entity.Entity;
+
+import it.unimi.dsi.fastutil.longs.LongSet;
+
+/**
+ * Shares one {@link FlowField} per target entity between every NPC chasing it, so that the pathfinding cost of a crowd
+ * no longer grows with its size. Fields that haven't been requested for a while are dropped.
+ */
+public class FlowFieldCache {
+    private final Map<UUID, CachedField> fields = new HashMap<>();
+    private final int height;
+    private long lastPrune;
+    private final int radius;
+
+    /**
+     * @see FlowField#FlowField(java.util.function.Function, int, int)
+     */
+    public FlowFieldCache(int radius, int height) {
+        this.radius = radius;
+        this.height = height;
+    }
+
+    /**
+     * Returns the field leading to the given target, creating it or moving it to the target's current location as
+     * needed. Must be called from the main thread.
+     */
+    public FlowField get(Entity target) {
+        long now = System.currentTimeMillis();
+        if (now - lastPrune > EXPIRY_MILLIS) {
+            prune(now);
+        }
+        CachedField cached = fields.get(target.getUniqueId());
+        if (cached == null) {
+            cached = new CachedField(
+                    new FlowField(location -> new ChunkBlockSource(location, radius), radius, height));
+            fields.put(target.getUniqueId(), cached);
+        }
+        cached.lastAccess = now;
+        cached.field.update(target.getLocation());
+        return cached.field;
+    }
+
+    /**
+     * Rebuilds every field from the current blocks on its next use, e.g. after blocks changed.
+     */
+    public void markDirty() {
+        for (CachedField cached : fields.values()) {
+            cached.field.markDirty();
+        }
+    }
+
+    /**
+     * Rebuilds the fields covering any of the given changed chunks on their next use.
+     *
+     * @see ChunkInvalidationFeed#addFlowFieldCache(FlowFieldCache)
+     */
+    void markDirty(UUID world, LongSet chunks) {
+        for (CachedField cached : fields.values()) {
+            if (cached.field.overlaps(world, chunks)) {
+                cached.field.markDirty();
+            }
+        }
+    }
+
+    private void prune(long now) {
+        lastPrune = now;
+        for (Iterator<CachedField> itr = fields.values().iterator(); itr.hasNext();) {
+            if (now - itr.next().lastAccess > EXPIRY_MILLIS) {
+                itr.remove();
+            }
+        }
+    }
+
+    public void remove(Entity target) {
+        fields.remove(target.getUniqueId());
+    }
+
+    private static class CachedField {
+        private final FlowField field;
+        private long lastAccess;
+
+        private CachedField(FlowField field) {
+            this.field = field;
+        }
+    }
+
+    private static final long EXPIRY_MILLIS = 30000;
+}
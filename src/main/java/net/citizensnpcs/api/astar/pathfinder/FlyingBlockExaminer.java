@@ -44,6 +44,16 @@ public class FlyingBlockExaminer implements ReplacementNeighbourGenerator {
         return neighbours;
     }
 
+    @Override
+    public Object getSearchKey() {
+        return FlyingBlockExaminer.class;
+    }
+
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     @Override
     public PassableState isPassable(BlockSource source, PathPoint point) {
         Vector pos = point.getVector();
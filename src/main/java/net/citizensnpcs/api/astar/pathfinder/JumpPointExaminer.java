@@ -0,0 +1,148 @@
+package net.citizensnpcs.api.astar.pathfinder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bukkit.Material;
+import org.bukkit.util.Vector;
+
+import net.citizensnpcs.api.astar.pathfinder.BlockExaminer.ReplacementNeighbourGenerator;
+
+/**
+ * Prunes neighbours in the style of jump point search while crossing open, flat ground of uniform cost. A node whose
+ * surrounding blocks are all plain floor only continues in the direction it was entered from: straight moves jump ahead
+ * until they reach the goal column or ground that isn't open any more, and diagonal moves advance one block while
+ * jumping straight along both of their axes. Anywhere near a change in height, cost, doors, liquids or obstacles the
+ * default neighbours are used, so the examiners still see every irregular block.
+ *
+ * Ground only counts as open if it is plain (see {@link #isPlain(BlockSource, int, int, int)}) and every examiner of
+ * the search accepts it at no cost and without callbacks, so custom examiners still see the positions that are
+ * skipped.
+ *
+ * Add this examiner alongside the usual examiners, it doesn't judge whether blocks are standable or passable itself.
+ */
+public class JumpPointExaminer implements ReplacementNeighbourGenerator {
+    private final int maxJump;
+
+    public JumpPointExaminer() {
+        this(DEFAULT_MAX_JUMP);
+    }
+
+    /**
+     * @param maxJump
+     *            The maximum number of blocks skipped by a single jump
+     */
+    public JumpPointExaminer(int maxJump) {
+        this.maxJump = maxJump;
+    }
+
+    @Override
+    public float getCost(BlockSource source, PathPoint point) {
+        return 0;
+    }
+
+    @Override
+    public List<PathPoint> getNeighbours(BlockSource source, PathPoint point) {
+        PathPoint parent = point.getParentPoint();
+        if (parent == null)
+            return null;
+        Vector pos = point.getVector();
+        int x = pos.getBlockX(), y = pos.getBlockY(), z = pos.getBlockZ();
+        Vector parentPos = parent.getVector();
+        int dx = Integer.signum(x - parentPos.getBlockX()), dz = Integer.signum(z - parentPos.getBlockZ());
+        if (parentPos.getBlockY() != y || (dx == 0 && dz == 0) || !isOpen(source, point, x, y, z))
+            return null;
+
+        Vector goal = point.getGoal();
+        List<PathPoint> neighbours = new ArrayList<>(3);
+        if (dx != 0 && dz != 0) {
+            int jump = jump(source, point, goal, x, y, z, dx, 0);
+            neighbours.add(point.createChild(x + dx * jump, y, z));
+            jump = jump(source, point, goal, x, y, z, 0, dz);
+            neighbours.add(point.createChild(x, y, z + dz * jump));
+            neighbours.add(point.createChild(x + dx, y, z + dz));
+        } else {
+            int jump = jump(source, point, goal, x, y, z, dx, dz);
+            neighbours.add(point.createChild(x + dx * jump, y, z + dz * jump));
+        }
+        return neighbours;
+    }
+
+    @Override
+    public Object getSearchKey() {
+        return Arrays.asList(JumpPointExaminer.class, maxJump);
+    }
+
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
+    private boolean isClear(BlockSource source, PathPoint point, int x, int y, int z) {
+        return isPlain(source, x, y, z)
+                && (!(point instanceof VectorNode) || ((VectorNode) point).isUniformChild(x, y, z));
+    }
+
+    private boolean isOpen(BlockSource source, PathPoint point, int x, int y, int z) {
+        for (int dx = -1; dx <= 1; dx++) {
+            for (int dz = -1; dz <= 1; dz++) {
+                if ((dx != 0 || dz != 0) && !isClear(source, point, x + dx, y, z + dz))
+                    return false;
+            }
+        }
+        return isPlain(source, x, y, z);
+    }
+
+    @Override
+    public PassableState isPassable(BlockSource source, PathPoint point) {
+        return PassableState.IGNORE;
+    }
+
+    /**
+     * Returns whether the given position can be walked through at the base cost: a full, ordinary block to stand on
+     * with nothing but air-like blocks at the feet and head.
+     */
+    protected boolean isPlain(BlockSource source, int x, int y, int z) {
+        if (!source.isYWithinBounds(y - 1) || !source.isYWithinBounds(y + 1))
+            return false;
+        Material below = source.getMaterialAt(x, y - 1, z);
+        if (below == Material.SOUL_SAND || below == Material.ICE)
+            return false;
+        int traits = MinecraftBlockExaminer.getTraits(below);
+        if ((traits & MinecraftBlockExaminer.TRAIT_STANDABLE) == 0 || (traits & IRREGULAR_FLOOR) != 0)
+            return false;
+        Material in = source.getMaterialAt(x, y, z);
+        Material above = source.getMaterialAt(x, y + 1, z);
+        return in != MinecraftBlockExaminer.WEB && above != MinecraftBlockExaminer.WEB
+                && MinecraftBlockExaminer.getTraits(in) == MinecraftBlockExaminer.TRAIT_PASSABLE
+                && MinecraftBlockExaminer.getTraits(above) == MinecraftBlockExaminer.TRAIT_PASSABLE;
+    }
+
+    /**
+     * Walks straight from an open position and returns the number of blocks to the first position that is the goal
+     * column or no longer open, capped at the maximum jump.
+     */
+    private int jump(BlockSource source, PathPoint point, Vector goal, int x, int y, int z, int dx, int dz) {
+        int px = dz != 0 ? 1 : 0, pz = dx != 0 ? 1 : 0;
+        int step = 1;
+        for (; step < maxJump; step++) {
+            int cx = x + dx * step, cz = z + dz * step;
+            if (cx == goal.getBlockX() && cz == goal.getBlockZ())
+                break;
+            // the previous position was open, so only the row ahead of this one is still unchecked
+            int fx = cx + dx, fz = cz + dz;
+            if (!isClear(source, point, fx - px, y, fz - pz) || !isClear(source, point, fx, y, fz)
+                    || !isClear(source, point, fx + px, y, fz + pz))
+                break;
+        }
+        return step;
+    }
+
+    private static final int DEFAULT_MAX_JUMP = 32;
+    private static final int IRREGULAR_FLOOR = MinecraftBlockExaminer.TRAIT_CLIMBABLE
+            | MinecraftBlockExaminer.TRAIT_DOOR | MinecraftBlockExaminer.TRAIT_GATE
+            | MinecraftBlockExaminer.TRAIT_LIQUID | MinecraftBlockExaminer.TRAIT_SLAB
+            | MinecraftBlockExaminer.TRAIT_TRAPDOOR | MinecraftBlockExaminer.TRAIT_UNJUMPABLE
+            | MinecraftBlockExaminer.TRAIT_WATERLOGGABLE;
+}
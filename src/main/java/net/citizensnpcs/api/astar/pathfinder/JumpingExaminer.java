@@ -1,5 +1,6 @@
 package net.citizensnpcs.api.astar.pathfinder;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.function.Supplier;
 
@@ -97,6 +98,19 @@ public class JumpingExaminer implements AdditionalNeighbourGenerator {
         return 0;
     }
 
+    /**
+     * Samples the current height and speed, so that the key is only valid for searches starting now.
+     */
+    @Override
+    public Object getSearchKey() {
+        return Arrays.asList(JumpingExaminer.class, entityHeight.get(), speed.get());
+    }
+
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     private boolean isClearColumn(BlockSource source, int x, int y, int z) {
         int height = entityHeight.get();
         for (int h = 0; h < height; h++) {
@@ -119,6 +133,11 @@ public class JumpingExaminer implements AdditionalNeighbourGenerator {
             this.jumpPoint = jumpPoint;
         }
 
+        @Override
+        public PathCallback copy() {
+            return new JumpCallback(jumpPoint);
+        }
+
         @Override
         public void onReached(NPC npc, Block point) {
             reached = true;
@@ -1,5 +1,6 @@
 package net.citizensnpcs.api.astar.pathfinder;
 
+import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Random;
@@ -25,6 +26,7 @@ import com.google.common.collect.Lists;
 
 import net.citizensnpcs.api.astar.pathfinder.PathPoint.PathCallback;
 import net.citizensnpcs.api.npc.NPC;
+import net.citizensnpcs.api.util.Messaging;
 import net.citizensnpcs.api.util.SpigotUtil;
 
 public class MinecraftBlockExaminer implements BlockExaminer {
@@ -43,17 +45,17 @@ public class MinecraftBlockExaminer implements BlockExaminer {
         if (!source.isYWithinBounds(pos.getBlockY()))
             return StandableState.NOT_STANDABLE;
 
-        Material below = source.getMaterialAt(pos.getBlockX(), pos.getBlockY() - 1, pos.getBlockZ());
-        Material in = source.getMaterialAt(pos);
+        int x = pos.getBlockX(), y = pos.getBlockY(), z = pos.getBlockZ();
+        int below = source.getTraitsAt(x, y - 1, z);
+        int in = source.getTraitsAt(x, y, z);
 
-        boolean canStand = canStandOn(below,
-                source.getBlockDataAt(pos.getBlockX(), pos.getBlockY() - 1, pos.getBlockZ())) || isLiquid(in, below)
-                || isClimbable(below);
+        boolean canStand = canStandOn(source, below, x, y - 1, z) || ((in | below) & TRAIT_LIQUID) != 0
+                || (below & TRAIT_CLIMBABLE) != 0;
 
         if (!canStand)
             return StandableState.NOT_STANDABLE;
 
-        if (!canJumpOn(below)) {
+        if ((below & TRAIT_UNJUMPABLE) != 0) {
             if (point.getParentPoint() == null)
                 return StandableState.NOT_STANDABLE;
 
@@ -73,8 +75,8 @@ public class MinecraftBlockExaminer implements BlockExaminer {
         Material in = source.getMaterialAt(pos);
         if (above == WEB || in == WEB || below == Material.SOUL_SAND || below == Material.ICE)
             return 2F;
-        if ((npc == null || !isWaterMob(npc.getCosmeticEntity()))
-                && isLiquidOrWaterlogged(source.getMaterialAt(pos), source.getBlockDataAt(pos))) {
+        if ((npc == null || !isWaterMob(npc.getCosmeticEntity())) && isLiquidOrWaterlogged(source, getTraits(in),
+                pos.getBlockX(), pos.getBlockY(), pos.getBlockZ())) {
             if (in == Material.LAVA || in.name().equals("STATIONARY_LAVA"))
                 return 4F;
 
@@ -83,23 +85,29 @@ public class MinecraftBlockExaminer implements BlockExaminer {
         return 0F; // TODO: add light level-specific costs like Minecraft?
     }
 
-    private boolean isClimbable(Material mat) {
-        return CLIMBABLE.contains(mat);
+    @Override
+    public Object getSearchKey() {
+        return Arrays.asList(MinecraftBlockExaminer.class, npc != null && isWaterMob(npc.getCosmeticEntity()));
+    }
+
+    @Override
+    public boolean isCacheable() {
+        return true;
     }
 
     @Override
     public PassableState isPassable(BlockSource source, PathPoint point) {
         Vector pos = point.getVector();
-        Material in = source.getMaterialAt(pos);
-        Material above = source.getMaterialAt(pos.getBlockX(), pos.getBlockY() + 1, pos.getBlockZ());
-        Material below = source.getMaterialAt(pos.getBlockX(), pos.getBlockY() - 1, pos.getBlockZ());
+        int x = pos.getBlockX(), y = pos.getBlockY(), z = pos.getBlockZ();
+        int in = source.getTraitsAt(x, y, z);
+        int above = source.getTraitsAt(x, y + 1, z);
 
-        if (isClimbable(in) && (isClimbable(above) || isClimbable(below))) {
+        if ((in & TRAIT_CLIMBABLE) != 0
+                && ((above & TRAIT_CLIMBABLE) != 0 || (source.getTraitsAt(x, y - 1, z) & TRAIT_CLIMBABLE) != 0)) {
             point.addCallback(new LadderClimber());
             return PassableState.PASSABLE;
         }
-        if (!canStandIn(in, source.getBlockDataAt(pos.getBlockX(), pos.getBlockY(), pos.getBlockZ()))
-                || !canStandIn(above, source.getBlockDataAt(pos.getBlockX(), pos.getBlockY() + 1, pos.getBlockZ())))
+        if (!canStandIn(source, in, x, y, z) || !canStandIn(source, above, x, y + 1, z))
             return PassableState.IMPASSABLE;
 
         return PassableState.PASSABLE;
@@ -108,6 +116,11 @@ public class MinecraftBlockExaminer implements BlockExaminer {
     private class LadderClimber implements PathCallback {
         boolean added = false;
 
+        @Override
+        public PathCallback copy() {
+            return new LadderClimber();
+        }
+
         @Override
         public void run(final NPC npc, Block point, List<Block> path, int index) {
             if (added || npc.data().<Boolean> get("running-ladder", false)) {
@@ -157,8 +170,47 @@ public class MinecraftBlockExaminer implements BlockExaminer {
         }
     }
 
-    private static boolean canJumpOn(Material mat) {
-        return !NOT_JUMPABLE.contains(mat);
+    private static int buildTraits(Material mat) {
+        int traits = 0;
+        if (!mat.isSolid()) {
+            traits |= TRAIT_PASSABLE;
+        }
+        if (!UNWALKABLE.contains(mat) && mat.isSolid()) {
+            traits |= TRAIT_STANDABLE;
+        }
+        if (LIQUIDS.contains(mat)) {
+            traits |= TRAIT_LIQUID;
+        }
+        if (CLIMBABLE.contains(mat)) {
+            traits |= TRAIT_CLIMBABLE;
+        }
+        if (NOT_JUMPABLE.contains(mat)) {
+            traits |= TRAIT_UNJUMPABLE;
+        }
+        String name = mat.name();
+        if (name.contains("DOOR") && !name.contains("TRAPDOOR")) {
+            traits |= TRAIT_DOOR;
+        }
+        if (name.contains("GATE") && !name.contains("GATEWAY")) {
+            traits |= TRAIT_GATE;
+        }
+        if (SpigotUtil.isUsing1_13API() && !name.startsWith("LEGACY") && mat.isBlock()) {
+            try {
+                BlockData data = mat.createBlockData();
+                if (data instanceof Slab) {
+                    traits |= TRAIT_SLAB;
+                }
+                if (data instanceof TrapDoor) {
+                    traits |= TRAIT_TRAPDOOR;
+                }
+                if (data instanceof Waterlogged) {
+                    traits |= TRAIT_WATERLOGGABLE;
+                }
+            } catch (Throwable t) {
+                Messaging.debug("Unable to read block data traits of", mat, t);
+            }
+        }
+        return traits;
     }
 
     public static boolean canStandIn(Block... blocks) {
@@ -171,26 +223,42 @@ public class MinecraftBlockExaminer implements BlockExaminer {
         return passable;
     }
 
+    /**
+     * Checks {@link #canStandIn(Material, BlockData)} for the block at the given position, only fetching the
+     * {@link BlockData} when the material's traits require it.
+     */
+    public static boolean canStandIn(BlockSource source, int x, int y, int z) {
+        return canStandIn(source, source.getTraitsAt(x, y, z), x, y, z);
+    }
+
+    private static boolean canStandIn(BlockSource source, int traits, int x, int y, int z) {
+        if ((traits & (TRAIT_SLAB | TRAIT_TRAPDOOR)) == 0)
+            return (traits & TRAIT_PASSABLE) != 0;
+        return canStandIn(traits, source.getBlockDataAt(x, y, z));
+    }
+
     public static boolean canStandIn(Material... mat) {
         boolean passable = true;
         for (Material m : mat) {
-            passable &= !m.isSolid();
+            passable &= (getTraits(m) & TRAIT_PASSABLE) != 0;
         }
         return passable;
     }
 
     public static boolean canStandIn(Material mat, BlockData data) {
-        boolean passable = !mat.isSolid();
-        if (SpigotUtil.isUsing1_13API()) {
-            if (data instanceof Slab) {
-                Slab slab = (Slab) data;
-                if (slab.getType() != Slab.Type.BOTTOM) {
-                    passable = false;
-                }
-            } else if (data instanceof TrapDoor) {
-                TrapDoor trapdoor = (TrapDoor) data;
-                passable &= trapdoor.isOpen();
+        return canStandIn(getTraits(mat), data);
+    }
+
+    private static boolean canStandIn(int traits, BlockData data) {
+        boolean passable = (traits & TRAIT_PASSABLE) != 0;
+        if ((traits & TRAIT_SLAB) != 0 && data instanceof Slab) {
+            Slab slab = (Slab) data;
+            if (slab.getType() != Slab.Type.BOTTOM) {
+                passable = false;
             }
+        } else if ((traits & TRAIT_TRAPDOOR) != 0 && data instanceof TrapDoor) {
+            TrapDoor trapdoor = (TrapDoor) data;
+            passable &= trapdoor.isOpen();
         }
         return passable;
     }
@@ -203,16 +271,32 @@ public class MinecraftBlockExaminer implements BlockExaminer {
         return canStandIn(up, up.getRelative(BlockFace.UP));
     }
 
+    /**
+     * Checks {@link #canStandOn(Material, BlockData)} for the block at the given position, only fetching the
+     * {@link BlockData} when the material's traits require it.
+     */
+    public static boolean canStandOn(BlockSource source, int x, int y, int z) {
+        return canStandOn(source, source.getTraitsAt(x, y, z), x, y, z);
+    }
+
+    private static boolean canStandOn(BlockSource source, int traits, int x, int y, int z) {
+        if ((traits & TRAIT_STANDABLE) != 0)
+            return true;
+        if ((traits & TRAIT_TRAPDOOR) == 0)
+            return false;
+        BlockData data = source.getBlockDataAt(x, y, z);
+        return data instanceof TrapDoor && !((TrapDoor) data).isOpen();
+    }
+
     public static boolean canStandOn(Material mat) {
-        return !UNWALKABLE.contains(mat) && mat.isSolid();
+        return (getTraits(mat) & TRAIT_STANDABLE) != 0;
     }
 
     public static boolean canStandOn(Material mat, BlockData data) {
-        boolean stand = canStandOn(mat);
-        if (!stand && SpigotUtil.isUsing1_13API() && data instanceof TrapDoor) {
-            stand = !((TrapDoor) data).isOpen();
-        }
-        return stand;
+        int traits = getTraits(mat);
+        if ((traits & TRAIT_STANDABLE) != 0)
+            return true;
+        return (traits & TRAIT_TRAPDOOR) != 0 && data instanceof TrapDoor && !((TrapDoor) data).isOpen();
     }
 
     public static Location findRandomValidLocation(Location base, int xrange, int yrange) {
@@ -285,17 +369,32 @@ public class MinecraftBlockExaminer implements BlockExaminer {
         return location;
     }
 
+    /**
+     * Returns the precomputed trait bitset for the given material, see the <code>TRAIT_</code> constants.
+     *
+     * @param mat
+     *            The material, may be null
+     * @return The traits, or 0 if unknown
+     */
+    public static int getTraits(Material mat) {
+        return mat == null ? 0 : TRAITS[mat.ordinal()];
+    }
+
+    private static boolean isClimbable(Material mat) {
+        return (getTraits(mat) & TRAIT_CLIMBABLE) != 0;
+    }
+
     public static boolean isDoor(Material in) {
-        return in.name().contains("DOOR") && !in.name().contains("TRAPDOOR");
+        return (getTraits(in) & TRAIT_DOOR) != 0;
     }
 
     public static boolean isGate(Material in) {
-        return in.name().contains("GATE") && !in.name().contains("GATEWAY");
+        return (getTraits(in) & TRAIT_GATE) != 0;
     }
 
     public static boolean isLiquid(Material... materials) {
         for (Material mat : materials) {
-            if (LIQUIDS.contains(mat))
+            if ((getTraits(mat) & TRAIT_LIQUID) != 0)
                 return true;
         }
         return false;
@@ -305,14 +404,31 @@ public class MinecraftBlockExaminer implements BlockExaminer {
         return isLiquidOrWaterlogged(block.getType(), block.getBlockData());
     }
 
-    public static boolean isLiquidOrWaterlogged(Material type, BlockData data) {
-        if (isLiquid(type))
+    /**
+     * Checks {@link #isLiquidOrWaterlogged(Material, BlockData)} for the block at the given position, only fetching
+     * the {@link BlockData} when the material's traits require it.
+     */
+    public static boolean isLiquidOrWaterlogged(BlockSource source, int x, int y, int z) {
+        return isLiquidOrWaterlogged(source, source.getTraitsAt(x, y, z), x, y, z);
+    }
+
+    private static boolean isLiquidOrWaterlogged(BlockSource source, int traits, int x, int y, int z) {
+        if ((traits & TRAIT_LIQUID) != 0)
             return true;
-        if (!SpigotUtil.isUsing1_13API())
+        if ((traits & TRAIT_WATERLOGGABLE) == 0)
             return false;
+        BlockData data = source.getBlockDataAt(x, y, z);
         return data instanceof Waterlogged && ((Waterlogged) data).isWaterlogged();
     }
 
+    public static boolean isLiquidOrWaterlogged(Material type, BlockData data) {
+        int traits = getTraits(type);
+        if ((traits & TRAIT_LIQUID) != 0)
+            return true;
+        return (traits & TRAIT_WATERLOGGABLE) != 0 && data instanceof Waterlogged
+                && ((Waterlogged) data).isWaterlogged();
+    }
+
     public static boolean isWaterMob(Entity entity) {
         if (entity == null)
             return false;
@@ -326,8 +442,19 @@ public class MinecraftBlockExaminer implements BlockExaminer {
     private static final Set<Material> LIQUIDS = EnumSet.of(Material.WATER, Material.LAVA);
     private static final Set<Material> NOT_JUMPABLE = EnumSet.of(Material.SPRUCE_FENCE, Material.BIRCH_FENCE,
             Material.JUNGLE_FENCE, Material.ACACIA_FENCE, Material.DARK_OAK_FENCE);
+    public static final int TRAIT_CLIMBABLE = 1 << 3;
+    public static final int TRAIT_DOOR = 1 << 5;
+    public static final int TRAIT_GATE = 1 << 6;
+    public static final int TRAIT_LIQUID = 1 << 2;
+    public static final int TRAIT_PASSABLE = 1 << 1;
+    public static final int TRAIT_SLAB = 1 << 7;
+    public static final int TRAIT_STANDABLE = 1;
+    public static final int TRAIT_TRAPDOOR = 1 << 8;
+    public static final int TRAIT_UNJUMPABLE = 1 << 4;
+    public static final int TRAIT_WATERLOGGABLE = 1 << 9;
+    private static final int[] TRAITS;
     private static final Set<Material> UNWALKABLE = EnumSet.of(Material.AIR, Material.CACTUS);
-    private static final Material WEB = SpigotUtil.isUsing1_13API() ? Material.COBWEB : Material.valueOf("WEB");
+    static final Material WEB = SpigotUtil.isUsing1_13API() ? Material.COBWEB : Material.valueOf("WEB");
 
     static {
         if (!SpigotUtil.isUsing1_13API()) {
@@ -359,5 +486,10 @@ public class MinecraftBlockExaminer implements BlockExaminer {
                 }
             }
         }
+        Material[] materials = Material.values();
+        TRAITS = new int[materials.length];
+        for (Material mat : materials) {
+            TRAITS[mat.ordinal()] = buildTraits(mat);
+        }
     }
 }
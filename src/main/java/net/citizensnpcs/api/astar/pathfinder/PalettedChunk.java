@@ -0,0 +1,189 @@
+package net.citizensnpcs.api.astar.pathfinder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.data.BlockData;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+
+/**
+ * An immutable, palette-compressed copy of the block states of a {@link ChunkSnapshot}. Each 16x16x16 section stores
+ * its distinct {@link BlockData} once and indexes into that palette using the minimum number of bits per block, so
+ * uniform sections (all air, all stone) cost a single palette entry. The palette also stores each state's material
+ * and {@link MinecraftBlockExaminer} traits. Lookups return shared palette instances and never allocate.
+ */
+final class PalettedChunk {
+    volatile long expiry;
+    volatile long lastAccess;
+    private final int minY;
+    private final Section[] sections;
+    private final long sizeBytes;
+
+    private PalettedChunk(int minY, Section[] sections) {
+        this.minY = minY;
+        this.sections = sections;
+        long size = 16 + sections.length * 8L;
+        for (Section section : sections) {
+            size += section == null ? 0 : section.sizeBytes();
+        }
+        this.sizeBytes = size;
+    }
+
+    public BlockData getBlockData(int x, int y, int z) {
+        Section section = getSection(y);
+        return section == null ? null : section.palette[section.get(x & 15, y & 15, z & 15)];
+    }
+
+    private Section getSection(int y) {
+        int index = (y - minY) >> 4;
+        if (y < minY || index >= sections.length)
+            return null;
+        return sections[index];
+    }
+
+    public Material getType(int x, int y, int z) {
+        Section section = getSection(y);
+        return section == null ? Material.AIR : section.types[section.get(x & 15, y & 15, z & 15)];
+    }
+
+    /**
+     * @return The {@link MinecraftBlockExaminer#getTraits(Material)} of the block at the given position
+     */
+    public int getTraits(int x, int y, int z) {
+        Section section = getSection(y);
+        return section == null ? AIR_TRAITS : section.traits[section.get(x & 15, y & 15, z & 15)];
+    }
+
+    /**
+     * @return The approximate retained heap size of this chunk in bytes
+     */
+    public long sizeBytes() {
+        return sizeBytes;
+    }
+
+    /**
+     * Holds the air block data apart from the chunk class so that it is only created once a chunk is converted, as
+     * {@link Material#createBlockData()} doesn't exist before 1.13.
+     */
+    private static class Air {
+        private static final BlockData DATA = Material.AIR.createBlockData();
+        private static final Section SECTION = new Section(new BlockData[] { DATA }, new Material[] { Material.AIR },
+                new int[0]);
+    }
+
+    private static class Section {
+        private final int bitsPerEntry;
+        private final long[] data;
+        private final int entriesPerLong;
+        private final BlockData[] palette;
+        private final int[] traits;
+        private final Material[] types;
+
+        private Section(BlockData[] palette, Material[] types, int[] indices) {
+            this.palette = palette;
+            this.types = types;
+            this.traits = new int[types.length];
+            for (int i = 0; i < types.length; i++) {
+                traits[i] = MinecraftBlockExaminer.getTraits(types[i]);
+            }
+            if (palette.length == 1) {
+                bitsPerEntry = 0;
+                entriesPerLong = 0;
+                data = null;
+                return;
+            }
+            bitsPerEntry = 32 - Integer.numberOfLeadingZeros(palette.length - 1);
+            entriesPerLong = 64 / bitsPerEntry;
+            data = new long[(indices.length + entriesPerLong - 1) / entriesPerLong];
+            for (int i = 0; i < indices.length; i++) {
+                data[i / entriesPerLong] |= (long) indices[i] << (i % entriesPerLong) * bitsPerEntry;
+            }
+        }
+
+        private int get(int x, int y, int z) {
+            if (data == null)
+                return 0;
+            int index = y << 8 | z << 4 | x;
+            long word = data[index / entriesPerLong];
+            return (int) (word >>> (index % entriesPerLong) * bitsPerEntry) & ((1 << bitsPerEntry) - 1);
+        }
+
+        private long sizeBytes() {
+            return 64 + palette.length * 20L + (data == null ? 0 : 16 + data.length * 8L);
+        }
+    }
+
+    /**
+     * Converts the given snapshot. Reads every block once, so callers should run this off the main thread and cache
+     * the result.
+     */
+    public static PalettedChunk convert(World world, ChunkSnapshot snapshot) {
+        int minY = 0, maxY = 256;
+        try {
+            minY = world.getMinHeight();
+            maxY = world.getMaxHeight();
+        } catch (Throwable t) {
+        }
+        Section[] sections = new Section[(maxY - minY + 15) >> 4];
+        // share palette entries between sections of the same chunk
+        Object2IntOpenHashMap<BlockData> chunkPalette = new Object2IntOpenHashMap<>();
+        chunkPalette.defaultReturnValue(-1);
+        List<BlockData> chunkStates = new ArrayList<>();
+        Int2IntOpenHashMap local = new Int2IntOpenHashMap();
+        local.defaultReturnValue(-1);
+        List<BlockData> palette = new ArrayList<>();
+        int[] indices = new int[SECTION_VOLUME];
+        for (int s = 0; s < sections.length; s++) {
+            int baseY = minY + (s << 4);
+            if (isSectionEmpty(snapshot, s)) {
+                sections[s] = Air.SECTION;
+                continue;
+            }
+            local.clear();
+            palette.clear();
+            for (int y = 0; y < 16; y++) {
+                for (int z = 0; z < 16; z++) {
+                    for (int x = 0; x < 16; x++) {
+                        BlockData data = baseY + y < maxY ? snapshot.getBlockData(x, baseY + y, z) : Air.DATA;
+                        int global = chunkPalette.getInt(data);
+                        if (global == -1) {
+                            global = chunkStates.size();
+                            chunkPalette.put(data, global);
+                            chunkStates.add(data);
+                        }
+                        int idx = local.get(global);
+                        if (idx == -1) {
+                            idx = palette.size();
+                            local.put(global, idx);
+                            palette.add(chunkStates.get(global));
+                        }
+                        indices[y << 8 | z << 4 | x] = idx;
+                    }
+                }
+            }
+            BlockData[] states = palette.toArray(new BlockData[0]);
+            Material[] types = new Material[states.length];
+            for (int i = 0; i < states.length; i++) {
+                types[i] = states[i].getMaterial();
+            }
+            sections[s] = new Section(states, types, indices);
+        }
+        return new PalettedChunk(minY, sections);
+    }
+
+    private static boolean isSectionEmpty(ChunkSnapshot snapshot, int section) {
+        try {
+            return snapshot.isSectionEmpty(section);
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    private static final int AIR_TRAITS = MinecraftBlockExaminer.getTraits(Material.AIR);
+    private static final int SECTION_VOLUME = 16 * 16 * 16;
+}
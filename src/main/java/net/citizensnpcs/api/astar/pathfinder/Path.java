@@ -6,7 +6,9 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Deque;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 import org.bukkit.World;
@@ -54,6 +56,31 @@ public class Path implements Plan {
         this.path = path.toArray(new PathEntry[0]);
     }
 
+    private Path(PathEntry[] entries) {
+        this.path = new PathEntry[entries.length];
+        // entries share callbacks, so each callback is copied once to keep the sharing intact
+        Map<PathCallback, PathCallback> copies = new IdentityHashMap<>();
+        for (int i = 0; i < entries.length; i++) {
+            List<PathCallback> callbacks = entries[i].callbacks;
+            if (callbacks != null && !callbacks.isEmpty()) {
+                List<PathCallback> copied = new ArrayList<>(callbacks.size());
+                for (PathCallback callback : callbacks) {
+                    copied.add(copies.computeIfAbsent(callback, PathCallback::copy));
+                }
+                callbacks = copied;
+            }
+            path[i] = new PathEntry(entries[i].vector.clone(), callbacks);
+        }
+    }
+
+    /**
+     * @return A copy of this path with its own progress and its own {@link PathCallback#copy() copies} of the
+     *         callbacks, so that the same search result can be followed by several NPCs
+     */
+    public Path copy() {
+        return new Path(path);
+    }
+
     public List<Block> getBlocks(World world) {
         return Arrays.stream(path)
                 .map(p -> world.getBlockAt(p.vector.getBlockX(), p.vector.getBlockY(), p.vector.getBlockZ()))
@@ -71,6 +71,16 @@ public interface PathPoint {
     void setVector(Vector vector);
 
     public static interface PathCallback {
+        /**
+         * Returns a callback for another NPC following a copy of the same path. Callbacks that keep state between
+         * calls must return a new instance.
+         *
+         * @see Path#copy()
+         */
+        default PathCallback copy() {
+            return this;
+        }
+
         /**
          * Run once the specificed point is reached.
          *
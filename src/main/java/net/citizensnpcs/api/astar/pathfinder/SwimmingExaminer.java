@@ -1,5 +1,7 @@
 package net.citizensnpcs.api.astar.pathfinder;
 
+import java.util.Arrays;
+
 import org.bukkit.Material;
 import org.bukkit.util.Vector;
 
@@ -11,9 +13,7 @@ public class SwimmingExaminer implements BlockExaminer {
     @Override
     public StandableState canStandAt(BlockSource source, PathPoint point) {
         Vector pos = point.getVector();
-        Material in = source.getMaterialAt(pos);
-
-        if (MinecraftBlockExaminer.isLiquidOrWaterlogged(in, source.getBlockDataAt(pos)))
+        if (MinecraftBlockExaminer.isLiquidOrWaterlogged(source, pos.getBlockX(), pos.getBlockY(), pos.getBlockZ()))
             return StandableState.STANDABLE;
 
         return StandableState.IGNORE;
@@ -28,10 +28,21 @@ public class SwimmingExaminer implements BlockExaminer {
         return 0;
     }
 
+    @Override
+    public Object getSearchKey() {
+        return Arrays.asList(SwimmingExaminer.class, canSwimInLava);
+    }
+
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     @Override
     public PassableState isPassable(BlockSource source, PathPoint point) {
         Vector vector = point.getVector();
-        if (!MinecraftBlockExaminer.isLiquidOrWaterlogged(source.getMaterialAt(vector), source.getBlockDataAt(vector)))
+        if (!MinecraftBlockExaminer.isLiquidOrWaterlogged(source, vector.getBlockX(), vector.getBlockY(),
+                vector.getBlockZ()))
             return PassableState.IGNORE;
 
         Vector above = vector.clone().add(UP);
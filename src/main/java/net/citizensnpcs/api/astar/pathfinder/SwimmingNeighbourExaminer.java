@@ -1,11 +1,11 @@
 package net.citizensnpcs.api.astar.pathfinder;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
 import org.bukkit.Material;
-import org.bukkit.block.data.BlockData;
 import org.bukkit.util.Vector;
 
 import net.citizensnpcs.api.astar.pathfinder.BlockExaminer.ReplacementNeighbourGenerator;
@@ -73,6 +73,16 @@ public class SwimmingNeighbourExaminer implements ReplacementNeighbourGenerator
         return out;
     }
 
+    @Override
+    public Object getSearchKey() {
+        return Arrays.asList(SwimmingNeighbourExaminer.class, canSwimInLava);
+    }
+
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     @Override
     public PassableState isPassable(BlockSource source, PathPoint point) {
         Vector v = point.getVector();
@@ -84,12 +94,10 @@ public class SwimmingNeighbourExaminer implements ReplacementNeighbourGenerator
     }
 
     private boolean isSwimCellPassable(BlockSource source, int x, int y, int z) {
-        Material in = source.getMaterialAt(x, y, z);
-        BlockData data = source.getBlockDataAt(x, y, z);
-
-        if (!MinecraftBlockExaminer.isLiquidOrWaterlogged(in, data))
+        if (!MinecraftBlockExaminer.isLiquidOrWaterlogged(source, x, y, z))
             return false;
 
+        Material in = source.getMaterialAt(x, y, z);
         if (MinecraftBlockExaminer.isLiquid(in))
             return isSwimmableLiquid(in);
 
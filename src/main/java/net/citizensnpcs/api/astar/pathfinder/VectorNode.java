@@ -1,6 +1,7 @@
 package net.citizensnpcs.api.astar.pathfinder;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 
@@ -8,6 +9,8 @@ import org.bukkit.Location;
 import org.bukkit.util.BlockVector;
 import org.bukkit.util.Vector;
 
+import it.unimi.dsi.fastutil.longs.Long2ByteOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2FloatOpenHashMap;
 import net.citizensnpcs.api.ai.NavigatorParameters;
 import net.citizensnpcs.api.astar.AStarNode;
 import net.citizensnpcs.api.astar.Plan;
@@ -19,14 +22,26 @@ import net.citizensnpcs.api.astar.pathfinder.BlockExaminer.StandableState;
 public class VectorNode extends AStarNode implements PathPoint {
     private float blockCost = -1;
     List<PathCallback> callbacks;
-    private final PathInfo info;
+    private PathInfo info;
     Vector location;
     Vector locationCache;
     List<Vector> pathVectors;
 
     public VectorNode(VectorGoal goal, Location location, BlockSource source, NavigatorParameters params) {
+        this(goal, location, source, params, false);
+    }
+
+    /**
+     * Creates a start node. If <code>pooled</code> is true, child nodes and neighbour lists are recycled from a
+     * per-thread arena for the duration of the search and released in bulk once
+     * {@link net.citizensnpcs.api.astar.AStarMachine#runFully(net.citizensnpcs.api.astar.AStarGoal, AStarNode, int)}
+     * has built the plan. Pooled searches must be run using <code>runFully</code> and the lists returned from
+     * {@link #getNeighbours()} are only valid until the next expansion.
+     */
+    public VectorNode(VectorGoal goal, Location location, BlockSource source, NavigatorParameters params,
+            boolean pooled) {
         this(null, new BlockVector(location.getBlockX(), location.getBlockY(), location.getBlockZ()),
-                new PathInfo(source, params, goal));
+                new PathInfo(source, params, goal, pooled ? NodeArena.acquire() : null));
     }
 
     public VectorNode(VectorNode parent, Vector location, PathInfo info) {
@@ -48,8 +63,25 @@ public class VectorNode extends AStarNode implements PathPoint {
         return new Path(orderedPath(), info.goal.getGoalVector());
     }
 
+    /**
+     * Builds a plan that follows the path to this node and then the path of a node from the reverse search (see
+     * {@link #createReverseRoot(VectorGoal)}) that reached the same position, back to the goal.
+     */
+    public Plan buildPlan(VectorNode reverse) {
+        List<VectorNode> nodes = new ArrayList<>();
+        for (VectorNode node : this.<VectorNode> orderedPath()) {
+            nodes.add(node);
+        }
+        for (VectorNode node = (VectorNode) reverse.getParent(); node != null; node = (VectorNode) node.getParent()) {
+            nodes.add(node);
+        }
+        return new Path(nodes, info.goal.getGoalVector());
+    }
+
     @Override
     public VectorNode createChild(int x, int y, int z) {
+        if (info.arena != null)
+            return info.arena.get(this, x, y, z, info);
         return new VectorNode(this, new BlockVector(x, y, z), info);
     }
 
@@ -60,6 +92,23 @@ public class VectorNode extends AStarNode implements PathPoint {
         return node;
     }
 
+    /**
+     * Creates the root node of a search in the opposite direction, from the goal of this node's search back to the
+     * given goal. The reverse search shares this search's block source, examiners and node pool.
+     */
+    public VectorNode createReverseRoot(VectorGoal reverseGoal) {
+        Vector goal = info.goal.getGoalVector();
+        return new VectorNode(null, new BlockVector(goal.getBlockX(), goal.getBlockY(), goal.getBlockZ()),
+                new PathInfo(info.blockSource, info.params, reverseGoal, info.arena));
+    }
+
+    @Override
+    protected void discard() {
+        if (info != null && info.arena != null) {
+            info.arena.release(this);
+        }
+    }
+
     public float distance(Vector goal) {
         int dx = Math.abs(location.getBlockX() - goal.getBlockX());
         int dy = Math.abs(location.getBlockY() - goal.getBlockY());
@@ -84,12 +133,53 @@ public class VectorNode extends AStarNode implements PathPoint {
         return true;
     }
 
+    private boolean examinePassable(PathPoint mod) {
+        boolean canStand = false;
+        BlockExaminer found = null;
+        for (BlockExaminer examiner : info.params.examiners()) {
+            StandableState state = examiner.canStandAt(info.blockSource, mod);
+            if (state == StandableState.STANDABLE) {
+                canStand = true;
+
+                // quickly check this examiner
+                if (examiner.isPassable(info.blockSource, mod) == PassableState.PASSABLE)
+                    return true;
+                found = examiner;
+                break;
+            }
+        }
+        if (!canStand)
+            return false;
+
+        boolean passable = false;
+        for (BlockExaminer examiner : info.params.examiners()) {
+            if (examiner == found)
+                continue;
+            PassableState state = examiner.isPassable(info.blockSource, mod);
+            if (state == PassableState.PASSABLE) {
+                passable = true;
+                break;
+            }
+        }
+        return passable;
+    }
+
     private float getBlockCost() {
         if (blockCost == -1) {
+            long key = 0;
+            if (info.costCache != null) {
+                key = getPackedPosition();
+                float cached = info.costCache.get(key);
+                if (!Float.isNaN(cached))
+                    return blockCost = cached;
+            }
             blockCost = 0;
             for (BlockExaminer examiner : info.params.examiners()) {
                 blockCost += examiner.getCost(info.blockSource, this);
             }
+            if (info.costCache != null) {
+                info.costCache.put(key, blockCost);
+            }
         }
         return blockCost;
     }
@@ -116,11 +206,18 @@ public class VectorNode extends AStarNode implements PathPoint {
                 ((AdditionalNeighbourGenerator) examiner).addNeighbours(info.blockSource, this, neighbours);
             }
         }
-        List<AStarNode> nodes = new ArrayList<>(neighbours.size());
+        List<AStarNode> nodes;
+        if (info.arena != null) {
+            nodes = info.arena.nodes;
+            nodes.clear();
+        } else {
+            nodes = new ArrayList<>(neighbours.size());
+        }
         for (PathPoint sub : neighbours) {
-            if (!isPassable(sub))
+            if (!isPassable(sub)) {
+                recycle(sub);
                 continue;
-
+            }
             nodes.add((AStarNode) sub);
         }
         return nodes;
@@ -131,7 +228,13 @@ public class VectorNode extends AStarNode implements PathPoint {
     }
 
     public List<PathPoint> getNeighbours(BlockSource source, PathPoint point, boolean checkPassable) {
-        List<PathPoint> neighbours = new ArrayList<>(26);
+        List<PathPoint> neighbours;
+        if (info.arena != null) {
+            neighbours = info.arena.neighbours;
+            neighbours.clear();
+        } else {
+            neighbours = new ArrayList<>(26);
+        }
         for (int x = -1; x <= 1; x++) {
             for (int y = -1; y <= 1; y++) {
                 int modY = location.getBlockY() + y;
@@ -142,8 +245,9 @@ public class VectorNode extends AStarNode implements PathPoint {
                         continue;
 
                     if (checkPassable && x != 0 && z != 0) {
-                        if (!isPassable(point.createChild(location.getBlockX() + x, modY, location.getBlockZ()))
-                                || !isPassable(point.createChild(location.getBlockX(), modY, location.getBlockZ() + z)))
+                        if (!isProbePassable(point.createChild(location.getBlockX() + x, modY, location.getBlockZ()))
+                                || !isProbePassable(
+                                        point.createChild(location.getBlockX(), modY, location.getBlockZ() + z)))
                             continue;
                     }
                     neighbours.add(point.createChild(location.getBlockX() + x, modY, location.getBlockZ() + z));
@@ -153,6 +257,15 @@ public class VectorNode extends AStarNode implements PathPoint {
         return neighbours;
     }
 
+    /**
+     * @return The block position of this node packed into a long, which is unique for positions within 2^25 blocks
+     *         horizontally and 2^11 blocks vertically of the origin
+     */
+    public long getPackedPosition() {
+        return ((long) location.getBlockX() & 0x3FFFFFF) << 38 | ((long) location.getBlockZ() & 0x3FFFFFF) << 12
+                | ((long) location.getBlockY() & 0xFFF);
+    }
+
     @Override
     public PathPoint getParentPoint() {
         return (PathPoint) getParent();
@@ -163,6 +276,35 @@ public class VectorNode extends AStarNode implements PathPoint {
         return pathVectors;
     }
 
+    /**
+     * Returns the neighbours of this node for a search running backwards from the goal (see
+     * {@link #createReverseRoot(VectorGoal)}), i.e. the positions from which a forward move ends at this node.
+     * Examiners may judge a position by the move that reached it, such as the vanilla rule against stepping up onto
+     * fences, so each move is examined in the forward direction with this node as the child of the neighbour. Only the
+     * default neighbours are generated, as generated moves such as jumps and falls can't be reversed.
+     */
+    public Iterable<AStarNode> getReverseNeighbours() {
+        List<PathPoint> candidates = getNeighbours(info.blockSource, this, false);
+        List<AStarNode> nodes;
+        if (info.arena != null) {
+            nodes = info.arena.nodes;
+            nodes.clear();
+        } else {
+            nodes = new ArrayList<>(candidates.size());
+        }
+        for (PathPoint candidate : candidates) {
+            VectorNode from = (VectorNode) candidate;
+            // the footing of the neighbour itself is judged as if it were reached from this node, unless that
+            // reversed move is a step up, which examiners may treat differently
+            if ((!isStepUp(this, from) && !isPassable(from)) || !isForwardMove(from)) {
+                recycle(from);
+                continue;
+            }
+            nodes.add(from);
+        }
+        return nodes;
+    }
+
     @Override
     public Vector getVector() {
         if (locationCache == null) {
@@ -180,37 +322,101 @@ public class VectorNode extends AStarNode implements PathPoint {
         return (distance(goal) + getBlockCost()) * TIEBREAKER;
     }
 
-    private boolean isPassable(PathPoint mod) {
-        boolean canStand = false;
-        BlockExaminer found = null;
-        for (BlockExaminer examiner : info.params.examiners()) {
-            StandableState state = examiner.canStandAt(info.blockSource, mod);
-            if (state == StandableState.STANDABLE) {
-                canStand = true;
-
-                // quickly check this examiner
-                if (examiner.isPassable(info.blockSource, mod) == PassableState.PASSABLE)
-                    return true;
-                found = examiner;
-                break;
-            }
+    /**
+     * Examines the move from the given neighbour to this node as the forward search would: this position as a child of
+     * the neighbour, and for diagonal moves the two corners at this node's height.
+     */
+    private boolean isForwardMove(VectorNode from) {
+        int x = location.getBlockX(), y = location.getBlockY(), z = location.getBlockZ();
+        int fromX = from.location.getBlockX(), fromZ = from.location.getBlockZ();
+        if (fromX != x && fromZ != z) {
+            if (!isProbePassable(from.createChild(x, y, fromZ)) || !isProbePassable(from.createChild(fromX, y, z)))
+                return false;
         }
-        if (!canStand)
+        VectorNode probe = from.createChild(x, y, z);
+        boolean passable = isPassable(probe);
+        if (passable && callbacks == null && probe.callbacks != null) {
+            // this node may have been opened without being examined, see getReverseNeighbours
+            callbacks = probe.callbacks;
+        }
+        recycle(probe);
+        return passable;
+    }
+
+    private boolean isPassable(PathPoint mod) {
+        if (info.passableCache == null || !(mod instanceof VectorNode))
+            return examinePassable(mod);
+
+        // verdicts are cached per position and per approach: the vanilla examiner rejects stepping up onto
+        // unjumpable blocks from the side, so that case is classified separately
+        VectorNode node = (VectorNode) mod;
+        AStarNode parent = node.getParent();
+        int approach = parent == null ? 0
+                : parent instanceof VectorNode && isStepUp((VectorNode) parent, node) ? 1 : 2;
+        long key = node.getPackedPosition();
+        int shift = approach * 2;
+        byte verdicts = info.passableCache.get(key);
+        int verdict = (verdicts >> shift) & VERDICT_MASK;
+        if (verdict == VERDICT_PASSABLE)
+            return true;
+        if (verdict == VERDICT_IMPASSABLE)
             return false;
 
-        boolean passable = false;
-        for (BlockExaminer examiner : info.params.examiners()) {
-            if (examiner == found)
-                continue;
-            PassableState state = examiner.isPassable(info.blockSource, mod);
-            if (state == PassableState.PASSABLE) {
-                passable = true;
-                break;
-            }
+        int callbacksBefore = node.callbacks == null ? 0 : node.callbacks.size();
+        boolean passable = examinePassable(mod);
+        if (verdict == VERDICT_UNKNOWN) {
+            // examiners that attach callbacks (doors, ladders) must see every candidate node
+            int callbacksAfter = node.callbacks == null ? 0 : node.callbacks.size();
+            verdict = callbacksAfter != callbacksBefore ? VERDICT_UNCACHEABLE
+                    : passable ? VERDICT_PASSABLE : VERDICT_IMPASSABLE;
+            info.passableCache.put(key, (byte) (verdicts | verdict << shift));
         }
         return passable;
     }
 
+    private boolean isProbePassable(PathPoint probe) {
+        boolean passable = isPassable(probe);
+        recycle(probe);
+        return passable;
+    }
+
+    /**
+     * Returns whether the examiners accept the given position as a child of this node at no cost and without attaching
+     * callbacks, i.e. whether a move may skip over it. See {@link JumpPointExaminer}.
+     */
+    boolean isUniformChild(int x, int y, int z) {
+        VectorNode probe = createChild(x, y, z);
+        boolean uniform = isPassable(probe) && probe.callbacks == null && probe.getBlockCost() == 0;
+        recycle(probe);
+        return uniform;
+    }
+
+    @Override
+    protected void onSearchFinished() {
+        if (info.arena != null) {
+            info.arena.releaseAll();
+        }
+    }
+
+    private void recycle(PathPoint point) {
+        if (info.arena != null && point instanceof VectorNode) {
+            info.arena.release((VectorNode) point);
+        }
+    }
+
+    private void reuse(VectorNode parent, int x, int y, int z, PathInfo info) {
+        reset(parent);
+        this.info = info;
+        blockCost = -1;
+        callbacks = null;
+        pathVectors = null;
+        if (location instanceof BlockVector) {
+            location.setX(x).setY(y).setZ(z);
+        } else {
+            location = new BlockVector(x, y, z);
+        }
+    }
+
     @Override
     public void setPathVectors(List<Vector> vectors) {
         this.pathVectors = vectors;
@@ -221,17 +427,111 @@ public class VectorNode extends AStarNode implements PathPoint {
         this.location = vector;
     }
 
+    /**
+     * Per-thread allocation arena for pooled searches. Nodes are handed out sequentially and either returned
+     * individually when discarded during expansion or all at once when the search finishes.
+     */
+    private static class NodeArena {
+        private int allocated;
+        private final List<VectorNode> free = new ArrayList<>();
+        private boolean inUse;
+        private final List<PathPoint> neighbours = new ArrayList<>(26);
+        private final List<AStarNode> nodes = new ArrayList<>(26);
+        private VectorNode[] pool = new VectorNode[INITIAL_POOL_SIZE];
+
+        private VectorNode get(VectorNode parent, int x, int y, int z, PathInfo info) {
+            VectorNode node;
+            if (!free.isEmpty()) {
+                node = free.remove(free.size() - 1);
+            } else if (allocated < pool.length && pool[allocated] != null) {
+                node = pool[allocated++];
+            } else {
+                node = new VectorNode(parent, new BlockVector(x, y, z), info);
+                if (allocated == pool.length) {
+                    pool = Arrays.copyOf(pool, pool.length << 1);
+                }
+                pool[allocated++] = node;
+                return node;
+            }
+            node.reuse(parent, x, y, z, info);
+            return node;
+        }
+
+        private void release(VectorNode node) {
+            free.add(node);
+        }
+
+        private void releaseAll() {
+            // drop references so that retained nodes don't keep the previous search's block source alive
+            for (int i = 0; i < allocated; i++) {
+                VectorNode node = pool[i];
+                node.reset(null);
+                node.info = null;
+                node.callbacks = null;
+                node.pathVectors = null;
+            }
+            if (pool.length > MAX_RETAINED_POOL_SIZE) {
+                pool = new VectorNode[INITIAL_POOL_SIZE];
+            }
+            allocated = 0;
+            free.clear();
+            neighbours.clear();
+            nodes.clear();
+            inUse = false;
+        }
+
+        private static NodeArena acquire() {
+            NodeArena arena = ARENAS.get();
+            if (arena.inUse) {
+                arena = new NodeArena();
+            }
+            arena.inUse = true;
+            return arena;
+        }
+
+        private static final ThreadLocal<NodeArena> ARENAS = ThreadLocal.withInitial(NodeArena::new);
+        private static final int INITIAL_POOL_SIZE = 256;
+        private static final int MAX_RETAINED_POOL_SIZE = 1 << 16;
+    }
+
     private static class PathInfo {
+        private final NodeArena arena;
         private final BlockSource blockSource;
+        private final Long2FloatOpenHashMap costCache;
         private final VectorGoal goal;
         private final NavigatorParameters params;
+        private final Long2ByteOpenHashMap passableCache;
 
-        private PathInfo(BlockSource source, NavigatorParameters params, VectorGoal goal) {
+        private PathInfo(BlockSource source, NavigatorParameters params, VectorGoal goal, NodeArena arena) {
             this.blockSource = source;
             this.params = params;
             this.goal = goal;
+            this.arena = arena;
+            boolean cacheable = true;
+            for (BlockExaminer examiner : params.examiners()) {
+                cacheable &= examiner.isCacheable();
+            }
+            if (cacheable) {
+                costCache = new Long2FloatOpenHashMap();
+                costCache.defaultReturnValue(Float.NaN);
+                passableCache = new Long2ByteOpenHashMap();
+            } else {
+                costCache = null;
+                passableCache = null;
+            }
         }
     }
 
+    private static boolean isStepUp(VectorNode parent, VectorNode child) {
+        Vector from = parent.location, to = child.location;
+        return (from.getBlockX() != to.getBlockX() || from.getBlockZ() != to.getBlockZ())
+                && to.getBlockY() - from.getBlockY() == 1;
+    }
+
     private static final float TIEBREAKER = 1.01f;
+    private static final int VERDICT_IMPASSABLE = 2;
+    private static final int VERDICT_MASK = 3;
+    private static final int VERDICT_PASSABLE = 1;
+    private static final int VERDICT_UNCACHEABLE = 3;
+    private static final int VERDICT_UNKNOWN = 0;
 }
\ No newline at end of file
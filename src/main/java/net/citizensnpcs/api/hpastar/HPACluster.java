@@ -2,10 +2,15 @@ package net.citizensnpcs.api.hpastar;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.PriorityQueue;
 import java.util.Queue;
+import java.util.Set;
 
+import org.bukkit.util.Vector;
+
+import it.unimi.dsi.fastutil.HashCommon;
 import it.unimi.dsi.fastutil.longs.Long2FloatOpenHashMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 
@@ -15,11 +20,13 @@ public class HPACluster {
     final int clusterX;
     final int clusterY;
     final int clusterZ;
+    private final Long2ObjectOpenHashMap<Long2ObjectOpenHashMap<int[]>> concretePaths = new Long2ObjectOpenHashMap<>();
     private final HPAGraph graph;
     private boolean intraConnected;
-    private final int level;
+    final int level;
     private final List<HPAGraphNode> nodes = new ArrayList<>();
     private final Long2ObjectOpenHashMap<HPAGraphNode> nodesByPosition = new Long2ObjectOpenHashMap<>();
+    private Long2ObjectOpenHashMap<HPAGraphNode> retired;
     private final byte[] walkableCache;
 
     public HPACluster(HPAGraph graph, int level, int clusterSize, int clusterHeight, int clusterX, int clusterY,
@@ -65,6 +72,25 @@ public class HPACluster {
         nodes.add(node);
     }
 
+    /**
+     * Detaches this cluster from the graph at its level and forgets its cached walkability so it can be reconnected
+     * after blocks inside it change. Nodes are set aside and reused if an entrance is recreated at the same position,
+     * so higher levels still referencing them stay valid when the entrances didn't change.
+     *
+     * @see #finishRepair()
+     */
+    void beginRepair() {
+        disconnect();
+        synchronized (concretePaths) {
+            concretePaths.clear();
+        }
+        retired = new Long2ObjectOpenHashMap<>(nodesByPosition);
+        nodes.clear();
+        nodesByPosition.clear();
+        Arrays.fill(walkableCache, (byte) -1);
+        intraConnected = false;
+    }
+
     public void buildFrom(List<HPACluster> clusters) {
         for (HPACluster other : clusters) {
             for (HPAGraphNode node : other.nodes) {
@@ -95,6 +121,27 @@ public class HPACluster {
         }
     }
 
+    /**
+     * Memoises the concrete block path between two of this cluster's nodes until the cluster is repaired.
+     */
+    void cacheConcretePath(HPAGraphNode from, HPAGraphNode to, List<Vector> path) {
+        int[] coords = new int[path.size() * 3];
+        for (int i = 0; i < path.size(); i++) {
+            Vector vector = path.get(i);
+            coords[i * 3] = vector.getBlockX();
+            coords[i * 3 + 1] = vector.getBlockY();
+            coords[i * 3 + 2] = vector.getBlockZ();
+        }
+        long fromKey = packPosition(from.x, from.y, from.z);
+        synchronized (concretePaths) {
+            Long2ObjectOpenHashMap<int[]> paths = concretePaths.get(fromKey);
+            if (paths == null) {
+                concretePaths.put(fromKey, paths = new Long2ObjectOpenHashMap<>());
+            }
+            paths.put(packPosition(to.x, to.y, to.z), coords);
+        }
+    }
+
     public void connect(HPACluster other, Direction direction) {
         HPAEntrance entrance = null;
         switch (direction) {
@@ -452,13 +499,64 @@ public class HPACluster {
                 && z >= clusterZ && z < clusterZ + clusterSize;
     }
 
-    private HPAGraphNode getOrAddNode(int x, int y, int z) {
+    void disconnect() {
+        for (HPAGraphNode node : nodes) {
+            node.disconnect(level);
+        }
+    }
+
+    /**
+     * Stops reusing nodes set aside by {@link #beginRepair()}. Nodes that weren't recreated are no longer part of this
+     * cluster, so any parent cluster referencing them must be rebuilt.
+     */
+    void finishRepair() {
+        retired = null;
+    }
+
+    /**
+     * @return A copy of the memoised concrete path between the given nodes in either direction, or <code>null</code>
+     */
+    List<Vector> getConcretePath(HPAGraphNode from, HPAGraphNode to) {
+        long fromKey = packPosition(from.x, from.y, from.z), toKey = packPosition(to.x, to.y, to.z);
+        int[] coords;
+        boolean reversed = false;
+        synchronized (concretePaths) {
+            coords = getConcretePath(fromKey, toKey);
+            if (coords == null) {
+                coords = getConcretePath(toKey, fromKey);
+                reversed = true;
+            }
+        }
+        if (coords == null)
+            return null;
+        int length = coords.length / 3;
+        List<Vector> path = new ArrayList<>(length);
+        for (int i = 0; i < length; i++) {
+            int index = (reversed ? length - 1 - i : i) * 3;
+            path.add(new Vector(coords[index], coords[index + 1], coords[index + 2]));
+        }
+        return path;
+    }
+
+    private int[] getConcretePath(long fromKey, long toKey) {
+        Long2ObjectOpenHashMap<int[]> paths = concretePaths.get(fromKey);
+        return paths == null ? null : paths.get(toKey);
+    }
+
+    List<HPAGraphNode> getNodes() {
+        return nodes;
+    }
+
+    HPAGraphNode getOrAddNode(int x, int y, int z) {
         long key = packPosition(clusterX + x, clusterY + y, clusterZ + z);
         HPAGraphNode existing = nodesByPosition.get(key);
         if (existing != null)
             return existing;
 
-        HPAGraphNode node = new HPAGraphNode(this.clusterX + x, this.clusterY + y, this.clusterZ + z);
+        HPAGraphNode node = retired == null ? null : retired.remove(key);
+        if (node == null) {
+            node = new HPAGraphNode(this.clusterX + x, this.clusterY + y, this.clusterZ + z);
+        }
         addNodeReference(node);
         if (intraConnected) {
             Long2ObjectOpenHashMap<HPAGraphNode> unresolvedTargets = new Long2ObjectOpenHashMap<>();
@@ -476,6 +574,37 @@ public class HPACluster {
         return node;
     }
 
+    /**
+     * Hashes the walkability of every block in this cluster, filling the walkable cache so that building the cluster
+     * afterwards doesn't read any blocks again.
+     *
+     * @return The hash, or <code>0</code> if no block is walkable
+     */
+    long getWalkableFingerprint() {
+        long hash = 0, bits = 0;
+        boolean walkable = false;
+        int index = 0;
+        for (int y = 0; y < clusterHeight; y++) {
+            for (int z = 0; z < clusterSize; z++) {
+                for (int x = 0; x < clusterSize; x++) {
+                    if (offsetWalkable(x, y, z)) {
+                        bits |= 1L << index;
+                        walkable = true;
+                    }
+                    if (++index == Long.SIZE) {
+                        // the increment keeps runs of unwalkable words from hashing to nothing
+                        hash = HashCommon.mix(hash ^ bits) + 1;
+                        bits = 0;
+                        index = 0;
+                    }
+                }
+            }
+        }
+        if (!walkable)
+            return 0;
+        return HashCommon.mix(hash ^ bits) | 1;
+    }
+
     public boolean hasWalkableNodes() {
         for (int x = 0; x < clusterSize; x++) {
             for (int y = 0; y < clusterHeight; y++) {
@@ -503,6 +632,21 @@ public class HPACluster {
         }
     }
 
+    /**
+     * @return Whether the given node is one of this cluster's entrance nodes rather than a temporary query node
+     */
+    boolean isEntrance(HPAGraphNode node) {
+        return nodesByPosition.get(packPosition(node.x, node.y, node.z)) == node;
+    }
+
+    /**
+     * Marks nodes added directly through {@link #getOrAddNode(int, int, int)} as already connected to each other, so
+     * later nodes are connected incrementally.
+     */
+    void markIntraConnected() {
+        intraConnected = true;
+    }
+
     private boolean offsetWalkable(int x, int y, int z) {
         int index = ((y * clusterSize) + z) * clusterSize + x;
         byte cached = walkableCache[index];
@@ -535,6 +679,22 @@ public class HPACluster {
         nodesByPosition.remove(packPosition(node.x, node.y, node.z));
     }
 
+    /**
+     * @return The positions of this cluster's nodes and its edges at its level, for comparing the abstract graph
+     *         before and after a repair
+     */
+    Set<Object> signature() {
+        Set<Object> signature = new HashSet<>();
+        for (HPAGraphNode node : nodes) {
+            signature.add(packPosition(node.x, node.y, node.z));
+            for (HPAGraphEdge edge : node.getEdges(level)) {
+                signature.add(Arrays.asList(packPosition(edge.from.x, edge.from.y, edge.from.z),
+                        packPosition(edge.to.x, edge.to.y, edge.to.z), edge.type, edge.weight));
+            }
+        }
+        return signature;
+    }
+
     @Override
     public String toString() {
         return "C[" + level + "] (" + clusterX + "," + clusterY + "," + clusterZ + ")->(" + (clusterX + clusterSize - 1)
@@ -585,7 +745,7 @@ public class HPACluster {
     }
 
     private static long packPosition(int x, int y, int z) {
-        return (x & 0x3FFFFFFL) << 34 | (z & 0x3FFFFFFL) << 8 | (y & 0xFFL);
+        return (x & 0x3FFFFFFL) << 38 | (z & 0x3FFFFFFL) << 12 | (y & 0xFFFL);
     }
 
     private static final float[] NEIGHBOUR_COSTS;
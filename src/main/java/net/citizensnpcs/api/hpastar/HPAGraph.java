@@ -2,14 +2,20 @@ package net.citizensnpcs.api.hpastar;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 
 import org.bukkit.Location;
+import org.bukkit.Material;
 import org.bukkit.World;
 import org.bukkit.block.Block;
 import org.bukkit.util.Vector;
@@ -19,9 +25,11 @@ import com.google.common.collect.Lists;
 
 import ch.ethz.globis.phtree.PhTreeSolid;
 import ch.ethz.globis.phtree.PhTreeSolid.PhQueryS;
+import it.unimi.dsi.fastutil.HashCommon;
 import it.unimi.dsi.fastutil.longs.Long2FloatOpenHashMap;
 import it.unimi.dsi.fastutil.longs.LongIterator;
 import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
 import net.citizensnpcs.api.astar.Agent;
 import net.citizensnpcs.api.astar.Plan;
 import net.citizensnpcs.api.astar.pathfinder.BlockSource;
@@ -33,20 +41,32 @@ import net.citizensnpcs.api.util.Messaging;
 
 public class HPAGraph {
     private final BlockSource blockSource;
+    private ForkJoinPool buildPool;
+    private final List<Set<HPAGraphNode>> changedNodes = new ArrayList<>();
     public List<List<HPACluster>> clusters = new ArrayList<>();
     private final int cx, cy, cz;
-    private final LongOpenHashSet dirtyRegionKeys = new LongOpenHashSet();
+    private final Queue<Long> dirtyClusterKeys = new ConcurrentLinkedQueue<>();
+    private final HPALevelGraph[] levelGraphs = new HPALevelGraph[MAX_DEPTH + 1];
     private final LongOpenHashSet loadedRegionKeys = new LongOpenHashSet();
+    private final int maxY;
+    private final int minY;
     private final List<PhTreeSolid<HPACluster>> phtrees = new ArrayList<>();
+    private HPARegionStore regionStore;
+    private final int startY;
 
     public HPAGraph(BlockSource blockSource, int cx, int cy, int cz) {
         this.blockSource = blockSource;
         this.cx = cx;
         this.cy = cy;
         this.cz = cz;
+        this.minY = blockSource.getMinHeight();
+        this.maxY = blockSource.getMaxHeight();
+        // align to the top level so that every level's clusters nest inside the next
+        this.startY = Math.floorDiv(minY, BASE_CLUSTER_HEIGHT << MAX_DEPTH) * (BASE_CLUSTER_HEIGHT << MAX_DEPTH);
 
         while (clusters.size() <= MAX_DEPTH) {
             clusters.add(new ArrayList<>());
+            changedNodes.add(new ReferenceOpenHashSet<>());
             if (clusters.size() != phtrees.size()) {
                 phtrees.add(PhTreeSolid.create(3));
             }
@@ -64,84 +84,74 @@ public class HPAGraph {
         int baseX = regionX * MAX_CLUSTER_SIZE + cx;
         int baseZ = regionZ * MAX_CLUSTER_SIZE + cz;
 
-        PhTreeSolid<HPACluster> baseLevel = phtrees.get(0);
         Messaging.debug("Building clusters for:", baseX, baseZ);
         List<HPACluster> delta = new ArrayList<>();
 
         // build clusters
         int clusterSize = BASE_CLUSTER_SIZE;
         int clusterHeight = BASE_CLUSTER_HEIGHT;
-        for (int y = 0; y <= MAX_WORLD_Y; y += clusterHeight) {
+        int[] bounds = scanVerticalBounds(baseX, baseZ);
+        List<HPACluster> candidates = new ArrayList<>();
+        for (int y = startY; y <= maxY; y += clusterHeight) {
+            if (bounds != null && (y + clusterHeight - 1 < bounds[0] || y > bounds[1] + 1))
+                continue;
             for (int ci = 0; ci < MAX_CLUSTER_SIZE; ci += clusterSize) {
                 for (int cj = 0; cj < MAX_CLUSTER_SIZE; cj += clusterSize) {
-                    HPACluster cluster = new HPACluster(this, 0, clusterSize, clusterHeight, baseX + ci, y, baseZ + cj);
-                    if (!cluster.hasWalkableNodes())
-                        continue;
-
-                    delta.add(cluster);
-                    baseLevel.put(new long[] { cluster.clusterX, cluster.clusterY, cluster.clusterZ },
-                            new long[] { cluster.clusterX + clusterSize, cluster.clusterY + clusterHeight,
-                                    cluster.clusterZ + clusterSize },
-                            cluster);
-                    Messaging.debug(cluster);
+                    candidates.add(new HPACluster(this, 0, clusterSize, clusterHeight, baseX + ci, y, baseZ + cj));
                 }
             }
         }
-        Set<HPACluster> deltaSet = new HashSet<>(delta);
-        for (HPACluster cluster : delta) {
-            PhQueryS<HPACluster> q = baseLevel.queryIntersect(
-                    new long[] { cluster.clusterX - clusterSize, cluster.clusterY - clusterHeight,
-                            cluster.clusterZ - clusterSize },
-                    new long[] { cluster.clusterX + clusterSize, cluster.clusterY + clusterHeight,
-                            cluster.clusterZ + clusterSize });
-            while (q.hasNext()) {
-                HPACluster neighbour = q.nextValue();
-                if (neighbour == cluster)
-                    continue;
-                // New clusters must always connect to pre-existing clusters regardless of coordinate ordering.
-                if (deltaSet.contains(neighbour) && (cluster.clusterX > neighbour.clusterX
-                        || cluster.clusterX == neighbour.clusterX && (cluster.clusterY > neighbour.clusterY
-                                || cluster.clusterY == neighbour.clusterY && cluster.clusterZ > neighbour.clusterZ)))
-                    continue;
-
-                int dx = neighbour.clusterX - cluster.clusterX;
-                int dy = neighbour.clusterY - cluster.clusterY;
-                int dz = neighbour.clusterZ - cluster.clusterZ;
-
-                if (dx == clusterSize && dy == 0 && dz == 0) {
-                    cluster.connect(neighbour, Direction.EAST);
-                    Messaging.debug("CONNECTED", cluster, neighbour);
-                } else if (dx == -clusterSize && dy == 0 && dz == 0) {
-                    cluster.connect(neighbour, Direction.WEST);
-                    Messaging.debug("CONNECTED", cluster, neighbour);
-                } else if (dz == clusterSize && dx == 0 && dy == 0) {
-                    cluster.connect(neighbour, Direction.NORTH);
-                    Messaging.debug("CONNECTED", cluster, neighbour);
-                } else if (dz == -clusterSize && dx == 0 && dy == 0) {
-                    cluster.connect(neighbour, Direction.SOUTH);
-                    Messaging.debug("CONNECTED", cluster, neighbour);
-                } else if (dy == clusterHeight && dx == 0 && dz == 0) {
-                    cluster.connect(neighbour, Direction.UP);
-                    Messaging.debug("CONNECTED", cluster, neighbour);
-                } else if (dy == -clusterHeight && dx == 0 && dz == 0) {
-                    cluster.connect(neighbour, Direction.DOWN);
-                    Messaging.debug("CONNECTED", cluster, neighbour);
-                } else if (Math.abs(dx) == clusterSize && Math.abs(dz) == clusterSize && dy == 0) {
-                    cluster.connectDiagonal(neighbour, Integer.signum(dx), Integer.signum(dz), DIAGONAL_WEIGHT);
-                    Messaging.debug("CONNECTED DIAGONAL", cluster, neighbour);
+        ForkJoinPool pool = buildPool;
+        HPARegionStore store = regionStore;
+        long[] fingerprints = store == null ? null : fingerprintRegion(baseX, baseZ, candidates);
+        List<HPACluster> restored = store == null ? null
+                : store.load(getRegionName(baseX, baseZ), getLayout(), fingerprints, candidates);
+        if (restored != null) {
+            Messaging.debug("Restored clusters for:", baseX, baseZ);
+            delta = restored;
+            for (HPACluster cluster : delta) {
+                putCluster(cluster);
+            }
+            connectToNeighbours(delta, true);
+        } else {
+            if (pool != null) {
+                // scanning fills each cluster's own walkable cache so clusters can be scanned independently, and the
+                // candidates were already fully scanned if they were fingerprinted
+                delta = pool.submit(() -> candidates.parallelStream().filter(HPACluster::hasWalkableNodes)
+                        .collect(Collectors.toList())).join();
+            } else {
+                for (HPACluster cluster : candidates) {
+                    if (cluster.hasWalkableNodes()) {
+                        delta.add(cluster);
+                    }
                 }
             }
-        }
-        for (HPACluster cluster : delta) {
-            cluster.connectIntra();
+            for (HPACluster cluster : delta) {
+                putCluster(cluster);
+                Messaging.debug(cluster);
+            }
+            connectToNeighbours(delta, false);
+            if (pool != null) {
+                // intra edges only join nodes within the same base cluster
+                List<HPACluster> connect = delta;
+                pool.submit(() -> connect.parallelStream().forEach(HPACluster::connectIntra)).join();
+            } else {
+                for (HPACluster cluster : delta) {
+                    cluster.connectIntra();
+                }
+            }
+            if (store != null) {
+                store.save(getRegionName(baseX, baseZ), getLayout(), fingerprints, delta);
+            }
         }
         clusters.get(0).addAll(delta);
+        markChanged(delta);
         for (int depth = 1; depth <= MAX_DEPTH; depth++) {
             delta = new ArrayList<>();
             clusterSize = BASE_CLUSTER_SIZE << depth;
             clusterHeight = BASE_CLUSTER_HEIGHT << depth;
 
-            for (int y = 0; y <= MAX_WORLD_Y; y += clusterHeight) {
+            for (int y = startY; y <= maxY; y += clusterHeight) {
                 for (int ci = 0; ci < MAX_CLUSTER_SIZE; ci += clusterSize) {
                     for (int cj = 0; cj < MAX_CLUSTER_SIZE; cj += clusterSize) {
                         HPACluster cluster = new HPACluster(this, depth, clusterSize, clusterHeight, baseX + ci, y,
@@ -154,36 +164,114 @@ public class HPAGraph {
                             continue;
 
                         cluster.buildFrom(parentClusters);
-                        phtrees.get(depth).put(new long[] { cluster.clusterX, cluster.clusterY, cluster.clusterZ },
-                                new long[] { cluster.clusterX + clusterSize, cluster.clusterY + clusterHeight,
-                                        cluster.clusterZ + clusterSize },
-                                cluster);
+                        putCluster(cluster);
                         Messaging.debug(cluster);
                         delta.add(cluster);
                     }
                 }
             }
             clusters.get(depth).addAll(delta);
+            markChanged(delta);
         }
         loadedRegionKeys.add(regionKey);
     }
 
+    /**
+     * Repairs every base cluster marked dirty since the last call. Each dirty cluster rescans its blocks and rebuilds
+     * its entrances and intra edges in place, and its neighbours are reconnected to it. Parent clusters are only
+     * rebuilt when the abstract graph of one of their children actually changed, so most block changes never touch
+     * the higher levels. Repaired regions are saved to the region store again.
+     */
     public synchronized void applyPendingPatches() {
-        if (dirtyRegionKeys.isEmpty())
+        if (dirtyClusterKeys.isEmpty())
             return;
 
-        LongOpenHashSet dirty = new LongOpenHashSet(loadedRegionKeys);
-        dirty.addAll(dirtyRegionKeys);
-        dirtyRegionKeys.clear();
-        reloadRegions(dirty);
+        LongOpenHashSet dirty = new LongOpenHashSet();
+        Long next;
+        while ((next = dirtyClusterKeys.poll()) != null) {
+            dirty.add(next.longValue());
+        }
+        LongOpenHashSet changed = new LongOpenHashSet();
+        LongOpenHashSet repairedRegionKeys = new LongOpenHashSet();
+        for (LongIterator itr = dirty.iterator(); itr.hasNext();) {
+            long key = itr.nextLong();
+            int x = unpackX(key), z = unpackZ(key);
+            long regionKey = regionKeyFromBlock(x, z);
+            if (!loadedRegionKeys.contains(regionKey))
+                continue;
+            repairBaseCluster(x, unpackY(key), z, changed);
+            repairedRegionKeys.add(regionKey);
+        }
+        if (regionStore != null) {
+            for (LongIterator itr = repairedRegionKeys.iterator(); itr.hasNext();) {
+                saveRegion(regionStore, itr.nextLong());
+            }
+        }
+        for (int depth = 1; depth <= MAX_DEPTH && !changed.isEmpty(); depth++) {
+            changed = repairParentClusters(depth, changed);
+        }
     }
 
-    private void clearGraphStorage() {
-        for (int depth = 0; depth <= MAX_DEPTH; depth++) {
-            clusters.set(depth, new ArrayList<>());
-            phtrees.set(depth, PhTreeSolid.create(3));
+    private void connectNeighbour(HPACluster cluster, HPACluster neighbour) {
+        int clusterSize = cluster.clusterSize;
+        int clusterHeight = cluster.clusterHeight;
+        int dx = neighbour.clusterX - cluster.clusterX;
+        int dy = neighbour.clusterY - cluster.clusterY;
+        int dz = neighbour.clusterZ - cluster.clusterZ;
+
+        if (dx == clusterSize && dy == 0 && dz == 0) {
+            cluster.connect(neighbour, Direction.EAST);
+            Messaging.debug("CONNECTED", cluster, neighbour);
+        } else if (dx == -clusterSize && dy == 0 && dz == 0) {
+            cluster.connect(neighbour, Direction.WEST);
+            Messaging.debug("CONNECTED", cluster, neighbour);
+        } else if (dz == clusterSize && dx == 0 && dy == 0) {
+            cluster.connect(neighbour, Direction.NORTH);
+            Messaging.debug("CONNECTED", cluster, neighbour);
+        } else if (dz == -clusterSize && dx == 0 && dy == 0) {
+            cluster.connect(neighbour, Direction.SOUTH);
+            Messaging.debug("CONNECTED", cluster, neighbour);
+        } else if (dy == clusterHeight && dx == 0 && dz == 0) {
+            cluster.connect(neighbour, Direction.UP);
+            Messaging.debug("CONNECTED", cluster, neighbour);
+        } else if (dy == -clusterHeight && dx == 0 && dz == 0) {
+            cluster.connect(neighbour, Direction.DOWN);
+            Messaging.debug("CONNECTED", cluster, neighbour);
+        } else if (Math.abs(dx) == clusterSize && Math.abs(dz) == clusterSize && dy == 0) {
+            cluster.connectDiagonal(neighbour, Integer.signum(dx), Integer.signum(dz), DIAGONAL_WEIGHT);
+            Messaging.debug("CONNECTED DIAGONAL", cluster, neighbour);
+        }
+    }
+
+    /**
+     * Connects newly added base clusters to their neighbours.
+     *
+     * @param connectedToEachOther
+     *            Whether the new clusters are already connected to each other and only need connecting to
+     *            pre-existing clusters
+     */
+    private void connectToNeighbours(List<HPACluster> delta, boolean connectedToEachOther) {
+        PhTreeSolid<HPACluster> baseLevel = phtrees.get(0);
+        Set<HPACluster> deltaSet = new HashSet<>(delta);
+        for (HPACluster cluster : delta) {
+            PhQueryS<HPACluster> q = baseLevel.queryIntersect(
+                    new long[] { cluster.clusterX - cluster.clusterSize, cluster.clusterY - cluster.clusterHeight,
+                            cluster.clusterZ - cluster.clusterSize },
+                    new long[] { cluster.clusterX + cluster.clusterSize, cluster.clusterY + cluster.clusterHeight,
+                            cluster.clusterZ + cluster.clusterSize });
+            while (q.hasNext()) {
+                HPACluster neighbour = q.nextValue();
+                if (neighbour == cluster)
+                    continue;
+                // New clusters must always connect to pre-existing clusters regardless of coordinate ordering.
+                if (deltaSet.contains(neighbour) && (connectedToEachOther || cluster.clusterX > neighbour.clusterX
+                        || cluster.clusterX == neighbour.clusterX && (cluster.clusterY > neighbour.clusterY
+                                || cluster.clusterY == neighbour.clusterY && cluster.clusterZ > neighbour.clusterZ)))
+                    continue;
+
+                connectNeighbour(cluster, neighbour);
+            }
         }
-        loadedRegionKeys.clear();
     }
 
     public Plan findPath(Location start, Location goal) {
@@ -215,84 +303,379 @@ public class HPAGraph {
         return path;
     }
 
+    /**
+     * Finds paths from many starts to one shared goal. A single search is run outward from the goal over the abstract
+     * graph and every start is answered from the resulting distance field, so the abstract search is paid for once
+     * instead of once per start.
+     *
+     * @return One plan per start, in order. Starts that can't reach the goal get an empty plan
+     */
+    public List<Plan> findPaths(List<Location> starts, Location goal) {
+        List<Plan> plans = new ArrayList<>(starts.size());
+        HPAGraphNode goalNode = new HPAGraphNode(goal.getBlockX(), goal.getBlockY(), goal.getBlockZ());
+        HPACluster goalCluster = getClusterAt(0, goalNode.x, goalNode.y, goalNode.z);
+        if (goalCluster == null) {
+            for (int i = 0; i < starts.size(); i++) {
+                plans.add(new Path(Collections.emptyList()));
+            }
+            return plans;
+        }
+        goalCluster.insert(goalNode);
+        try {
+            HPALevelGraph.DestinationField field = getLevelGraph(0, goalNode).distancesTo(goalNode);
+            for (Location start : starts) {
+                HPAGraphNode startNode = new HPAGraphNode(start.getBlockX(), start.getBlockY(), start.getBlockZ());
+                HPACluster startCluster = getClusterAt(0, startNode.x, startNode.y, startNode.z);
+                if (startCluster == null) {
+                    plans.add(new Path(Collections.emptyList()));
+                } else if (startNode.equals(goalNode)) {
+                    plans.add(new LazyHPAPath(pathfind(startNode, goalNode, 0), this));
+                } else {
+                    startCluster.insert(startNode);
+                    try {
+                        plans.add(new LazyHPAPath(field.pathFrom(startNode), this));
+                    } finally {
+                        startCluster.remove(startNode);
+                    }
+                }
+            }
+        } finally {
+            goalCluster.remove(goalNode);
+        }
+        return plans;
+    }
+
+    /**
+     * Fingerprints the walkable blocks of each column of base clusters in a region, so that a stored region can be
+     * checked against the blocks it was built from. Clusters without walkable blocks don't contribute, so the same
+     * blocks give the same fingerprints whether or not such clusters are in the list.
+     */
+    private long[] fingerprintRegion(int baseX, int baseZ, List<HPACluster> region) {
+        ForkJoinPool pool = buildPool;
+        long[] clusterFingerprints = pool == null
+                ? region.stream().mapToLong(HPACluster::getWalkableFingerprint).toArray()
+                : pool.submit(() -> region.parallelStream().mapToLong(HPACluster::getWalkableFingerprint).toArray())
+                        .join();
+        int columns = MAX_CLUSTER_SIZE / BASE_CLUSTER_SIZE;
+        long[] fingerprints = new long[columns * columns];
+        for (int i = 0; i < region.size(); i++) {
+            if (clusterFingerprints[i] == 0)
+                continue;
+            HPACluster cluster = region.get(i);
+            int column = (cluster.clusterX - baseX) / BASE_CLUSTER_SIZE * columns
+                    + (cluster.clusterZ - baseZ) / BASE_CLUSTER_SIZE;
+            fingerprints[column] += HashCommon.mix(clusterFingerprints[i] + cluster.clusterY);
+        }
+        return fingerprints;
+    }
+
     private HPACluster getClusterAt(int depth, int x, int y, int z) {
         PhQueryS<HPACluster> q = phtrees.get(depth).queryIntersect(new long[] { x, y, z }, new long[] { x, y, z });
         return q.hasNext() ? q.next() : null;
     }
 
-    public void invalidateRegion(int x, int z) {
-        LongOpenHashSet regionsToReload = new LongOpenHashSet(loadedRegionKeys);
-        regionsToReload.add(regionKeyFromBlock(x, z));
-        reloadRegions(regionsToReload);
+    /**
+     * @return The height bounds the graph was built with, which a stored region must have been saved with
+     */
+    private long getLayout() {
+        return (long) minY << 32 | maxY & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Returns the adjacency snapshot of the given level, patching the rows of the nodes that changed since it was last
+     * used. The snapshot is only built from scratch the first time and once patches have left too much of it unused.
+     *
+     * @param excluded
+     *            Temporary nodes inserted for the current query that shouldn't become part of the snapshot
+     */
+    synchronized HPALevelGraph getLevelGraph(int level, HPAGraphNode... excluded) {
+        HPALevelGraph graph = levelGraphs[level];
+        Set<HPAGraphNode> changed = changedNodes.get(level);
+        if (graph != null && !changed.isEmpty()) {
+            graph.patch(changed, excluded);
+            if (graph.isFragmented()) {
+                graph = null;
+            }
+        }
+        if (graph == null) {
+            graph = new HPALevelGraph(level, clusters.get(level), excluded);
+            levelGraphs[level] = graph;
+        }
+        changed.clear();
+        return graph;
+    }
+
+    private String getRegionName(int baseX, int baseZ) {
+        return cx + "." + cy + "." + cz + "." + baseX + "." + baseZ;
+    }
+
+    private HPACluster getClusterWithOrigin(int depth, int x, int y, int z) {
+        // neighbouring clusters share boundaries in the tree so a point query can match several
+        PhQueryS<HPACluster> q = phtrees.get(depth).queryIntersect(new long[] { x, y, z }, new long[] { x, y, z });
+        while (q.hasNext()) {
+            HPACluster cluster = q.nextValue();
+            if (cluster.clusterX == x && cluster.clusterY == y && cluster.clusterZ == z)
+                return cluster;
+        }
+        return null;
+    }
+
+    /**
+     * Immediately repairs every base cluster in the region containing the given block.
+     */
+    public synchronized void invalidateRegion(int x, int z) {
+        int baseX = cx + Math.floorDiv(x - cx, MAX_CLUSTER_SIZE) * MAX_CLUSTER_SIZE;
+        int baseZ = cz + Math.floorDiv(z - cz, MAX_CLUSTER_SIZE) * MAX_CLUSTER_SIZE;
+        for (int ci = 0; ci < MAX_CLUSTER_SIZE; ci += BASE_CLUSTER_SIZE) {
+            for (int cj = 0; cj < MAX_CLUSTER_SIZE; cj += BASE_CLUSTER_SIZE) {
+                markDirtyBlock(baseX + ci, baseZ + cj);
+            }
+        }
+        applyPendingPatches();
+    }
+
+    /**
+     * Records the nodes of the given cluster for patching into the snapshot of its level. Clusters must be recorded
+     * both before and after they change, so that nodes they lose are patched as well.
+     */
+    private synchronized void markChanged(HPACluster cluster) {
+        if (levelGraphs[cluster.level] != null) {
+            changedNodes.get(cluster.level).addAll(cluster.getNodes());
+        }
+    }
+
+    private void markChanged(List<HPACluster> changed) {
+        for (HPACluster cluster : changed) {
+            markChanged(cluster);
+        }
+    }
+
+    /**
+     * Marks the base clusters whose walkability depends on the given block for repair on the next
+     * {@link #applyPendingPatches()}. Doesn't lock the graph, so it can be called from the main thread while a search
+     * holds the graph on another thread.
+     */
+    public void markDirtyBlock(int x, int y, int z) {
+        for (int dy = -1; dy <= 1; dy++) {
+            if (y + dy < startY || y + dy > maxY)
+                continue;
+            dirtyClusterKeys.add(packPosition(alignBase(x, cx, BASE_CLUSTER_SIZE),
+                    alignBase(y + dy, startY, BASE_CLUSTER_HEIGHT), alignBase(z, cz, BASE_CLUSTER_SIZE)));
+        }
     }
 
-    public synchronized void markDirtyBlock(int x, int z) {
-        dirtyRegionKeys.add(regionKeyFromBlock(x, z));
+    /**
+     * Marks every base cluster in the column containing the given block for repair. Prefer
+     * {@link #markDirtyBlock(int, int, int)} when the height is known.
+     */
+    public void markDirtyBlock(int x, int z) {
+        int clusterX = alignBase(x, cx, BASE_CLUSTER_SIZE), clusterZ = alignBase(z, cz, BASE_CLUSTER_SIZE);
+        for (int y = startY; y <= maxY; y += BASE_CLUSTER_HEIGHT) {
+            dirtyClusterKeys.add(packPosition(clusterX, y, clusterZ));
+        }
     }
 
-    public synchronized void markDirtyChunk(int chunkX, int chunkZ) {
-        markDirtyBlock(chunkX << 4, chunkZ << 4);
+    public void markDirtyChunk(int chunkX, int chunkZ) {
+        int minX = chunkX << 4, minZ = chunkZ << 4;
+        for (int x = alignBase(minX, cx, BASE_CLUSTER_SIZE); x < minX + 16; x += BASE_CLUSTER_SIZE) {
+            for (int z = alignBase(minZ, cz, BASE_CLUSTER_SIZE); z < minZ + 16; z += BASE_CLUSTER_SIZE) {
+                markDirtyBlock(x, z);
+            }
+        }
     }
 
     AStarSolution pathfind(HPAGraphNode start, HPAGraphNode dest, int level) {
         if (start.equals(dest))
             return new AStarSolution(Lists.newArrayList(new HPAGraphAStarNode(start, null)), 0);
-        Long2FloatOpenHashMap open = new Long2FloatOpenHashMap();
-        Long2FloatOpenHashMap closed = new Long2FloatOpenHashMap();
-        open.defaultReturnValue(Float.POSITIVE_INFINITY);
-        closed.defaultReturnValue(Float.POSITIVE_INFINITY);
-        Queue<HPAGraphAStarNode> frontier = new PriorityQueue<>();
-        HPAGraphAStarNode startNode = new HPAGraphAStarNode(start, null);
-        frontier.add(startNode);
-        open.put(packPosition(start.x, start.y, start.z), startNode.g);
-        while (!frontier.isEmpty()) {
-            HPAGraphAStarNode node = frontier.poll();
-            long nodeKey = packPosition(node.node.x, node.node.y, node.node.z);
-            float bestOpen = open.get(nodeKey);
-            if (!Float.isFinite(bestOpen) || node.g > bestOpen)
-                continue;
+        return getLevelGraph(level, start, dest).search(start, dest);
+    }
+
+    private void putCluster(HPACluster cluster) {
+        phtrees.get(cluster.level).put(new long[] { cluster.clusterX, cluster.clusterY, cluster.clusterZ },
+                new long[] { cluster.clusterX + cluster.clusterSize, cluster.clusterY + cluster.clusterHeight,
+                        cluster.clusterZ + cluster.clusterSize },
+                cluster);
+    }
+
+    private long regionKeyFromBlock(int x, int z) {
+        return packRegionKey(Math.floorDiv(x - cx, MAX_CLUSTER_SIZE), Math.floorDiv(z - cz, MAX_CLUSTER_SIZE));
+    }
+
+    private void removeCluster(HPACluster cluster) {
+        phtrees.get(cluster.level).remove(new long[] { cluster.clusterX, cluster.clusterY, cluster.clusterZ },
+                new long[] { cluster.clusterX + cluster.clusterSize, cluster.clusterY + cluster.clusterHeight,
+                        cluster.clusterZ + cluster.clusterSize });
+        clusters.get(cluster.level).remove(cluster);
+    }
 
-            List<HPAGraphEdge> edges = node.node.getEdges(level);
-            if (start != node.node) {
-                closed.put(nodeKey, node.g);
+    private void repairBaseCluster(int x, int y, int z, LongOpenHashSet changed) {
+        HPACluster cluster = getClusterWithOrigin(0, x, y, z);
+        Map<HPACluster, Set<Object>> neighbours = new HashMap<>();
+        PhQueryS<HPACluster> q = phtrees.get(0).queryIntersect(
+                new long[] { x - BASE_CLUSTER_SIZE, y - BASE_CLUSTER_HEIGHT, z - BASE_CLUSTER_SIZE },
+                new long[] { x + BASE_CLUSTER_SIZE, y + BASE_CLUSTER_HEIGHT, z + BASE_CLUSTER_SIZE });
+        while (q.hasNext()) {
+            HPACluster neighbour = q.nextValue();
+            if (neighbour != cluster) {
+                neighbours.put(neighbour, neighbour.signature());
+                markChanged(neighbour);
             }
-            open.remove(nodeKey);
-            for (HPAGraphEdge edge : edges) {
-                long neighbourKey = packPosition(edge.to.x, edge.to.y, edge.to.z);
-                float tentativeG = node.g + edge.weight;
-                float closedG = closed.get(neighbourKey);
-                if (tentativeG >= closedG)
-                    continue;
+        }
+        boolean existed = cluster != null;
+        Set<Object> before = existed ? cluster.signature() : Collections.emptySet();
+        if (existed) {
+            markChanged(cluster);
+            cluster.beginRepair();
+        } else {
+            cluster = new HPACluster(this, 0, BASE_CLUSTER_SIZE, BASE_CLUSTER_HEIGHT, x, y, z);
+        }
+        if (cluster.hasWalkableNodes()) {
+            if (!existed) {
+                putCluster(cluster);
+                clusters.get(0).add(cluster);
+            }
+            for (HPACluster neighbour : neighbours.keySet()) {
+                connectNeighbour(cluster, neighbour);
+            }
+            cluster.connectIntra();
+        } else if (existed) {
+            removeCluster(cluster);
+        }
+        if (existed) {
+            cluster.finishRepair();
+        }
+        markChanged(cluster);
+        if (!cluster.signature().equals(before)) {
+            changed.add(packPosition(x, y, z));
+        }
+        for (Map.Entry<HPACluster, Set<Object>> entry : neighbours.entrySet()) {
+            HPACluster neighbour = entry.getKey();
+            markChanged(neighbour);
+            if (!neighbour.signature().equals(entry.getValue())) {
+                changed.add(packPosition(neighbour.clusterX, neighbour.clusterY, neighbour.clusterZ));
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the clusters at the given depth containing the given changed child clusters.
+     *
+     * @return The origins of the rebuilt clusters whose abstract graph changed
+     */
+    private LongOpenHashSet repairParentClusters(int depth, LongOpenHashSet changedChildren) {
+        int clusterSize = BASE_CLUSTER_SIZE << depth;
+        int clusterHeight = BASE_CLUSTER_HEIGHT << depth;
+        LongOpenHashSet parents = new LongOpenHashSet();
+        for (LongIterator itr = changedChildren.iterator(); itr.hasNext();) {
+            long key = itr.nextLong();
+            parents.add(packPosition(alignBase(unpackX(key), cx, clusterSize),
+                    alignBase(unpackY(key), startY, clusterHeight), alignBase(unpackZ(key), cz, clusterSize)));
+        }
+        LongOpenHashSet changed = new LongOpenHashSet();
+        for (LongIterator itr = parents.iterator(); itr.hasNext();) {
+            long key = itr.nextLong();
+            int x = unpackX(key), y = unpackY(key), z = unpackZ(key);
+            HPACluster old = getClusterWithOrigin(depth, x, y, z);
+            Set<Object> before = Collections.emptySet();
+            if (old != null) {
+                before = old.signature();
+                markChanged(old);
+                old.disconnect();
+                removeCluster(old);
+            }
+            HPACluster cluster = new HPACluster(this, depth, clusterSize, clusterHeight, x, y, z);
+            List<HPACluster> children = Lists.newArrayList(phtrees.get(depth - 1).queryInclude(
+                    new long[] { x, y, z }, new long[] { x + clusterSize, y + clusterHeight, z + clusterSize }));
+            Set<Object> after = Collections.emptySet();
+            if (!children.isEmpty()) {
+                cluster.buildFrom(children);
+                putCluster(cluster);
+                clusters.get(depth).add(cluster);
+                markChanged(cluster);
+                after = cluster.signature();
+            }
+            if (!after.equals(before)) {
+                changed.add(key);
+            }
+        }
+        return changed;
+    }
 
-                if (Float.isFinite(closedG)) {
-                    closed.remove(neighbourKey);
+    /**
+     * Finds the vertical range of a region that can contain walkable blocks by scanning each column for the lowest
+     * block that can be stood in and the highest block that can be stood on. Base clusters entirely below the former
+     * are solid and clusters more than one block above the latter are air, so neither needs to be built.
+     *
+     * @return <code>{ lowest, highest }</code>, or <code>null</code> if the block source doesn't report materials
+     */
+    private int[] scanVerticalBounds(int baseX, int baseZ) {
+        int lowest = Integer.MAX_VALUE, highest = Integer.MIN_VALUE;
+        for (int x = baseX; x < baseX + MAX_CLUSTER_SIZE; x++) {
+            for (int z = baseZ; z < baseZ + MAX_CLUSTER_SIZE; z++) {
+                for (int y = minY; y < lowest && y <= maxY; y++) {
+                    Material material = blockSource.getMaterialAt(x, y, z);
+                    if (material == null)
+                        return null;
+                    if (MinecraftBlockExaminer.canStandIn(material)) {
+                        lowest = y;
+                        break;
+                    }
                 }
-                if (tentativeG >= open.get(neighbourKey))
-                    continue;
+                for (int y = maxY; y > highest && y >= minY; y--) {
+                    Material material = blockSource.getMaterialAt(x, y, z);
+                    if (material == null)
+                        return null;
+                    if (MinecraftBlockExaminer.canStandOn(material)) {
+                        highest = y;
+                        break;
+                    }
+                }
+            }
+        }
+        return new int[] { lowest, highest };
+    }
 
-                HPAGraphAStarNode neighbour = new HPAGraphAStarNode(edge.to, edge);
-                neighbour.parent = node;
-                neighbour.g = tentativeG;
-                neighbour.h = euclidean(edge.to.x, edge.to.y, edge.to.z, dest.x, dest.y, dest.z);
-                if (edge.to.equals(dest))
-                    return new AStarSolution(neighbour.reconstructSolution(), neighbour.g);
-                open.put(neighbourKey, neighbour.g);
-                frontier.add(neighbour);
+    /**
+     * Saves the base clusters of a loaded region in the order {@link #addClusters(int, int)} builds them.
+     */
+    private void saveRegion(HPARegionStore store, long regionKey) {
+        int baseX = cx + (int) (regionKey >> 32) * MAX_CLUSTER_SIZE;
+        int baseZ = cz + (int) regionKey * MAX_CLUSTER_SIZE;
+        List<HPACluster> region = new ArrayList<>();
+        for (HPACluster cluster : clusters.get(0)) {
+            if (cluster.clusterX >= baseX && cluster.clusterX < baseX + MAX_CLUSTER_SIZE && cluster.clusterZ >= baseZ
+                    && cluster.clusterZ < baseZ + MAX_CLUSTER_SIZE) {
+                region.add(cluster);
             }
         }
-        return new AStarSolution(null, Float.POSITIVE_INFINITY);
+        region.sort(Comparator.<HPACluster> comparingInt(c -> c.clusterY).thenComparingInt(c -> c.clusterX)
+                .thenComparingInt(c -> c.clusterZ));
+        store.save(getRegionName(baseX, baseZ), getLayout(), fingerprintRegion(baseX, baseZ, region), region);
     }
 
-    private long regionKeyFromBlock(int x, int z) {
-        return packRegionKey(Math.floorDiv(x - cx, MAX_CLUSTER_SIZE), Math.floorDiv(z - cz, MAX_CLUSTER_SIZE));
+    /**
+     * Enables building base level clusters on the given pool. Clusters are scanned for walkable blocks and connected
+     * internally in parallel, while registering clusters and connecting neighbouring clusters stays on the calling
+     * thread. The {@link BlockSource} (and any override of {@link #walkable(int, int, int)}) must be safe to read from
+     * multiple threads, e.g. one backed by chunk snapshots.
+     *
+     * @param pool
+     *            The pool to build on, or <code>null</code> to build on the calling thread
+     */
+    public void setBuildPool(ForkJoinPool pool) {
+        this.buildPool = pool;
     }
 
-    private void reloadRegions(LongOpenHashSet regionKeys) {
-        clearGraphStorage();
-        for (LongIterator it = regionKeys.iterator(); it.hasNext();) {
-            long key = it.nextLong();
-            addClusters((int) (key >> 32) * MAX_CLUSTER_SIZE + cx, ((int) key) * MAX_CLUSTER_SIZE + cz);
-        }
+    /**
+     * Persists built and repaired regions to the given store and restores regions from it. The store must be
+     * specific to the world of this graph. Stored regions are checked against the walkability of their blocks before
+     * being restored and rebuilt if it changed, so changes the graph was never told about are picked up too.
+     *
+     * @param store
+     *            The store, or <code>null</code> to always build regions from blocks
+     */
+    public void setRegionStore(HPARegionStore store) {
+        this.regionStore = store;
     }
 
     public boolean walkable(int x, int y, int z) {
@@ -382,6 +765,13 @@ public class HPAGraph {
                     || !cluster.containsPoint(to.x, to.y, to.z))
                 return ImmutableList.of(from.toVector(), to.toVector());
 
+            // paths between entrances are shared by every path crossing the cluster the same way
+            boolean memoise = cluster.isEntrance(from) && cluster.isEntrance(to);
+            if (memoise) {
+                List<Vector> cached = cluster.getConcretePath(from, to);
+                if (cached != null)
+                    return cached;
+            }
             Long2FloatOpenHashMap open = new Long2FloatOpenHashMap();
             Long2FloatOpenHashMap closed = new Long2FloatOpenHashMap();
             open.defaultReturnValue(Float.POSITIVE_INFINITY);
@@ -407,6 +797,9 @@ public class HPAGraph {
                         node = node.parent;
                     }
                     Collections.reverse(path);
+                    if (memoise) {
+                        cluster.cacheConcretePath(from, to, path);
+                    }
                     return path;
                 }
                 if (node.x != from.x || node.y != from.y || node.z != from.z) {
@@ -492,6 +885,10 @@ public class HPAGraph {
         }
     }
 
+    private static int alignBase(int coord, int origin, int size) {
+        return origin + Math.floorDiv(coord - origin, size) * size;
+    }
+
     private static float euclidean(int x1, int y1, int z1, int x2, int y2, int z2) {
         int dx = x1 - x2;
         int dy = y1 - y2;
@@ -500,13 +897,25 @@ public class HPAGraph {
     }
 
     private static long packPosition(int x, int y, int z) {
-        return (x & 0x3FFFFFFL) << 34 | (z & 0x3FFFFFFL) << 8 | (y & 0xFFL);
+        return (x & 0x3FFFFFFL) << 38 | (z & 0x3FFFFFFL) << 12 | (y & 0xFFFL);
     }
 
     private static long packRegionKey(int regionX, int regionZ) {
         return ((long) regionX << 32) ^ (regionZ & 0xFFFFFFFFL);
     }
 
+    private static int unpackX(long key) {
+        return (int) (key >> 38);
+    }
+
+    private static int unpackY(long key) {
+        return (int) (key << 52 >> 52);
+    }
+
+    private static int unpackZ(long key) {
+        return (int) (key << 26 >> 38);
+    }
+
     private static final int BASE_CLUSTER_HEIGHT = 8;
     private static final int BASE_CLUSTER_SIZE = 16;
     private static final float DIAGONAL_WEIGHT = (float) Math.sqrt(2);
@@ -514,7 +923,6 @@ public class HPAGraph {
     private static final int[][] INTRA_NEIGHBOUR_OFFSETS;
     private static final int MAX_CLUSTER_SIZE = 64;
     private static final int MAX_DEPTH = 3;
-    private static final int MAX_WORLD_Y = 255;
     static {
         int[][] neighbours = new int[26][3];
         int index = 0;
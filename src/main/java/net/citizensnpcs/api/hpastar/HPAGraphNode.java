@@ -29,6 +29,20 @@ public class HPAGraphNode {
         to.edges.get(level).add(new HPAGraphEdge(to, this, type, weight));
     }
 
+    /**
+     * Removes every edge at the given level from this node, along with the opposite edges stored on its neighbours.
+     */
+    void disconnect(int level) {
+        if (level >= edges.size())
+            return;
+        for (HPAGraphEdge edge : edges.get(level)) {
+            if (level < edge.to.edges.size()) {
+                edge.to.edges.get(level).removeIf(other -> other.to == this);
+            }
+        }
+        edges.get(level).clear();
+    }
+
     public double distance(HPAGraphNode dest) {
         int dx = x - dest.x;
         int dy = y - dest.y;
@@ -0,0 +1,493 @@
+package net.citizensnpcs.api.hpastar;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
+import net.citizensnpcs.api.astar.IntFloatHeap;
+
+/**
+ * A compressed sparse row snapshot of one level of an {@link HPAGraph}. Nodes are numbered densely and the edges of
+ * node <code>i</code> are stored from <code>starts[i]</code> (inclusive) to <code>ends[i]</code> (exclusive) of the
+ * primitive edge arrays, so searches walk flat arrays instead of edge objects and keep their per-node state in arrays
+ * indexed by node id.
+ *
+ * When the graph changes, only the rows of the changed nodes are rewritten by {@link #patch(Collection,
+ * HPAGraphNode...)}. Rewritten rows are appended to the edge arrays and the slots they replace are left unused until
+ * the snapshot is rebuilt.
+ *
+ * Temporary start and goal nodes inserted into the graph for a single query aren't part of the snapshot and are
+ * handled as virtual nodes using their own edge lists.
+ */
+final class HPALevelGraph {
+    private int[] ends;
+    private final Reference2IntOpenHashMap<HPAGraphNode> ids = new Reference2IntOpenHashMap<>();
+    private boolean[] intra;
+    private final int level;
+    private HPAGraphNode[] nodes;
+    private int removedNodes;
+    private int[] starts;
+    private int[] targets;
+    private int unusedEdges;
+    private float[] weights;
+    private int[] xs;
+    private int[] ys;
+    private int[] zs;
+
+    HPALevelGraph(int level, List<HPACluster> clusters, HPAGraphNode... excluded) {
+        this.level = level;
+        ids.defaultReturnValue(-1);
+        for (HPAGraphNode node : excluded) {
+            ids.put(node, EXCLUDED);
+        }
+        List<HPAGraphNode> ordered = new ArrayList<>();
+        for (HPACluster cluster : clusters) {
+            for (HPAGraphNode node : cluster.getNodes()) {
+                if (ids.getInt(node) == -1) {
+                    ids.put(node, ordered.size());
+                    ordered.add(node);
+                }
+            }
+        }
+        for (HPAGraphNode node : excluded) {
+            ids.removeInt(node);
+        }
+        nodes = ordered.toArray(new HPAGraphNode[0]);
+        xs = new int[nodes.length];
+        ys = new int[nodes.length];
+        zs = new int[nodes.length];
+        starts = new int[nodes.length];
+        ends = new int[nodes.length];
+        int edges = 0;
+        for (int i = 0; i < nodes.length; i++) {
+            xs[i] = nodes[i].x;
+            ys[i] = nodes[i].y;
+            zs[i] = nodes[i].z;
+            edges += countEdges(nodes[i]);
+        }
+        targets = new int[edges];
+        weights = new float[edges];
+        intra = new boolean[edges];
+        for (int i = 0, e = 0; i < nodes.length; i++) {
+            e = writeRow(i, e);
+        }
+    }
+
+    private int countEdges(HPAGraphNode node) {
+        int count = 0;
+        for (HPAGraphEdge edge : node.getEdges(level)) {
+            if (ids.getInt(edge.to) >= 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Runs Dijkstra outward from the given node over the whole level. Every edge is stored in both directions with
+     * the same weight, so this gives the distance from every node to <code>dest</code> and the next hop towards it.
+     */
+    DestinationField distancesTo(HPAGraphNode dest) {
+        int n = nodes.length;
+        int destId = ids.getInt(dest);
+        List<HPAGraphEdge> destEdges = new ArrayList<>(dest.getEdges(level));
+        SearchState state = STATE.get();
+        state.reset(n + 1);
+        if (destId == -1) {
+            destId = n;
+            state.setG(destId, 0, -1, -1);
+            for (int i = 0; i < destEdges.size(); i++) {
+                HPAGraphEdge edge = destEdges.get(i);
+                int to = ids.getInt(edge.to);
+                if (to != -1 && edge.weight < state.getG(to)) {
+                    state.setG(to, edge.weight, destId, -i - 2);
+                    state.heap.update(to, edge.weight);
+                }
+            }
+        } else {
+            state.setG(destId, 0, -1, -1);
+            state.heap.update(destId, 0);
+        }
+        while (!state.heap.isEmpty()) {
+            float g = state.heap.peekKey();
+            int current = state.heap.pop();
+            for (int e = starts[current]; e < ends[current]; e++) {
+                int to = targets[e];
+                float tentative = g + weights[e];
+                if (tentative < state.getG(to)) {
+                    state.setG(to, tentative, current, e);
+                    state.heap.update(to, tentative);
+                }
+            }
+        }
+        float[] distances = new float[n + 1];
+        int[] next = new int[n + 1];
+        int[] nextEdge = new int[n + 1];
+        for (int i = 0; i <= n; i++) {
+            distances[i] = state.getG(i);
+            next[i] = state.parent[i];
+            nextEdge[i] = state.parentEdge[i];
+        }
+        return new DestinationField(dest, destId, destEdges, distances, next, nextEdge);
+    }
+
+    /**
+     * @return The number of nodes in the snapshot, not counting those removed by patches
+     */
+    int getNodeCount() {
+        return nodes.length - removedNodes;
+    }
+
+    private float heuristic(int id, HPAGraphNode start, HPAGraphNode dest) {
+        int x, y, z;
+        if (id < nodes.length) {
+            x = xs[id];
+            y = ys[id];
+            z = zs[id];
+        } else if (id == nodes.length) {
+            x = start.x;
+            y = start.y;
+            z = start.z;
+        } else
+            return 0;
+        int dx = x - dest.x, dy = y - dest.y, dz = z - dest.z;
+        return (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    /**
+     * @return Whether enough of the snapshot has been left unused by patches that it should be rebuilt instead
+     */
+    boolean isFragmented() {
+        return unusedEdges > targets.length / 2 || removedNodes > nodes.length / 2;
+    }
+
+    private HPAGraphNode nodeAt(int id, HPAGraphNode start, HPAGraphNode dest) {
+        return id < nodes.length ? nodes[id] : id == nodes.length ? start : dest;
+    }
+
+    /**
+     * Rewrites the rows of the given nodes, whose edges at this level were added to or removed since the snapshot was
+     * built or last patched, along with the rows of every node they were or are now connected to. Nodes new to the
+     * level are given the next ids and nodes left without edges are removed.
+     *
+     * @param excluded
+     *            Temporary nodes inserted for the current query that shouldn't become part of the snapshot
+     */
+    void patch(Collection<HPAGraphNode> changed, HPAGraphNode... excluded) {
+        for (HPAGraphNode node : excluded) {
+            ids.put(node, EXCLUDED);
+        }
+        ReferenceOpenHashSet<HPAGraphNode> dirty = new ReferenceOpenHashSet<>();
+        Deque<HPAGraphNode> queue = new ArrayDeque<>();
+        for (HPAGraphNode node : changed) {
+            int id = ids.getInt(node);
+            if (id == EXCLUDED || !dirty.add(node))
+                continue;
+            if (id >= 0) {
+                for (int e = starts[id]; e < ends[id]; e++) {
+                    dirty.add(nodes[targets[e]]);
+                }
+            }
+            queue.add(node);
+        }
+        while (!queue.isEmpty()) {
+            for (HPAGraphEdge edge : queue.poll().getEdges(level)) {
+                // every edge of a node new to the level was added since the last patch, so follow those as well
+                if (ids.getInt(edge.to) != EXCLUDED && dirty.add(edge.to) && ids.getInt(edge.to) == -1) {
+                    queue.add(edge.to);
+                }
+            }
+        }
+        List<HPAGraphNode> added = new ArrayList<>();
+        for (HPAGraphNode node : dirty) {
+            int id = ids.getInt(node);
+            boolean connected = !node.getEdges(level).isEmpty();
+            if (id == -1 && connected) {
+                added.add(node);
+            } else if (id >= 0) {
+                unusedEdges += ends[id] - starts[id];
+                starts[id] = ends[id] = 0;
+                if (!connected) {
+                    ids.removeInt(node);
+                    nodes[id] = null;
+                    removedNodes++;
+                }
+            }
+        }
+        int id = nodes.length;
+        nodes = Arrays.copyOf(nodes, id + added.size());
+        xs = Arrays.copyOf(xs, nodes.length);
+        ys = Arrays.copyOf(ys, nodes.length);
+        zs = Arrays.copyOf(zs, nodes.length);
+        starts = Arrays.copyOf(starts, nodes.length);
+        ends = Arrays.copyOf(ends, nodes.length);
+        for (HPAGraphNode node : added) {
+            ids.put(node, id);
+            nodes[id] = node;
+            xs[id] = node.x;
+            ys[id] = node.y;
+            zs[id++] = node.z;
+        }
+        int edges = 0;
+        for (HPAGraphNode node : dirty) {
+            if (ids.getInt(node) >= 0) {
+                edges += countEdges(node);
+            }
+        }
+        int e = targets.length;
+        targets = Arrays.copyOf(targets, e + edges);
+        weights = Arrays.copyOf(weights, targets.length);
+        intra = Arrays.copyOf(intra, targets.length);
+        for (HPAGraphNode node : dirty) {
+            if (ids.getInt(node) >= 0) {
+                e = writeRow(ids.getInt(node), e);
+            }
+        }
+        for (HPAGraphNode node : excluded) {
+            ids.removeInt(node);
+        }
+    }
+
+    private AStarSolution reconstruct(SearchState state, int startId, int destId, HPAGraphNode start,
+            HPAGraphNode dest, List<HPAGraphEdge> startEdges, List<HPAGraphEdge> destEdges) {
+        List<HPAGraphAStarNode> path = new ArrayList<>();
+        int id = destId;
+        while (id != startId) {
+            int parent = state.parent[id];
+            int code = state.parentEdge[id];
+            HPAGraphNode from = nodeAt(parent, start, dest), to = nodeAt(id, start, dest);
+            HPAGraphEdge edge;
+            if (code >= 0) {
+                edge = new HPAGraphEdge(from, to, intra[code] ? HPAGraphEdge.EdgeType.INTRA
+                        : HPAGraphEdge.EdgeType.INTER, weights[code]);
+            } else if (parent == nodes.length) {
+                edge = startEdges.get(-code - 2);
+            } else {
+                HPAGraphEdge reverse = destEdges.get(-code - 2);
+                edge = new HPAGraphEdge(from, to, reverse.type, reverse.weight);
+            }
+            HPAGraphAStarNode node = new HPAGraphAStarNode(to, edge);
+            node.g = state.g[id];
+            path.add(node);
+            id = parent;
+        }
+        path.add(new HPAGraphAStarNode(nodeAt(startId, start, dest), null));
+        Collections.reverse(path);
+        for (int i = 1; i < path.size(); i++) {
+            path.get(i).parent = path.get(i - 1);
+        }
+        return new AStarSolution(path, state.g[destId]);
+    }
+
+    private void relax(SearchState state, int from, int to, float weight, int code, HPAGraphNode start,
+            HPAGraphNode dest) {
+        float g = state.getG(from) + weight;
+        if (g >= state.getG(to))
+            return;
+        state.setG(to, g, from, code);
+        state.heap.update(to, g + heuristic(to, start, dest));
+    }
+
+    /**
+     * Finds the cheapest path between two nodes at this level. Either node may be a temporary node missing from the
+     * snapshot, in which case its own edges are used to enter or leave the snapshot.
+     */
+    AStarSolution search(HPAGraphNode start, HPAGraphNode dest) {
+        int n = nodes.length;
+        int startId = ids.getInt(start), destId = ids.getInt(dest);
+        List<HPAGraphEdge> startEdges = null, destEdges = null;
+        if (startId == -1) {
+            startId = n;
+            startEdges = start.getEdges(level);
+        }
+        Int2IntOpenHashMap destEdgeIndex = null;
+        if (destId == -1) {
+            destId = n + 1;
+            destEdges = dest.getEdges(level);
+            destEdgeIndex = new Int2IntOpenHashMap();
+            destEdgeIndex.defaultReturnValue(-1);
+            for (int i = 0; i < destEdges.size(); i++) {
+                int from = ids.getInt(destEdges.get(i).to);
+                if (from == -1)
+                    continue;
+                int existing = destEdgeIndex.get(from);
+                if (existing == -1 || destEdges.get(i).weight < destEdges.get(existing).weight) {
+                    destEdgeIndex.put(from, i);
+                }
+            }
+        }
+        SearchState state = STATE.get();
+        state.reset(n + 2);
+        state.setG(startId, 0, -1, -1);
+        state.heap.update(startId, heuristic(startId, start, dest));
+        while (!state.heap.isEmpty()) {
+            int current = state.heap.pop();
+            if (current == destId)
+                return reconstruct(state, startId, destId, start, dest, startEdges, destEdges);
+
+            if (current == n) {
+                for (int i = 0; i < startEdges.size(); i++) {
+                    HPAGraphEdge edge = startEdges.get(i);
+                    int to = edge.to == dest ? destId : ids.getInt(edge.to);
+                    if (to != -1) {
+                        relax(state, current, to, edge.weight, -i - 2, start, dest);
+                    }
+                }
+            } else if (current < n) {
+                for (int e = starts[current]; e < ends[current]; e++) {
+                    relax(state, current, targets[e], weights[e], e, start, dest);
+                }
+                if (destEdgeIndex != null) {
+                    int i = destEdgeIndex.get(current);
+                    if (i != -1) {
+                        relax(state, current, destId, destEdges.get(i).weight, -i - 2, start, dest);
+                    }
+                }
+            }
+        }
+        return new AStarSolution(null, Float.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Writes the edges of the given node to the edge arrays from the given index.
+     *
+     * @return The index after the last edge written
+     */
+    private int writeRow(int id, int e) {
+        starts[id] = e;
+        for (HPAGraphEdge edge : nodes[id].getEdges(level)) {
+            int target = ids.getInt(edge.to);
+            if (target < 0)
+                continue;
+            targets[e] = target;
+            weights[e] = edge.weight;
+            intra[e] = edge.type == HPAGraphEdge.EdgeType.INTRA;
+            e++;
+        }
+        ends[id] = e;
+        return e;
+    }
+
+    /**
+     * The distance from every node of a level to a single destination, and the next hop towards it.
+     *
+     * @see HPALevelGraph#distancesTo(HPAGraphNode)
+     */
+    final class DestinationField {
+        private final HPAGraphNode dest;
+        private final List<HPAGraphEdge> destEdges;
+        private final int destId;
+        private final float[] distances;
+        private final int[] next;
+        private final int[] nextEdge;
+
+        private DestinationField(HPAGraphNode dest, int destId, List<HPAGraphEdge> destEdges, float[] distances,
+                int[] next, int[] nextEdge) {
+            this.dest = dest;
+            this.destId = destId;
+            this.destEdges = destEdges;
+            this.distances = distances;
+            this.next = next;
+            this.nextEdge = nextEdge;
+        }
+
+        /**
+         * Reads the path from a temporary start node, already connected to its cluster, off the field.
+         */
+        AStarSolution pathFrom(HPAGraphNode start) {
+            HPAGraphEdge first = null;
+            int firstId = -1;
+            float cost = Float.POSITIVE_INFINITY;
+            for (HPAGraphEdge edge : start.getEdges(level)) {
+                int to = edge.to == dest ? destId : ids.getInt(edge.to);
+                if (to == -1)
+                    continue;
+                float total = edge.weight + distances[to];
+                if (total < cost) {
+                    cost = total;
+                    first = edge;
+                    firstId = to;
+                }
+            }
+            if (first == null)
+                return new AStarSolution(null, Float.POSITIVE_INFINITY);
+
+            List<HPAGraphAStarNode> path = new ArrayList<>();
+            HPAGraphAStarNode previous = new HPAGraphAStarNode(start, null);
+            path.add(previous);
+            previous = append(path, previous, first);
+            for (int id = firstId; id != destId; id = next[id]) {
+                int code = nextEdge[id];
+                HPAGraphNode from = nodes[id], to = next[id] < nodes.length ? nodes[next[id]] : dest;
+                HPAGraphEdge edge;
+                if (code >= 0) {
+                    edge = new HPAGraphEdge(from, to,
+                            intra[code] ? HPAGraphEdge.EdgeType.INTRA : HPAGraphEdge.EdgeType.INTER, weights[code]);
+                } else {
+                    HPAGraphEdge reverse = destEdges.get(-code - 2);
+                    edge = new HPAGraphEdge(from, to, reverse.type, reverse.weight);
+                }
+                previous = append(path, previous, edge);
+            }
+            return new AStarSolution(path, cost);
+        }
+
+        private HPAGraphAStarNode append(List<HPAGraphAStarNode> path, HPAGraphAStarNode previous,
+                HPAGraphEdge edge) {
+            HPAGraphAStarNode node = new HPAGraphAStarNode(edge.to, edge);
+            node.parent = previous;
+            node.g = previous.g + edge.weight;
+            path.add(node);
+            return node;
+        }
+    }
+
+    /**
+     * Reusable per-thread search arrays. Entries are only valid if their stamp matches the current generation, so
+     * starting a new search doesn't need to clear them.
+     */
+    private static class SearchState {
+        private float[] g = new float[0];
+        private int generation;
+        private final IntFloatHeap heap = new IntFloatHeap();
+        private int[] parent = new int[0];
+        private int[] parentEdge = new int[0];
+        private int[] stamp = new int[0];
+
+        private float getG(int id) {
+            return stamp[id] == generation ? g[id] : Float.POSITIVE_INFINITY;
+        }
+
+        private void reset(int nodes) {
+            if (stamp.length < nodes) {
+                g = new float[nodes];
+                parent = new int[nodes];
+                parentEdge = new int[nodes];
+                stamp = new int[nodes];
+                generation = 0;
+            }
+            if (++generation == Integer.MAX_VALUE) {
+                Arrays.fill(stamp, 0);
+                generation = 1;
+            }
+            heap.clear();
+        }
+
+        private void setG(int id, float value, int parentId, int edge) {
+            stamp[id] = generation;
+            g[id] = value;
+            parent[id] = parentId;
+            parentEdge[id] = edge;
+        }
+    }
+
+    private static final int EXCLUDED = -2;
+    private static final ThreadLocal<SearchState> STATE = ThreadLocal.withInitial(SearchState::new);
+}
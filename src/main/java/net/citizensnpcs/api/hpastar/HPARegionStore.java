@@ -0,0 +1,269 @@
+package net.citizensnpcs.api.hpastar;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import net.citizensnpcs.api.util.Messaging;
+
+/**
+ * Persists the base level clusters of {@link HPAGraph} regions to disk so that a restart can reuse them instead of
+ * rescanning and reconnecting every cluster. Each region is stored in its own file keyed by the world and the origin
+ * of the graph, together with the height bounds the graph was built with.
+ *
+ * Each region is stamped with a fingerprint of the walkable blocks in every column of its base clusters. The graph
+ * fingerprints the region's blocks again before restoring it and rebuilds the region if any column differs, so edits
+ * made while the server was offline or that no event reported are never restored. Fingerprinting still reads every
+ * block of the region, so restoring a region saves connecting its clusters rather than scanning them.
+ *
+ * Only the base level is stored. Higher levels are cheap to rebuild from it since they never read blocks, and edges
+ * into neighbouring regions are recreated when the region is connected to them.
+ *
+ * @see HPAGraph#setRegionStore(HPARegionStore)
+ */
+public class HPARegionStore {
+    private final File directory;
+    private CompletableFuture<Void> writes = CompletableFuture.completedFuture(null);
+
+    public HPARegionStore(File directory, UUID world) {
+        this.directory = new File(directory, world.toString());
+    }
+
+    /**
+     * Blocks until every region passed to the store so far has been written.
+     */
+    public void flush() {
+        CompletableFuture<Void> pending;
+        synchronized (this) {
+            pending = writes;
+        }
+        pending.join();
+    }
+
+    private File getFile(String region) {
+        return new File(directory, "r." + region + ".hpa");
+    }
+
+    /**
+     * Restores the base level clusters of a region from a memory-mapped file into the given empty candidate clusters,
+     * in the order they were built. Restored clusters are connected internally and to each other but not yet
+     * registered with the graph.
+     *
+     * @return The restored clusters, or <code>null</code> if the region wasn't saved, was saved with a different
+     *         layout or its blocks no longer match the given fingerprints
+     */
+    List<HPACluster> load(String region, long layout, long[] fingerprints, List<HPACluster> candidates) {
+        File file = getFile(region);
+        if (!file.exists())
+            return null;
+        MappedByteBuffer buffer = null;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                    || buffer.getLong() != layout || buffer.getShort() != fingerprints.length)
+                return null;
+            for (long fingerprint : fingerprints) {
+                if (buffer.getLong() != fingerprint) {
+                    Messaging.debug("Rebuilding changed HPA region", region);
+                    return null;
+                }
+            }
+            int clusterSize = buffer.get() & 0xFF;
+            int clusterHeight = buffer.get() & 0xFF;
+            int clusterCount = buffer.getInt();
+            // validate the whole file before touching the candidates so a bad file can still be rebuilt from them
+            HPACluster[] clusters = new HPACluster[clusterCount];
+            int[] nodeCounts = new int[clusterCount];
+            int[] nodePositions = new int[clusterCount];
+            int totalNodes = 0, candidate = 0;
+            for (int i = 0; i < clusterCount; i++) {
+                int x = buffer.getInt(), y = buffer.getInt(), z = buffer.getInt();
+                while (candidate < candidates.size() && !isAt(candidates.get(candidate), x, y, z)) {
+                    candidate++;
+                }
+                if (candidate == candidates.size())
+                    return null;
+                clusters[i] = candidates.get(candidate++);
+                if (clusters[i].clusterSize != clusterSize || clusters[i].clusterHeight != clusterHeight)
+                    return null;
+                nodeCounts[i] = buffer.getShort() & 0xFFFF;
+                nodePositions[i] = buffer.position();
+                totalNodes += nodeCounts[i];
+                buffer.position(buffer.position() + nodeCounts[i] * 3);
+            }
+            int edgeCount = buffer.getInt();
+            int edgesPosition = buffer.position();
+            if (buffer.remaining() != edgeCount * EDGE_BYTES)
+                return null;
+            for (int i = 0; i < edgeCount; i++) {
+                int from = buffer.getInt(), to = buffer.getInt(), type = buffer.get();
+                buffer.getFloat();
+                if (from < 0 || from >= totalNodes || to < 0 || to >= totalNodes || type < 0
+                        || type >= HPAGraphEdge.EdgeType.values().length)
+                    return null;
+            }
+
+            List<HPAGraphNode> nodes = new ArrayList<>(totalNodes);
+            for (int i = 0; i < clusterCount; i++) {
+                buffer.position(nodePositions[i]);
+                for (int j = 0; j < nodeCounts[i]; j++) {
+                    nodes.add(clusters[i].getOrAddNode(buffer.get() & 0xFF, buffer.get() & 0xFF,
+                            buffer.get() & 0xFF));
+                }
+            }
+            buffer.position(edgesPosition);
+            for (int i = 0; i < edgeCount; i++) {
+                HPAGraphNode from = nodes.get(buffer.getInt());
+                HPAGraphNode to = nodes.get(buffer.getInt());
+                HPAGraphEdge.EdgeType type = HPAGraphEdge.EdgeType.values()[buffer.get()];
+                from.connect(0, to, type, buffer.getFloat());
+            }
+            for (HPACluster cluster : clusters) {
+                cluster.markIntraConnected();
+            }
+            return Arrays.asList(clusters);
+        } catch (IOException | RuntimeException e) {
+            Messaging.debug("Discarding unreadable HPA region", file, e);
+            return null;
+        } finally {
+            if (buffer != null) {
+                unmap(buffer);
+            }
+        }
+    }
+
+    /**
+     * Writes the base level clusters of a region in the background, stamped with the fingerprints of the blocks they
+     * were built from. Edges leading out of the region are skipped.
+     */
+    synchronized void save(String region, long layout, long[] fingerprints, List<HPACluster> clusters) {
+        Map<HPAGraphNode, Integer> ids = new IdentityHashMap<>();
+        int size = HEADER_BYTES + fingerprints.length * 8;
+        for (HPACluster cluster : clusters) {
+            size += 14 + cluster.getNodes().size() * 3;
+            for (HPAGraphNode node : cluster.getNodes()) {
+                ids.put(node, ids.size());
+            }
+        }
+        List<HPAGraphEdge> edges = new ArrayList<>();
+        for (HPACluster cluster : clusters) {
+            for (HPAGraphNode node : cluster.getNodes()) {
+                int id = ids.get(node);
+                for (HPAGraphEdge edge : node.getEdges(0)) {
+                    Integer to = ids.get(edge.to);
+                    // edges are stored in both directions, only save one of them
+                    if (to != null && id < to) {
+                        edges.add(edge);
+                    }
+                }
+            }
+        }
+        size += 4 + edges.size() * EDGE_BYTES;
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(layout).putShort((short) fingerprints.length);
+        for (long fingerprint : fingerprints) {
+            buffer.putLong(fingerprint);
+        }
+        HPACluster first = clusters.isEmpty() ? null : clusters.get(0);
+        buffer.put((byte) (first == null ? 0 : first.clusterSize));
+        buffer.put((byte) (first == null ? 0 : first.clusterHeight));
+        buffer.putInt(clusters.size());
+        for (HPACluster cluster : clusters) {
+            buffer.putInt(cluster.clusterX).putInt(cluster.clusterY).putInt(cluster.clusterZ);
+            buffer.putShort((short) cluster.getNodes().size());
+            for (HPAGraphNode node : cluster.getNodes()) {
+                buffer.put((byte) (node.x - cluster.clusterX)).put((byte) (node.y - cluster.clusterY))
+                        .put((byte) (node.z - cluster.clusterZ));
+            }
+        }
+        buffer.putInt(edges.size());
+        for (HPAGraphEdge edge : edges) {
+            buffer.putInt(ids.get(edge.from)).putInt(ids.get(edge.to)).put((byte) edge.type.ordinal())
+                    .putFloat(edge.weight);
+        }
+        buffer.flip();
+        File file = getFile(region);
+        writes = writes.thenRunAsync(() -> {
+            try {
+                directory.mkdirs();
+                File temp = new File(directory, file.getName() + ".tmp");
+                try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Messaging.severe("Could not save HPA region", file, e);
+            }
+        });
+    }
+
+    /**
+     * Finds a way to release a mapped buffer without waiting for it to be garbage collected, which on Windows keeps
+     * the file from being replaced or deleted: <code>Unsafe.invokeCleaner</code> since Java 9, or the buffer's
+     * cleaner before that.
+     */
+    private static MethodHandle findUnmap() {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return lookup.unreflect(invokeCleaner).bindTo(theUnsafe.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Java 8, fall through to the buffer's cleaner
+        }
+        try {
+            Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            cleaner.setAccessible(true);
+            Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            clean.setAccessible(true);
+            return MethodHandles.filterReturnValue(lookup.unreflect(cleaner), lookup.unreflect(clean))
+                    .asType(MethodType.methodType(void.class, ByteBuffer.class));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static boolean isAt(HPACluster cluster, int x, int y, int z) {
+        return cluster.clusterX == x && cluster.clusterY == y && cluster.clusterZ == z;
+    }
+
+    private static void unmap(MappedByteBuffer buffer) {
+        if (UNMAP == null)
+            return;
+        try {
+            UNMAP.invokeExact((ByteBuffer) buffer);
+        } catch (Throwable t) {
+            Messaging.debug("Unable to unmap HPA region", t);
+        }
+    }
+
+    private static final int EDGE_BYTES = 13;
+    private static final int HEADER_BYTES = 24;
+    private static final int MAGIC = 0x48504131;
+    private static final MethodHandle UNMAP = findUnmap();
+    private static final int VERSION = 3;
+}
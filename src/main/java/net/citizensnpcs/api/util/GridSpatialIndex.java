@@ -0,0 +1,265 @@
+package net.citizensnpcs.api.util;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+
+/**
+ * A {@link SpatialIndex} that buckets values by chunk column in a hash keyed by the packed chunk coordinates. Inserts,
+ * moves and removals only touch one or two small buckets, and queries around a point only visit the handful of chunks
+ * that overlap the query, which is cheaper than a tree for the common tracking-range queries around dense groups of
+ * NPCs. Queries covering more chunks than the index has buckets scan the buckets instead.
+ */
+public class GridSpatialIndex<T> implements SpatialIndex<T> {
+    private final Long2ObjectOpenHashMap<Cell> cells = new Long2ObjectOpenHashMap<>();
+
+    @Override
+    public void insert(double[] key, T value) {
+        long cellKey = cellKey(key);
+        Cell cell = cells.get(cellKey);
+        if (cell == null) {
+            cell = new Cell();
+            cells.put(cellKey, cell);
+        }
+        cell.add(key, value);
+    }
+
+    @Override
+    public void move(T value, double[] from, double[] to) {
+        long fromKey = cellKey(from);
+        if (fromKey == cellKey(to)) {
+            Cell cell = cells.get(fromKey);
+            int index = cell == null ? -1 : cell.indexOf(value);
+            if (index != -1) {
+                cell.keys[index] = to;
+                return;
+            }
+        }
+        remove(value, from);
+        insert(to, value);
+    }
+
+    /**
+     * Visits rings of cells outwards from the cell containing the point until no cell in the next ring can be closer
+     * than the values found so far, or scans every cell once the rings grow larger than the index.
+     */
+    @Override
+    public Iterator<T> nearest(int k, double maxDist, double x, double y, double z) {
+        NearestValues<T> nearest = new NearestValues<>(k, maxDist);
+        if (k <= 0)
+            return nearest.iterator();
+        int centreX = toCell(x), centreZ = toCell(z);
+        int visited = 0;
+        for (int ring = 0; visited < cells.size(); ring++) {
+            // the point lies in the centre cell, so every cell of a ring is at least ring - 1 cells away horizontally
+            double minDist = (ring - 1) * 16.0;
+            if (ring > 1 && minDist * minDist > nearest.bound())
+                break;
+            if (ring * 8 > cells.size()) {
+                nearest = new NearestValues<>(k, maxDist);
+                for (Cell cell : cells.values()) {
+                    offerAll(nearest, cell, x, y, z);
+                }
+                break;
+            }
+            for (int cellX = centreX - ring; cellX <= centreX + ring; cellX++) {
+                boolean edge = cellX == centreX - ring || cellX == centreX + ring;
+                for (int cellZ = centreZ - ring; cellZ <= centreZ + ring; cellZ += edge ? 1 : ring * 2) {
+                    Cell cell = cells.get(pack(cellX, cellZ));
+                    if (cell == null)
+                        continue;
+                    visited++;
+                    offerAll(nearest, cell, x, y, z);
+                }
+            }
+        }
+        return nearest.iterator();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void offerAll(NearestValues<T> nearest, Cell cell, double x, double y, double z) {
+        for (int i = 0; i < cell.size; i++) {
+            nearest.offer(NearestValues.distanceSquared(cell.keys[i], x, y, z), (T) cell.values[i]);
+        }
+    }
+
+    @Override
+    public Iterator<T> query(double[] min, double[] max) {
+        return new CellIterator(min[0], min[1], min[2], max[0], max[1], max[2], Double.NaN, 0, 0, 0);
+    }
+
+    @Override
+    public Iterator<T> rangeQuery(double dist, double x, double y, double z) {
+        return new CellIterator(x - dist, y - dist, z - dist, x + dist, y + dist, z + dist, dist * dist, x, y, z);
+    }
+
+    @Override
+    public void remove(T value, double[] key) {
+        long cellKey = cellKey(key);
+        Cell cell = cells.get(cellKey);
+        if (cell == null)
+            return;
+        int index = cell.indexOf(value);
+        if (index == -1)
+            return;
+        cell.removeAt(index);
+        if (cell.size == 0) {
+            cells.remove(cellKey);
+        }
+    }
+
+    private static class Cell {
+        private double[][] keys = new double[4][];
+        private int size;
+        private Object[] values = new Object[4];
+
+        private void add(double[] key, Object value) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            keys[size] = key;
+            values[size++] = value;
+        }
+
+        private int indexOf(Object value) {
+            for (int i = 0; i < size; i++) {
+                if (value.equals(values[i]))
+                    return i;
+            }
+            return -1;
+        }
+
+        private void removeAt(int index) {
+            size--;
+            keys[index] = keys[size];
+            values[index] = values[size];
+            keys[size] = null;
+            values[size] = null;
+        }
+    }
+
+    /**
+     * Lazily walks the cells overlapping a box, returning the values inside the box and, if a squared distance is
+     * given, within that distance of the centre.
+     */
+    private class CellIterator implements Iterator<T> {
+        private final ObjectIterator<Cell> all;
+        private Cell cell;
+        private final double centreX, centreY, centreZ;
+        private int cellX, cellZ;
+        private final double distSquared;
+        private int index;
+        private final double minX, minY, minZ, maxX, maxY, maxZ;
+        private final int minCellZ, maxCellX, maxCellZ;
+        private T next;
+
+        private CellIterator(double minX, double minY, double minZ, double maxX, double maxY, double maxZ,
+                double distSquared, double centreX, double centreY, double centreZ) {
+            this.minX = minX;
+            this.minY = minY;
+            this.minZ = minZ;
+            this.maxX = maxX;
+            this.maxY = maxY;
+            this.maxZ = maxZ;
+            this.distSquared = distSquared;
+            this.centreX = centreX;
+            this.centreY = centreY;
+            this.centreZ = centreZ;
+            this.cellX = toCell(minX);
+            this.minCellZ = toCell(minZ);
+            this.cellZ = minCellZ - 1;
+            this.maxCellX = toCell(maxX);
+            this.maxCellZ = toCell(maxZ);
+            long area = ((long) maxCellX - cellX + 1) * ((long) maxCellZ - minCellZ + 1);
+            this.all = area > cells.size() ? cells.values().iterator() : null;
+            advance();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            next = null;
+            while (true) {
+                if (cell != null) {
+                    while (index < cell.size) {
+                        double[] key = cell.keys[index];
+                        Object value = cell.values[index++];
+                        if (matches(key)) {
+                            next = (T) value;
+                            return;
+                        }
+                    }
+                    cell = null;
+                }
+                if (!nextCell())
+                    return;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        private boolean matches(double[] key) {
+            if (key[0] < minX || key[0] > maxX || key[1] < minY || key[1] > maxY || key[2] < minZ || key[2] > maxZ)
+                return false;
+            if (Double.isNaN(distSquared))
+                return true;
+            double dx = key[0] - centreX, dy = key[1] - centreY, dz = key[2] - centreZ;
+            return dx * dx + dy * dy + dz * dz <= distSquared;
+        }
+
+        @Override
+        public T next() {
+            if (next == null)
+                throw new NoSuchElementException();
+            T result = next;
+            advance();
+            return result;
+        }
+
+        private boolean nextCell() {
+            index = 0;
+            if (all != null) {
+                if (!all.hasNext())
+                    return false;
+                cell = all.next();
+                return true;
+            }
+            while (cellX <= maxCellX) {
+                if (++cellZ > maxCellZ) {
+                    cellZ = minCellZ;
+                    if (++cellX > maxCellX)
+                        return false;
+                }
+                cell = cells.get(pack(cellX, cellZ));
+                if (cell != null)
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    private static long cellKey(double[] key) {
+        return pack(toCell(key[0]), toCell(key[2]));
+    }
+
+    private static long pack(int cellX, int cellZ) {
+        return (long) cellX << 32 | cellZ & 0xFFFFFFFFL;
+    }
+
+    private static int toCell(double coord) {
+        return (int) Math.floor(coord) >> 4;
+    }
+
+    public static final SpatialIndex.Factory FACTORY = new SpatialIndex.Factory() {
+        @Override
+        public <T> SpatialIndex<T> create() {
+            return new GridSpatialIndex<>();
+        }
+    };
+}
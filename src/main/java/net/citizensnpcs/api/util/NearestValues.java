@@ -0,0 +1,77 @@
+package net.citizensnpcs.api.util;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Collects the <code>k</code> values closest to a point within a maximum distance, kept sorted by distance.
+ */
+class NearestValues<T> {
+    private double[] distances;
+    private final int k;
+    private final double maxDistSquared;
+    private int size;
+    private Object[] values;
+
+    NearestValues(int k, double maxDist) {
+        this.k = Math.max(k, 0);
+        this.distances = new double[Math.min(this.k, 16)];
+        this.values = new Object[distances.length];
+        this.maxDistSquared = maxDist * maxDist;
+    }
+
+    /**
+     * @return The squared distance a value must be within to still be collected
+     */
+    double bound() {
+        return size == k ? Math.min(distances[size - 1], maxDistSquared) : maxDistSquared;
+    }
+
+    Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T next() {
+                if (index >= size)
+                    throw new NoSuchElementException();
+                return (T) values[index++];
+            }
+        };
+    }
+
+    void offer(double distSquared, T value) {
+        if (k == 0 || distSquared > bound())
+            return;
+        if (size == k) {
+            if (distSquared >= distances[size - 1])
+                return;
+            size--;
+        } else if (size == distances.length) {
+            int capacity = (int) Math.min((long) size * 2, k);
+            distances = Arrays.copyOf(distances, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        int index = Arrays.binarySearch(distances, 0, size, distSquared);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        System.arraycopy(distances, index, distances, index + 1, size - index);
+        System.arraycopy(values, index, values, index + 1, size - index);
+        distances[index] = distSquared;
+        values[index] = value;
+        size++;
+    }
+
+    static double distanceSquared(double[] key, double x, double y, double z) {
+        double dx = key[0] - x, dy = key[1] - y, dz = key[2] - z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+}
@@ -0,0 +1,69 @@
+package net.citizensnpcs.api.util;
+
+import java.util.Iterator;
+
+import ch.ethz.globis.phtree.PhTreeF;
+import ch.ethz.globis.phtree.PhTreeF.PhEntryF;
+import ch.ethz.globis.phtree.PhTreeF.PhKnnQueryF;
+
+/**
+ * A {@link SpatialIndex} backed by a {@link PhTreeF}. Cheap to query at any radius and density, but every insert,
+ * move and removal walks the tree.
+ */
+public class PhTreeSpatialIndex<T> implements SpatialIndex<T> {
+    private final PhTreeF<T> tree = PhTreeF.create(3);
+
+    @Override
+    public void insert(double[] key, T value) {
+        makeUnique(key);
+        tree.put(key, value);
+    }
+
+    private void makeUnique(double[] key) {
+        // the tree holds one value per key, so values sharing a position are nudged apart
+        while (tree.contains(key)) {
+            key[1] = Math.nextUp(key[1]);
+        }
+    }
+
+    @Override
+    public void move(T value, double[] from, double[] to) {
+        makeUnique(to);
+        tree.update(from, to);
+    }
+
+    @Override
+    public Iterator<T> nearest(int k, double maxDist, double x, double y, double z) {
+        NearestValues<T> nearest = new NearestValues<>(k, maxDist);
+        if (k <= 0 || tree.size() == 0)
+            return nearest.iterator();
+        PhKnnQueryF<T> query = tree.nearestNeighbour(Math.min(k, tree.size()), x, y, z);
+        while (query.hasNext()) {
+            PhEntryF<T> entry = query.nextEntry();
+            nearest.offer(NearestValues.distanceSquared(entry.getKey(), x, y, z), entry.getValue());
+        }
+        return nearest.iterator();
+    }
+
+    @Override
+    public Iterator<T> query(double[] min, double[] max) {
+        return tree.query(min, max);
+    }
+
+    @Override
+    public Iterator<T> rangeQuery(double dist, double x, double y, double z) {
+        return tree.rangeQuery(dist, x, y, z);
+    }
+
+    @Override
+    public void remove(T value, double[] key) {
+        tree.remove(key);
+    }
+
+    public static final SpatialIndex.Factory FACTORY = new SpatialIndex.Factory() {
+        @Override
+        public <T> SpatialIndex<T> create() {
+            return new PhTreeSpatialIndex<>();
+        }
+    };
+}
@@ -3,7 +3,6 @@ package net.citizensnpcs.api.util;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.Optional;
 import java.util.Random;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -88,29 +87,29 @@ public class Placeholders implements Listener {
                 }
                 break;
             case "<nearest_npc_id>":
-                Optional<NPC> closestNPC = location.getWorld().getNearbyEntities(location, 25, 25, 25).stream()
-                        .map(CitizensAPI.getNPCRegistry()::getNPC).filter(e -> e != null && e.getEntity() != excluding)
-                        .min((a, b) -> Double.compare(a.getEntity().getLocation().distanceSquared(location),
-                                b.getEntity().getLocation().distanceSquared(location)));
-                if (closestNPC.isPresent())
-                    return Integer.toString(closestNPC.get().getId());
-                break;
-            case "<nearest_player>":
+                // the index only narrows down the 25 block cube, distances use the current locations
                 double min = Double.MAX_VALUE;
-                Entity closest = null;
-                for (Player entity : CitizensAPI.getLocationLookup().getNearbyPlayers(location, 25)) {
-                    if (entity == excluding || CitizensAPI.getNPCRegistry().isNPC(entity))
-                        continue;
-
-                    double dist = entity.getLocation().distanceSquared(location);
-                    if (dist > min)
+                NPC closest = null;
+                Location cache = new Location(null, 0, 0, 0);
+                for (NPC npc : CitizensAPI.getLocationLookup().getNearbyNPCs(location.getWorld(),
+                        new double[] { location.getX() - 25, location.getY() - 25, location.getZ() - 25 },
+                        new double[] { location.getX() + 25, location.getY() + 25, location.getZ() + 25 })) {
+                    if (npc.getEntity() == null || npc.getEntity() == excluding)
                         continue;
-
-                    min = dist;
-                    closest = entity;
+                    double dist = npc.getEntity().getLocation(cache).distanceSquared(location);
+                    if (dist < min) {
+                        min = dist;
+                        closest = npc;
+                    }
                 }
                 if (closest != null)
-                    return closest.getName();
+                    return Integer.toString(closest.getId());
+                break;
+            case "<nearest_player>":
+                for (Player player : CitizensAPI.getLocationLookup().getNearestPlayers(location, 2, 25)) {
+                    if (player != excluding && !CitizensAPI.getNPCRegistry().isNPC(player))
+                        return player.getName();
+                }
                 break;
             case "<world>":
                 return location.getWorld().getName();
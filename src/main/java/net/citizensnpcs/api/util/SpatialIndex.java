@@ -0,0 +1,41 @@
+package net.citizensnpcs.api.util;
+
+import java.util.Iterator;
+
+/**
+ * A mutable index of values by 3D position, as used by {@link net.citizensnpcs.api.LocationLookup}. Key arrays passed
+ * to {@link #insert(double[], Object)} and {@link #move(Object, double[], double[])} are retained by the index and may
+ * be adjusted slightly (e.g. to keep keys unique), so the same array must be passed back to later calls for that value.
+ * Implementations don't need to be thread-safe for writes but must allow concurrent queries while not being written
+ * to.
+ */
+public interface SpatialIndex<T> {
+    void insert(double[] key, T value);
+
+    void move(T value, double[] from, double[] to);
+
+    /**
+     * @return Up to <code>k</code> values within Euclidean distance <code>maxDist</code> of the given point, nearest
+     *         first
+     */
+    Iterator<T> nearest(int k, double maxDist, double x, double y, double z);
+
+    /**
+     * @return The values within the axis-aligned box between <code>min</code> and <code>max</code> (inclusive)
+     */
+    Iterator<T> query(double[] min, double[] max);
+
+    /**
+     * @return The values within Euclidean distance <code>dist</code> of the given point
+     */
+    Iterator<T> rangeQuery(double dist, double x, double y, double z);
+
+    void remove(T value, double[] key);
+
+    /**
+     * Creates empty indexes of a particular implementation.
+     */
+    public static interface Factory {
+        <T> SpatialIndex<T> create();
+    }
+}
@@ -178,10 +178,38 @@ public class SpigotUtil {
         return NamespacedKey.fromString(raw);
     }
 
+    /**
+     * @return The highest y coordinate accepted by {@link #checkYSafe(double, World)}
+     */
+    public static int getMaxHeight(World world) {
+        if (!SUPPORT_WORLD_HEIGHT || world == null)
+            return 255;
+        try {
+            return world.getMaxHeight();
+        } catch (Throwable t) {
+            SUPPORT_WORLD_HEIGHT = false;
+            return 255;
+        }
+    }
+
     public static int getMaxNameLength(EntityType type) {
         return isUsing1_13API() ? 256 : 64;
     }
 
+    /**
+     * @return The lowest y coordinate accepted by {@link #checkYSafe(double, World)}
+     */
+    public static int getMinHeight(World world) {
+        if (!SUPPORT_WORLD_HEIGHT || world == null)
+            return 0;
+        try {
+            return world.getMinHeight();
+        } catch (Throwable t) {
+            SUPPORT_WORLD_HEIGHT = false;
+            return 0;
+        }
+    }
+
     public static <T extends Keyed> T getRegistryValue(Registry<T> registry, String... keyCandidates) {
         for (String keyCandidate : keyCandidates) {
             final NamespacedKey key = SpigotUtil.getKey(keyCandidate);
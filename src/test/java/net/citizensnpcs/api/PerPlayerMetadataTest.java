@@ -0,0 +1,142 @@
+package net.citizensnpcs.api;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import net.citizensnpcs.api.LocationLookup.PerPlayerMetadata;
+
+public class PerPlayerMetadataTest {
+    @Test
+    public void concurrentPlayersKeepTheirOwnMarkers() throws Exception {
+        PerPlayerMetadata<String> meta = new PerPlayerMetadata<>(null);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        List<UUID> players = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int seed = t;
+            UUID player = UUID.randomUUID();
+            players.add(player);
+            futures.add(executor.submit(() -> {
+                Random random = new Random(seed);
+                for (int i = 0; i < 20000; i++) {
+                    String value = "npc" + random.nextInt(64);
+                    switch (random.nextInt(4)) {
+                        case 0:
+                            meta.set(player, value, value + player);
+                            break;
+                        case 1:
+                            meta.remove(player, value);
+                            break;
+                        case 2:
+                            if (random.nextInt(50) == 0) {
+                                meta.removeAllValues(value);
+                            }
+                            break;
+                        default:
+                            String marker = meta.getMarker(player, value);
+                            assertTrue("marker " + marker + " returned for " + value,
+                                    marker == null || marker.equals(value + player));
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        for (UUID player : players) {
+            meta.removePlayer(player);
+        }
+        assertThat(meta.getInternedCount(), is(0));
+    }
+
+    @Test
+    public void releasesValuesNoLongerHeld() {
+        PerPlayerMetadata<Integer> meta = new PerPlayerMetadata<>(null);
+        UUID first = UUID.randomUUID(), second = UUID.randomUUID();
+        meta.set(first, "a", 1);
+        meta.set(second, "a", 2);
+        meta.set(first, "b", 3);
+        assertThat(meta.getInternedCount(), is(2));
+        meta.remove(first, "a");
+        assertThat(meta.getInternedCount(), is(2));
+        meta.remove(second, "a");
+        assertThat(meta.getInternedCount(), is(1));
+
+        // the released id is reused without leaking the old value's markers
+        meta.set(second, "c", 4);
+        assertThat(meta.getInternedCount(), is(2));
+        assertThat(meta.has(first, "a"), is(false));
+        assertThat(meta.has(first, "c"), is(false));
+        assertThat(meta.getMarker(second, "c"), is(4));
+        assertThat(meta.getMarker(first, "b"), is(3));
+
+        meta.removeAllValues("b");
+        meta.removeAllValues("c");
+        assertThat(meta.getInternedCount(), is(0));
+    }
+
+    @Test
+    public void removeAllValuesOnlyRemovesValue() {
+        PerPlayerMetadata<Integer> meta = new PerPlayerMetadata<>(null);
+        UUID first = UUID.randomUUID(), second = UUID.randomUUID();
+        meta.set(first, "a", 1);
+        meta.set(first, "b", 2);
+        meta.set(second, "a", 3);
+        meta.removeAllValues("a");
+        assertThat(meta.has(first, "a"), is(false));
+        assertThat(meta.has(second, "a"), is(false));
+        assertThat(meta.getMarker(first, "b"), is(2));
+
+        meta.set(second, "a", 4);
+        assertThat(meta.getMarker(second, "a"), is(4));
+    }
+
+    @Test
+    public void removePlayerRemovesOnlyTheirMarkers() {
+        PerPlayerMetadata<Integer> meta = new PerPlayerMetadata<>(null);
+        UUID leaving = UUID.randomUUID(), staying = UUID.randomUUID();
+        meta.set(leaving, "a", 1);
+        meta.set(leaving, "b", 2);
+        meta.set(staying, "a", 3);
+        meta.removePlayer(leaving);
+        assertThat(meta.has(leaving, "a"), is(false));
+        assertThat(meta.has(leaving, "b"), is(false));
+        assertThat(meta.getMarker(staying, "a"), is(3));
+        assertThat(meta.getInternedCount(), is(1));
+
+        meta.set(leaving, "b", 5);
+        assertThat(meta.getMarker(leaving, "b"), is(5));
+        meta.removePlayer(leaving);
+        meta.removePlayer(staying);
+        assertThat(meta.getInternedCount(), is(0));
+    }
+
+    @Test
+    public void setAndRemove() {
+        PerPlayerMetadata<String> meta = new PerPlayerMetadata<>(null);
+        UUID player = UUID.randomUUID();
+        assertThat(meta.has(player, "npc"), is(false));
+        meta.set(player, "npc", "marker");
+        assertThat(meta.has(player, "npc"), is(true));
+        assertThat(meta.getMarker(player, "npc"), is("marker"));
+        assertThat(meta.getMarker(UUID.randomUUID(), "npc"), nullValue());
+        assertThat(meta.remove(player, "npc"), is(true));
+        assertThat(meta.remove(player, "npc"), is(false));
+        assertThat(meta.has(player, "npc"), is(false));
+    }
+}
@@ -0,0 +1,132 @@
+package net.citizensnpcs.api.astar;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import org.bukkit.Location;
+import org.bukkit.util.Vector;
+import org.junit.Test;
+
+import net.citizensnpcs.api.ai.NavigatorParameters;
+import net.citizensnpcs.api.astar.PathfinderFixtures.FlatExaminer;
+import net.citizensnpcs.api.astar.PathfinderFixtures.TestBlockSource;
+import net.citizensnpcs.api.astar.pathfinder.BlockExaminer;
+import net.citizensnpcs.api.astar.pathfinder.BlockSource;
+import net.citizensnpcs.api.astar.pathfinder.Path;
+import net.citizensnpcs.api.astar.pathfinder.PathPoint;
+import net.citizensnpcs.api.astar.pathfinder.VectorGoal;
+import net.citizensnpcs.api.astar.pathfinder.VectorNode;
+
+public class AStarMachineTest {
+    @Test
+    public void bidirectionalFailsFastForEnclosedGoal() {
+        int[] polls = new int[1];
+        AStarMachine<VectorNode, Path> machine = countingMachine(polls);
+        VectorGoal goal = new VectorGoal(new Location(null, 40, 64, 40), 0);
+        assertNull(machine.runFully(goal, start(goal), 100000));
+        int forwardPolls = polls[0];
+
+        polls[0] = 0;
+        assertNull(machine.runBidirectional(goal, start(goal), 100000));
+        assertTrue("bidirectional polls " + polls[0] + " vs forward polls " + forwardPolls,
+                polls[0] * 10 < forwardPolls);
+    }
+
+    @Test
+    public void bidirectionalMeetsAroundWall() {
+        AStarMachine<VectorNode, Path> machine = countingMachine(new int[1]);
+        VectorGoal goal = new VectorGoal(new Location(null, 10, 64, 2), 0);
+        Path path = machine.runBidirectional(goal, start(goal), 100000);
+
+        assertNotNull(path);
+        Vector previous = null;
+        for (Vector vector : path.getPath()) {
+            assertTrue("path should avoid the wall", !isBlocked(vector.getBlockX(), vector.getBlockZ()));
+            previous = vector;
+        }
+        assertThat(previous.getBlockX(), is(10));
+        assertThat(previous.getBlockZ(), is(2));
+    }
+
+    @Test
+    public void bidirectionalStepsDownButNotUpOntoFence() {
+        AStarMachine<VectorNode, Path> machine = countingMachine(new int[1]);
+        NavigatorParameters params = new NavigatorParameters();
+        params.examiner(new FenceExaminer());
+        VectorGoal up = new VectorGoal(new Location(null, 15, 65, 5), 0);
+        assertNull(machine.runFully(up, new VectorNode(up, new Location(null, 2, 64, 5), new TestBlockSource(), params),
+                100000));
+        assertNull(machine.runBidirectional(up,
+                new VectorNode(up, new Location(null, 2, 64, 5), new TestBlockSource(), params), 100000));
+
+        VectorGoal down = new VectorGoal(new Location(null, 2, 64, 5), 0);
+        Path path = machine.runBidirectional(down,
+                new VectorNode(down, new Location(null, 15, 65, 5), new TestBlockSource(), params), 100000);
+        assertNotNull(path);
+        Vector last = null;
+        for (Vector vector : path.getPath()) {
+            last = vector;
+        }
+        assertThat(last.getBlockX(), is(2));
+        assertThat(last.getBlockY(), is(64));
+    }
+
+    private static AStarMachine<VectorNode, Path> countingMachine(int[] polls) {
+        return AStarMachine.createWithStorage(() -> new HeapAStarStorage() {
+            @Override
+            public AStarNode removeBestNode() {
+                AStarNode node = super.removeBestNode();
+                if (node != null) {
+                    polls[0]++;
+                }
+                return node;
+            }
+        });
+    }
+
+    private static boolean isBlocked(int x, int z) {
+        if (x < 0 || x > 48 || z < 0 || z > 48)
+            return true;
+        // a wall with a gap at z = 20, and a closed ring around (40, 40)
+        if (x == 5 && z != 20)
+            return true;
+        return Math.max(Math.abs(x - 40), Math.abs(z - 40)) == 2;
+    }
+
+    private static VectorNode start(VectorGoal goal) {
+        NavigatorParameters params = new NavigatorParameters();
+        params.examiner(new FlatExaminer(AStarMachineTest::isBlocked));
+        return new VectorNode(goal, new Location(null, 2, 64, 2), new TestBlockSource(), params);
+    }
+
+    /**
+     * Low ground at x &lt; 10, a row of fences at x = 10 and a plateau one block higher beyond it. Like the vanilla
+     * examiner, stepping up onto a fence from the side is rejected.
+     */
+    private static class FenceExaminer implements BlockExaminer {
+        @Override
+        public StandableState canStandAt(BlockSource source, PathPoint point) {
+            Vector pos = point.getVector();
+            int x = pos.getBlockX(), z = pos.getBlockZ();
+            if (x < 0 || x > 20 || z < 0 || z > 10 || pos.getBlockY() != (x < 10 ? 64 : 65))
+                return StandableState.NOT_STANDABLE;
+            PathPoint parent = point.getParentPoint();
+            if (x == 10 && parent != null && parent.getVector().getBlockY() == 64)
+                return StandableState.NOT_STANDABLE;
+            return StandableState.STANDABLE;
+        }
+
+        @Override
+        public float getCost(BlockSource source, PathPoint point) {
+            return 0;
+        }
+
+        @Override
+        public PassableState isPassable(BlockSource source, PathPoint point) {
+            return PassableState.PASSABLE;
+        }
+    }
+}
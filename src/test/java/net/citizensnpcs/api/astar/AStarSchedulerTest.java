@@ -0,0 +1,166 @@
+package net.citizensnpcs.api.astar;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import net.citizensnpcs.api.astar.AStarScheduler.ScheduledSearch;
+
+public class AStarSchedulerTest {
+    @Test
+    public void callbackErrorsDoNotStopOtherSearches() {
+        AStarScheduler scheduler = new AStarScheduler(-1, -1);
+        List<LinePlan> plans = new ArrayList<>();
+        scheduler.schedule(MACHINE, state(0, 3), -1, 1, plan -> {
+            throw new IllegalStateException("callback");
+        });
+        ScheduledSearch<LineNode, LinePlan> other = scheduler.schedule(MACHINE, state(0, 5), -1, 0, plans::add);
+        scheduler.tick();
+
+        assertTrue(other.isDone());
+        assertThat(plans.size(), is(1));
+        assertThat(plans.get(0).position, is(5));
+        assertThat(scheduler.getPendingCount(), is(0));
+    }
+
+    @Test
+    public void countsOnlyIterationsRun() {
+        AStarScheduler scheduler = new AStarScheduler(70, -1);
+        ScheduledSearch<LineNode, LinePlan> near = scheduler.schedule(MACHINE, state(0, 3), -1, 1, plan -> {
+        });
+        ScheduledSearch<LineNode, LinePlan> far = scheduler.schedule(MACHINE, state(0, 1000), -1, 0, plan -> {
+        });
+        scheduler.tick();
+
+        assertTrue(near.isDone());
+        assertThat(near.getIterations(), is(4));
+        // the budget the near search didn't use goes to the far search
+        assertThat(far.getIterations(), is(66));
+        assertThat(scheduler.getPendingCount(), is(1));
+    }
+
+    @Test
+    public void stopsAtMaxIterations() {
+        AStarScheduler scheduler = new AStarScheduler(-1, -1);
+        List<LinePlan> plans = new ArrayList<>();
+        ScheduledSearch<LineNode, LinePlan> search = scheduler.schedule(MACHINE, state(0, 1000), 100, 0,
+                plans::add);
+        scheduler.tick();
+
+        assertTrue(search.isDone());
+        assertThat(search.getIterations(), is(100));
+        assertThat(plans.size(), is(1));
+        assertNull(plans.get(0));
+    }
+
+    @Test
+    public void searchErrorsCompleteWithoutPlan() {
+        AStarScheduler scheduler = new AStarScheduler(-1, -1);
+        List<LinePlan> plans = new ArrayList<>();
+        LineNode start = new LineNode(null, 0) {
+            @Override
+            public Iterable<AStarNode> getNeighbours() {
+                throw new IllegalStateException("search");
+            }
+        };
+        ScheduledSearch<LineNode, LinePlan> search = scheduler.schedule(MACHINE,
+                MACHINE.getStateFor(new LineGoal(3), start), -1, 0, plans::add);
+        scheduler.tick();
+
+        assertTrue(search.isDone());
+        assertThat(plans.size(), is(1));
+        assertNull(plans.get(0));
+    }
+
+    private static AStarMachine.AStarState<LineNode> state(int start, int goal) {
+        return MACHINE.getStateFor(new LineGoal(goal), new LineNode(null, start));
+    }
+
+    private static class LineGoal implements AStarGoal<LineNode> {
+        private final int goal;
+
+        private LineGoal(int goal) {
+            this.goal = goal;
+        }
+
+        @Override
+        public float g(LineNode from, LineNode to) {
+            return 1;
+        }
+
+        @Override
+        public float getInitialCost(LineNode node) {
+            return h(node);
+        }
+
+        @Override
+        public float h(LineNode from) {
+            return Math.abs(goal - from.position);
+        }
+
+        @Override
+        public boolean isFinished(LineNode node) {
+            return node.position == goal;
+        }
+    }
+
+    /**
+     * A position on a line of integers, with the positions on either side as neighbours.
+     */
+    private static class LineNode extends AStarNode {
+        private final int position;
+
+        private LineNode(LineNode parent, int position) {
+            super(parent);
+            this.position = position;
+        }
+
+        @Override
+        public Plan buildPlan() {
+            return new LinePlan(position);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof LineNode && ((LineNode) other).position == position;
+        }
+
+        @Override
+        public Iterable<AStarNode> getNeighbours() {
+            List<AStarNode> neighbours = new ArrayList<>(2);
+            neighbours.add(new LineNode(this, position - 1));
+            neighbours.add(new LineNode(this, position + 1));
+            return neighbours;
+        }
+
+        @Override
+        public int hashCode() {
+            return position;
+        }
+    }
+
+    private static class LinePlan implements Plan {
+        private final int position;
+
+        private LinePlan(int position) {
+            this.position = position;
+        }
+
+        @Override
+        public boolean isComplete() {
+            return true;
+        }
+
+        @Override
+        public void update(Agent agent) {
+        }
+    }
+
+    private static final AStarMachine<LineNode, LinePlan> MACHINE = AStarMachine.createWithDefaultStorage();
+}
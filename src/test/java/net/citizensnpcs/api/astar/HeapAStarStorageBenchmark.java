@@ -0,0 +1,77 @@
+package net.citizensnpcs.api.astar;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.function.Supplier;
+
+import org.bukkit.Location;
+
+import net.citizensnpcs.api.ai.NavigatorParameters;
+import net.citizensnpcs.api.astar.HeapAStarStorageTest.CostlyTerrainExaminer;
+import net.citizensnpcs.api.astar.PathfinderFixtures.TestBlockSource;
+import net.citizensnpcs.api.astar.pathfinder.Path;
+import net.citizensnpcs.api.astar.pathfinder.VectorGoal;
+import net.citizensnpcs.api.astar.pathfinder.VectorNode;
+
+/**
+ * Compares the {@link AStarStorage} implementations on searches across costly terrain, where re-opened nodes are
+ * common: time per search, bytes allocated by the searching thread and garbage collections during the run, with and
+ * without node pooling. Run with <code>java ... HeapAStarStorageBenchmark</code>.
+ */
+public class HeapAStarStorageBenchmark {
+    private static long allocatedBytes(ThreadMXBean threads) {
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return -1;
+    }
+
+    private static long collections() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    public static void main(String[] args) {
+        String[] names = { "simple", "packed", "heap" };
+        @SuppressWarnings("unchecked")
+        Supplier<AStarStorage>[] factories = new Supplier[] { SimpleAStarStorage.FACTORY, PackedAStarStorage.FACTORY,
+                HeapAStarStorage.FACTORY };
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        System.out.printf("%-8s %6s %12s %14s %6s%n", "storage", "pooled", "search ms", "alloc KB", "gcs");
+        for (boolean pooled : new boolean[] { false, true }) {
+            for (int f = 0; f < factories.length; f++) {
+                for (int i = 0; i < WARMUP_SEARCHES; i++) {
+                    search(factories[f], pooled);
+                }
+                long gcs = collections();
+                long allocated = allocatedBytes(threads);
+                long start = System.nanoTime();
+                for (int i = 0; i < SEARCHES; i++) {
+                    search(factories[f], pooled);
+                }
+                long nanos = System.nanoTime() - start;
+                long allocatedKb = allocated == -1 ? -1 : (allocatedBytes(threads) - allocated) / 1024 / SEARCHES;
+                System.out.printf("%-8s %6s %12.3f %14d %6d%n", names[f], pooled, nanos / 1e6 / SEARCHES,
+                        allocatedKb, collections() - gcs);
+            }
+        }
+    }
+
+    private static void search(Supplier<AStarStorage> factory, boolean pooled) {
+        NavigatorParameters params = new NavigatorParameters();
+        params.examiner(new CostlyTerrainExaminer());
+        VectorGoal goal = new VectorGoal(new Location(null, 40, 64, 40), 0);
+        VectorNode start = new VectorNode(goal, new Location(null, 0, 64, 0), new TestBlockSource(), params, pooled);
+        Path path = AStarMachine.<VectorNode, Path> createWithStorage(factory).runFully(goal, start, 50000);
+        if (path != null) {
+            sink++;
+        }
+    }
+
+    private static final int SEARCHES = 200;
+    static int sink;
+    private static final int WARMUP_SEARCHES = 100;
+}
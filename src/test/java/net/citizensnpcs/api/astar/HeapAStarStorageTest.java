@@ -0,0 +1,120 @@
+package net.citizensnpcs.api.astar;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.function.Supplier;
+
+import org.bukkit.Location;
+import org.bukkit.util.Vector;
+import org.junit.Test;
+
+import net.citizensnpcs.api.ai.NavigatorParameters;
+import net.citizensnpcs.api.astar.PathfinderFixtures.CountingStorage;
+import net.citizensnpcs.api.astar.PathfinderFixtures.TestBlockSource;
+import net.citizensnpcs.api.astar.pathfinder.BlockExaminer;
+import net.citizensnpcs.api.astar.pathfinder.BlockSource;
+import net.citizensnpcs.api.astar.pathfinder.Path;
+import net.citizensnpcs.api.astar.pathfinder.PathPoint;
+import net.citizensnpcs.api.astar.pathfinder.VectorGoal;
+import net.citizensnpcs.api.astar.pathfinder.VectorNode;
+
+public class HeapAStarStorageTest {
+    @Test
+    public void decreaseKeyReordersExistingEntry() {
+        VectorNode root = root(new Location(null, 40, 64, 40));
+        HeapAStarStorage storage = new HeapAStarStorage();
+        VectorNode a = node(root, 1, 10);
+        VectorNode b = node(root, 2, 5);
+        storage.open(a);
+        storage.open(b);
+
+        VectorNode betterA = node(root, 1, 2);
+        assertTrue(storage.shouldExamine(betterA));
+        storage.open(betterA);
+
+        assertThat(storage.size(), is(2));
+        assertTrue(storage.removeBestNode() == betterA);
+        assertTrue(storage.removeBestNode() == b);
+        assertTrue(storage.removeBestNode() == null);
+    }
+
+    @Test
+    public void neverPollsSupersededEntries() {
+        CountingStorage packed = search(PackedAStarStorage.FACTORY);
+        CountingStorage heap = search(HeapAStarStorage.FACTORY);
+
+        assertThat("indexed heap should never poll a stale entry", heap.getStalePolls(), is(0));
+        assertTrue("costly terrain should make the packed storage poll stale entries", packed.getStalePolls() > 0);
+        assertTrue("heap polls " + heap.getPolls() + " vs packed polls " + packed.getPolls() + " ("
+                + packed.getStalePolls() + " stale)", heap.getPolls() < packed.getPolls());
+    }
+
+    @Test
+    public void rejectsWorseOrEqualReopen() {
+        VectorNode root = root(new Location(null, 40, 64, 40));
+        HeapAStarStorage storage = new HeapAStarStorage();
+        storage.open(node(root, 1, 4));
+        assertThat(storage.shouldExamine(node(root, 1, 4)), is(false));
+        assertThat(storage.shouldExamine(node(root, 1, 8)), is(false));
+
+        storage.close(storage.removeBestNode());
+        assertThat(storage.shouldExamine(node(root, 1, 4)), is(false));
+        assertThat(storage.shouldExamine(node(root, 1, 1)), is(true));
+    }
+
+    private static VectorNode node(VectorNode root, int x, float g) {
+        VectorNode node = root.createChild(x, 64, 0);
+        ((AStarNode) node).g = g;
+        ((AStarNode) node).h = 0;
+        return node;
+    }
+
+    private static VectorNode root(Location goal) {
+        NavigatorParameters params = new NavigatorParameters();
+        params.examiner(new CostlyTerrainExaminer());
+        return new VectorNode(new VectorGoal(goal, 0), new Location(null, 0, 64, 0), new TestBlockSource(), params);
+    }
+
+    private static CountingStorage search(Supplier<AStarStorage> factory) {
+        Location goal = new Location(null, 40, 64, 40);
+        NavigatorParameters params = new NavigatorParameters();
+        params.examiner(new CostlyTerrainExaminer());
+        VectorGoal vectorGoal = new VectorGoal(goal, 0);
+        VectorNode start = new VectorNode(vectorGoal, new Location(null, 0, 64, 0), new TestBlockSource(), params);
+
+        CountingStorage[] storage = new CountingStorage[1];
+        AStarMachine<VectorNode, Path> machine = AStarMachine
+                .createWithStorage(() -> storage[0] = new CountingStorage(factory.get()));
+        Path plan = machine.runFully(vectorGoal, start, 50000);
+        assertNotNull(plan);
+        return storage[0];
+    }
+
+    static class CostlyTerrainExaminer implements BlockExaminer {
+        @Override
+        public StandableState canStandAt(BlockSource source, PathPoint point) {
+            Vector pos = point.getVector();
+            return pos.getBlockY() == 64 && !isWall(pos.getBlockX(), pos.getBlockZ()) ? StandableState.STANDABLE
+                    : StandableState.NOT_STANDABLE;
+        }
+
+        @Override
+        public float getCost(BlockSource source, PathPoint point) {
+            Vector pos = point.getVector();
+            return Math.floorMod(pos.getBlockX() * 7 + pos.getBlockZ() * 13, 5);
+        }
+
+        private boolean isWall(int x, int z) {
+            return (x == 20 && z < 35) || (z == 20 && x > 5 && x < 20);
+        }
+
+        @Override
+        public PassableState isPassable(BlockSource source, PathPoint point) {
+            Vector pos = point.getVector();
+            return isWall(pos.getBlockX(), pos.getBlockZ()) ? PassableState.IMPASSABLE : PassableState.PASSABLE;
+        }
+    }
+}
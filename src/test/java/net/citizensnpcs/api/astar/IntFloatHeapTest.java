@@ -0,0 +1,57 @@
+package net.citizensnpcs.api.astar;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class IntFloatHeapTest {
+    @Test
+    public void clearForgetsQueuedValues() {
+        IntFloatHeap heap = new IntFloatHeap(2);
+        heap.update(3, 1);
+        heap.update(7, 2);
+        heap.clear();
+        assertTrue(heap.isEmpty());
+        assertThat(heap.contains(3), is(false));
+        heap.update(7, 5);
+        assertThat(heap.size(), is(1));
+        assertThat(heap.pop(), is(7));
+    }
+
+    @Test
+    public void matchesSortedOrderUnderUpdates() {
+        IntFloatHeap heap = new IntFloatHeap(1);
+        Map<Integer, Float> expected = new HashMap<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 5000; i++) {
+            int value = random.nextInt(300);
+            switch (random.nextInt(4)) {
+                case 0:
+                    assertThat(heap.remove(value), is(expected.remove(value) != null));
+                    break;
+                case 1:
+                    if (!expected.isEmpty()) {
+                        float min = Float.POSITIVE_INFINITY;
+                        for (float key : expected.values()) {
+                            min = Math.min(min, key);
+                        }
+                        assertThat(heap.peekKey(), is(min));
+                        int popped = heap.pop();
+                        assertThat(expected.remove(popped), is(min));
+                    }
+                    break;
+                default:
+                    float key = random.nextInt(1000);
+                    heap.update(value, key);
+                    expected.put(value, key);
+            }
+            assertThat(heap.size(), is(expected.size()));
+        }
+    }
+}
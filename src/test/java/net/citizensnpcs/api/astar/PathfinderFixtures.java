@@ -0,0 +1,157 @@
+package net.citizensnpcs.api.astar;
+
+import org.bukkit.Material;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.util.Vector;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.citizensnpcs.api.astar.pathfinder.BlockExaminer;
+import net.citizensnpcs.api.astar.pathfinder.BlockSource;
+import net.citizensnpcs.api.astar.pathfinder.PathPoint;
+import net.citizensnpcs.api.astar.pathfinder.VectorNode;
+import net.citizensnpcs.api.util.BoundingBox;
+
+/**
+ * Block sources, examiners and storages shared by the pathfinding tests.
+ */
+public final class PathfinderFixtures {
+    private PathfinderFixtures() {
+    }
+
+    /**
+     * A mutable set of blocked columns.
+     */
+    public static class BlockedColumns implements ColumnFilter {
+        private final LongOpenHashSet blocked = new LongOpenHashSet();
+
+        public void block(int x, int z) {
+            blocked.add(key(x, z));
+        }
+
+        @Override
+        public boolean isBlocked(int x, int z) {
+            return blocked.contains(key(x, z));
+        }
+
+        private static long key(int x, int z) {
+            return ((long) x << 32) | (z & 0xFFFFFFFFL);
+        }
+    }
+
+    public interface ColumnFilter {
+        boolean isBlocked(int x, int z);
+    }
+
+    /**
+     * Wraps another storage and counts the nodes it polls, including stale entries polled after a better route to
+     * the same position was opened. Storages only open a position again when it improves, so every node but the last
+     * opened at a position is stale.
+     */
+    public static class CountingStorage implements AStarStorage {
+        private final AStarStorage delegate;
+        private final Long2ObjectOpenHashMap<AStarNode> lastOpened = new Long2ObjectOpenHashMap<>();
+        private int polls;
+        private int stalePolls;
+
+        public CountingStorage(AStarStorage delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void close(AStarNode node) {
+            delegate.close(node);
+        }
+
+        @Override
+        public AStarNode getBestNode() {
+            return delegate.getBestNode();
+        }
+
+        public int getPolls() {
+            return polls;
+        }
+
+        public int getStalePolls() {
+            return stalePolls;
+        }
+
+        @Override
+        public void open(AStarNode node) {
+            lastOpened.put(((VectorNode) node).getPackedPosition(), node);
+            delegate.open(node);
+        }
+
+        @Override
+        public AStarNode removeBestNode() {
+            AStarNode node = delegate.removeBestNode();
+            if (node != null) {
+                polls++;
+                if (lastOpened.get(((VectorNode) node).getPackedPosition()) != node) {
+                    stalePolls++;
+                }
+            }
+            return node;
+        }
+
+        @Override
+        public boolean shouldExamine(AStarNode neighbour) {
+            return delegate.shouldExamine(neighbour);
+        }
+    }
+
+    /**
+     * Flat ground at y = 64 that is free to walk on except for the blocked columns.
+     */
+    public static class FlatExaminer implements BlockExaminer {
+        private final ColumnFilter blocked;
+
+        public FlatExaminer(ColumnFilter blocked) {
+            this.blocked = blocked;
+        }
+
+        @Override
+        public StandableState canStandAt(BlockSource source, PathPoint point) {
+            Vector pos = point.getVector();
+            return pos.getBlockY() == 64 && !blocked.isBlocked(pos.getBlockX(), pos.getBlockZ())
+                    ? StandableState.STANDABLE : StandableState.NOT_STANDABLE;
+        }
+
+        @Override
+        public float getCost(BlockSource source, PathPoint point) {
+            return 0;
+        }
+
+        @Override
+        public PassableState isPassable(BlockSource source, PathPoint point) {
+            Vector pos = point.getVector();
+            return blocked.isBlocked(pos.getBlockX(), pos.getBlockZ()) ? PassableState.IMPASSABLE
+                    : PassableState.PASSABLE;
+        }
+    }
+
+    /**
+     * A block source with no blocks, for examiners that decide everything from positions alone.
+     */
+    public static class TestBlockSource extends BlockSource {
+        @Override
+        public BlockData getBlockDataAt(int x, int y, int z) {
+            return null;
+        }
+
+        @Override
+        public BoundingBox getCollisionBox(int x, int y, int z) {
+            return null;
+        }
+
+        @Override
+        public Material getMaterialAt(int x, int y, int z) {
+            return null;
+        }
+
+        @Override
+        public boolean isYWithinBounds(int y) {
+            return y >= 0 && y < 256;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package net.citizensnpcs.api.astar.pathfinder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.World;
+import org.junit.Test;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+public class AsyncChunkCacheTest {
+    @Test
+    public void countsHitsAndMisses() {
+        AsyncChunkCache cache = new AsyncChunkCache(null, 1, 0);
+        try {
+            cache.fetchChunkSnapshotAsync(WORLD, 0, 0);
+            cache.fetchChunkSnapshotAsync(WORLD, 0, 0);
+            cache.fetchChunkSnapshotAsync(WORLD, 1, 0);
+            assertThat(cache.getMissCount(), is(2L));
+            assertThat(cache.getHitCount(), is(1L));
+            assertThat(cache.getCachedSnapshotCount(), is(2));
+            assertThat(cache.getInFlightCount(), is(0));
+        } finally {
+            cache.shutdown();
+        }
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedSnapshots() throws InterruptedException {
+        AsyncChunkCache cache = new AsyncChunkCache(null, 1, 0);
+        try {
+            cache.setMaxCachedSnapshots(10);
+            for (int cx = 0; cx < 10; cx++) {
+                cache.fetchChunkSnapshotAsync(WORLD, cx, 0);
+                Thread.sleep(1);
+            }
+            cache.fetchChunkSnapshotAsync(WORLD, 0, 0);
+            Thread.sleep(1);
+            cache.fetchChunkSnapshotAsync(WORLD, 10, 0);
+            // trimming runs on the worker pool, down to 90% of the cap
+            long deadline = System.currentTimeMillis() + 5000;
+            while (cache.getCachedSnapshotCount() > 9 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertThat(cache.getCachedSnapshotCount(), is(9));
+            assertThat(cache.getEvictionCount(), is(2L));
+
+            long misses = cache.getMissCount();
+            cache.fetchChunkSnapshotAsync(WORLD, 0, 0);
+            cache.fetchChunkSnapshotAsync(WORLD, 10, 0);
+            assertThat(cache.getMissCount(), is(misses));
+            cache.fetchChunkSnapshotAsync(WORLD, 1, 0);
+            cache.fetchChunkSnapshotAsync(WORLD, 2, 0);
+            assertThat(cache.getMissCount(), is(misses + 2));
+        } finally {
+            cache.shutdown();
+        }
+    }
+
+    @Test
+    public void invalidationIsNotCountedAsEviction() {
+        AsyncChunkCache cache = new AsyncChunkCache(null, 1, 0);
+        try {
+            cache.fetchChunkSnapshotAsync(WORLD, 0, 0);
+            cache.fetchChunkSnapshotAsync(WORLD, 1, 0);
+            LongOpenHashSet changed = new LongOpenHashSet();
+            changed.add(1L << 32);
+            cache.invalidateChunks(WORLD_ID, changed);
+            assertThat(cache.getCachedSnapshotCount(), is(1));
+            assertThat(cache.getEvictionCount(), is(0L));
+        } finally {
+            cache.shutdown();
+        }
+    }
+
+    private static World world() {
+        ChunkSnapshot snapshot = stub(ChunkSnapshot.class, null, null);
+        Chunk chunk = stub(Chunk.class, "getChunkSnapshot", snapshot);
+        return (World) Proxy.newProxyInstance(World.class.getClassLoader(), new Class<?>[] { World.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getChunkAtAsync":
+                            return CompletableFuture.completedFuture(chunk);
+                        case "getUID":
+                            return WORLD_ID;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * @return A proxy that returns the given result from the given method, identity for equality and throws for
+     *         anything else
+     */
+    private static <T> T stub(Class<T> type, String method, Object result) {
+        InvocationHandler handler = (proxy, called, args) -> {
+            switch (called.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    if (called.getName().equals(method))
+                        return result;
+                    throw new UnsupportedOperationException(called.getName());
+            }
+        };
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler));
+    }
+
+    private static final UUID WORLD_ID = new UUID(0, 1);
+    private static final World WORLD = world();
+}
@@ -0,0 +1,54 @@
+package net.citizensnpcs.api.astar.pathfinder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.bukkit.Material;
+import org.bukkit.block.data.BlockData;
+import org.junit.Test;
+
+import net.citizensnpcs.api.util.BoundingBox;
+
+public class BlockSourceTest {
+    @Test
+    public void findsBoundsNotContainingZero() {
+        assertThat(bounded(64, 319).getMinHeight(), is(64));
+        assertThat(bounded(64, 319).getMaxHeight(), is(319));
+        assertThat(bounded(-300, -10).getMinHeight(), is(-300));
+        assertThat(bounded(-300, -10).getMaxHeight(), is(-10));
+        assertThat(bounded(1000, 1001).getMinHeight(), is(1000));
+        assertThat(bounded(1000, 1001).getMaxHeight(), is(1001));
+    }
+
+    @Test
+    public void findsBoundsAroundZero() {
+        assertThat(bounded(-64, 319).getMinHeight(), is(-64));
+        assertThat(bounded(-64, 319).getMaxHeight(), is(319));
+        assertThat(bounded(0, 255).getMinHeight(), is(0));
+        assertThat(bounded(0, 255).getMaxHeight(), is(255));
+    }
+
+    private static BlockSource bounded(int minY, int maxY) {
+        return new BlockSource() {
+            @Override
+            public BlockData getBlockDataAt(int x, int y, int z) {
+                return null;
+            }
+
+            @Override
+            public BoundingBox getCollisionBox(int x, int y, int z) {
+                return null;
+            }
+
+            @Override
+            public Material getMaterialAt(int x, int y, int z) {
+                return null;
+            }
+
+            @Override
+            public boolean isYWithinBounds(int y) {
+                return y >= minY && y <= maxY;
+            }
+        };
+    }
+}
@@ -0,0 +1,88 @@
+package net.citizensnpcs.api.astar.pathfinder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bukkit.Location;
+import org.bukkit.util.Vector;
+import org.junit.Test;
+
+import net.citizensnpcs.api.astar.PathfinderFixtures.BlockedColumns;
+
+public class FlowFieldTest {
+    @Test
+    public void followsFieldAroundWall() {
+        TestFlowField field = new TestFlowField();
+        // wall along x = 5 with a single gap at z = 8
+        for (int z = -16; z <= 16; z++) {
+            if (z != 8) {
+                field.blocked.block(5, z);
+            }
+        }
+        field.update(loc(10, 0));
+
+        List<Vector> path = vectors(field.getPath(loc(0, 0), 100));
+        assertThat(path.isEmpty(), is(false));
+        assertThat(path.get(path.size() - 1).getBlockX(), is(10));
+        assertThat(path.get(path.size() - 1).getBlockZ(), is(0));
+        boolean throughGap = false;
+        for (Vector vector : path) {
+            assertTrue("path should not cross the wall",
+                    !field.blocked.isBlocked(vector.getBlockX(), vector.getBlockZ()));
+            throughGap |= vector.getBlockX() == 5 && vector.getBlockZ() == 8;
+        }
+        assertTrue(throughGap);
+    }
+
+    @Test
+    public void repairMatchesRebuild() {
+        TestFlowField repaired = new TestFlowField();
+        TestFlowField rebuilt = new TestFlowField();
+        for (int z = -10; z <= 4; z++) {
+            repaired.blocked.block(3, z);
+            rebuilt.blocked.block(3, z);
+        }
+        repaired.update(loc(0, 0));
+        repaired.update(loc(1, 2));
+        repaired.update(loc(2, 3));
+        rebuilt.update(loc(2, 3));
+
+        for (int x = -8; x <= 8; x++) {
+            for (int z = -8; z <= 8; z++) {
+                if (repaired.blocked.isBlocked(x, z))
+                    continue;
+                // the rebuilt field is centred elsewhere, only compare blocks both fields cover
+                assertThat(Math.abs(repaired.getCost(loc(x, z)) - rebuilt.getCost(loc(x, z))) < 0.001f, is(true));
+            }
+        }
+    }
+
+    private static Location loc(int x, int z) {
+        return new Location(null, x, 64, z);
+    }
+
+    private static List<Vector> vectors(Path path) {
+        List<Vector> out = new ArrayList<>();
+        for (Vector vector : path.getPath()) {
+            out.add(vector);
+        }
+        return out;
+    }
+
+    private static class TestFlowField extends FlowField {
+        private final BlockedColumns blocked = new BlockedColumns();
+
+        private TestFlowField() {
+            super(location -> null, 16, 2);
+        }
+
+        @Override
+        public boolean walkable(int x, int y, int z) {
+            return y == 64 && !blocked.isBlocked(x, z);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package net.citizensnpcs.api.astar.pathfinder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.util.BlockVector;
+import org.bukkit.util.Vector;
+import org.junit.Test;
+
+import net.citizensnpcs.api.ai.NavigatorParameters;
+import net.citizensnpcs.api.astar.AStarMachine;
+import net.citizensnpcs.api.astar.HeapAStarStorage;
+import net.citizensnpcs.api.astar.PathfinderFixtures.CountingStorage;
+import net.citizensnpcs.api.astar.PathfinderFixtures.FlatExaminer;
+import net.citizensnpcs.api.astar.PathfinderFixtures.TestBlockSource;
+import net.citizensnpcs.api.util.BoundingBox;
+
+public class JumpPointExaminerTest {
+    @Test
+    public void examinersSeeSkippedPositions() {
+        CountingStorage plain = new CountingStorage(HeapAStarStorage.FACTORY.get());
+        assertNotNull(searchCorridor(plain, new RecordingExaminer(), false));
+        RecordingExaminer recorder = new RecordingExaminer();
+        CountingStorage jumping = new CountingStorage(HeapAStarStorage.FACTORY.get());
+        Path path = searchCorridor(jumping, recorder, true);
+
+        assertNotNull(path);
+        assertTrue("jump point expansions " + jumping.getPolls() + " vs plain expansions " + plain.getPolls(),
+                jumping.getPolls() < plain.getPolls());
+        Vector previous = null;
+        for (Vector vector : path.getPath()) {
+            Vector from = previous == null ? vector : previous;
+            double dx = vector.getX() - from.getX(), dz = vector.getZ() - from.getZ();
+            int steps = Math.max(1, (int) Math.ceil(Math.max(Math.abs(dx), Math.abs(dz))));
+            for (int i = 0; i <= steps; i++) {
+                int x = (int) Math.floor(from.getX() + dx * i / steps);
+                int z = (int) Math.floor(from.getZ() + dz * i / steps);
+                assertTrue("examiners never saw " + x + "," + z, recorder.seen.contains(new BlockVector(x, 64, z)));
+            }
+            previous = vector;
+        }
+    }
+
+    @Test
+    public void expandsFewerNodesOnOpenGround() {
+        CountingStorage plain = new CountingStorage(HeapAStarStorage.FACTORY.get());
+        Path plainPath = search(plain, false);
+        CountingStorage jumping = new CountingStorage(HeapAStarStorage.FACTORY.get());
+        Path jumpingPath = search(jumping, true);
+
+        assertNotNull(plainPath);
+        assertNotNull(jumpingPath);
+        Vector last = null;
+        for (Vector vector : jumpingPath.getPath()) {
+            assertTrue("path should avoid the wall", !isWall(vector.getBlockX(), vector.getBlockZ()));
+            last = vector;
+        }
+        assertThat(last.getBlockX(), is(46));
+        assertThat(last.getBlockZ(), is(10));
+        assertTrue("jump point expansions " + jumping.getPolls() + " vs plain expansions " + plain.getPolls(),
+                jumping.getPolls() < plain.getPolls());
+    }
+
+    private static boolean isBlocked(int x, int z) {
+        return x < 0 || x > 48 || z < 0 || z > 48 || isWall(x, z);
+    }
+
+    private static boolean isWall(int x, int z) {
+        return x == 24 && z < 40;
+    }
+
+    private static Path search(CountingStorage storage, boolean jumpPoints) {
+        NavigatorParameters params = new NavigatorParameters();
+        params.examiner(new FlatExaminer(JumpPointExaminerTest::isBlocked));
+        if (jumpPoints) {
+            params.examiner(new JumpPointExaminer() {
+                @Override
+                protected boolean isPlain(BlockSource source, int x, int y, int z) {
+                    return y == 64 && !isBlocked(x, z);
+                }
+            });
+        }
+        VectorGoal goal = new VectorGoal(new Location(null, 46, 64, 10), 0);
+        VectorNode start = new VectorNode(goal, new Location(null, 2, 64, 2), new TestBlockSource(), params);
+        AStarMachine<VectorNode, Path> machine = AStarMachine.createWithStorage(() -> storage);
+        return machine.runFully(goal, start, 100000);
+    }
+
+    /**
+     * Searches along a corridor three blocks wide between rows of fences, with a strip of soul sand and a block of ice
+     * in the floor, using the vanilla examiner and the unmodified {@link JumpPointExaminer#isPlain}.
+     */
+    private static Path searchCorridor(CountingStorage storage, RecordingExaminer recorder, boolean jumpPoints) {
+        NavigatorParameters params = new NavigatorParameters();
+        params.examiner(new MinecraftBlockExaminer());
+        params.examiner(recorder);
+        if (jumpPoints) {
+            params.examiner(new JumpPointExaminer());
+        }
+        VectorGoal goal = new VectorGoal(new Location(null, 46, 64, 2), 0);
+        VectorNode start = new VectorNode(goal, new Location(null, 2, 64, 2), new CorridorBlockSource(), params);
+        AStarMachine<VectorNode, Path> machine = AStarMachine.createWithStorage(() -> storage);
+        return machine.runFully(goal, start, 100000);
+    }
+
+    private static class CorridorBlockSource extends BlockSource {
+        @Override
+        public BlockData getBlockDataAt(int x, int y, int z) {
+            return null;
+        }
+
+        @Override
+        public BoundingBox getCollisionBox(int x, int y, int z) {
+            return null;
+        }
+
+        @Override
+        public Material getMaterialAt(int x, int y, int z) {
+            if (x < 0 || x > 48)
+                return Material.AIR;
+            if (y == 64 && (z == 0 || z == 4))
+                return Material.SPRUCE_FENCE;
+            if (y != 63 || z < 1 || z > 3)
+                return Material.AIR;
+            if (x == 20 || x == 21)
+                return Material.SOUL_SAND;
+            return x == 30 && z == 2 ? Material.ICE : Material.STONE;
+        }
+
+        @Override
+        public boolean isYWithinBounds(int y) {
+            return y >= 0 && y < 256;
+        }
+    }
+
+    private static class RecordingExaminer implements BlockExaminer {
+        private final Set<BlockVector> seen = new HashSet<>();
+
+        @Override
+        public float getCost(BlockSource source, PathPoint point) {
+            seen.add(point.getVector().toBlockVector());
+            return 0;
+        }
+
+        @Override
+        public PassableState isPassable(BlockSource source, PathPoint point) {
+            seen.add(point.getVector().toBlockVector());
+            return PassableState.IGNORE;
+        }
+    }
+}
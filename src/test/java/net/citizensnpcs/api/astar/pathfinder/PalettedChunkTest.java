@@ -0,0 +1,117 @@
+package net.citizensnpcs.api.astar.pathfinder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.data.BlockData;
+import org.junit.Test;
+
+public class PalettedChunkTest {
+    @Test
+    public void returnsSnapshotBlocks() {
+        PalettedChunk chunk = PalettedChunk.convert(world(0, 32), snapshot(0));
+        for (int y = 0; y < 32; y++) {
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    BlockData expected = blockAt(0, x, y, z);
+                    assertSame(expected, chunk.getBlockData(x, y, z));
+                    assertThat(chunk.getType(x, y, z), is(expected.getMaterial()));
+                    assertThat(chunk.getTraits(x, y, z), is(MinecraftBlockExaminer.getTraits(expected.getMaterial())));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void returnsAirOutsideWorld() {
+        PalettedChunk chunk = PalettedChunk.convert(world(-16, 16), snapshot(-16));
+        assertSame(STONE, chunk.getBlockData(0, -16, 0));
+        assertNull(chunk.getBlockData(0, -17, 0));
+        assertNull(chunk.getBlockData(0, 16, 0));
+        assertThat(chunk.getType(0, 16, 0), is(Material.AIR));
+        assertThat(chunk.getTraits(0, -17, 0), is(MinecraftBlockExaminer.getTraits(Material.AIR)));
+    }
+
+    @Test
+    public void uniformSectionsAreSmaller() {
+        PalettedChunk mixed = PalettedChunk.convert(world(16, 32), snapshot(0));
+        PalettedChunk uniform = PalettedChunk.convert(world(0, 16), snapshot(0));
+        assertTrue(uniform.sizeBytes() < mixed.sizeBytes());
+        // three states need two bits per block
+        assertTrue(mixed.sizeBytes() >= 16 * 16 * 16 * 2 / 8);
+    }
+
+    private static BlockData blockAt(int minY, int x, int y, int z) {
+        if (y - minY < 16)
+            return STONE;
+        switch ((x + z) % 3) {
+            case 0:
+                return DIRT;
+            case 1:
+                return GRASS;
+            default:
+                return STONE;
+        }
+    }
+
+    private static BlockData blockData(Material material) {
+        return (BlockData) Proxy.newProxyInstance(BlockData.class.getClassLoader(), new Class<?>[] { BlockData.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getMaterial":
+                            return material;
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return material.ordinal();
+                        case "toString":
+                            return material.name();
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * A chunk with a stone section at the bottom of the world and a mix of three states in every section above it.
+     */
+    private static ChunkSnapshot snapshot(int minY) {
+        return (ChunkSnapshot) Proxy.newProxyInstance(ChunkSnapshot.class.getClassLoader(),
+                new Class<?>[] { ChunkSnapshot.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getBlockData":
+                            return blockAt(minY, (int) args[0], (int) args[1], (int) args[2]);
+                        case "isSectionEmpty":
+                            return false;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static World world(int minY, int maxY) {
+        return (World) Proxy.newProxyInstance(World.class.getClassLoader(), new Class<?>[] { World.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getMaxHeight":
+                            return maxY;
+                        case "getMinHeight":
+                            return minY;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static final BlockData DIRT = blockData(Material.DIRT);
+    private static final BlockData GRASS = blockData(Material.GRASS_BLOCK);
+    private static final BlockData STONE = blockData(Material.STONE);
+}
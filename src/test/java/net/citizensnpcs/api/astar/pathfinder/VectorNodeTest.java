@@ -0,0 +1,204 @@
+package net.citizensnpcs.api.astar.pathfinder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.Location;
+import org.bukkit.block.Block;
+import org.bukkit.util.BlockVector;
+import org.junit.Test;
+
+import net.citizensnpcs.api.ai.NavigatorParameters;
+import net.citizensnpcs.api.astar.AStarNode;
+import net.citizensnpcs.api.astar.PathfinderFixtures.TestBlockSource;
+import net.citizensnpcs.api.astar.pathfinder.PathPoint.PathCallback;
+import net.citizensnpcs.api.npc.NPC;
+
+public class VectorNodeTest {
+    @Test
+    public void cachesCostPerPosition() {
+        CountingExaminer cached = new CountingExaminer(true, false);
+        VectorNode root = root(cached, false);
+        root.createChild(3, 64, 3).heuristicDistance(root.getGoal());
+        root.createChild(3, 64, 3).heuristicDistance(root.getGoal());
+        assertThat(cached.costChecks, is(1));
+
+        CountingExaminer uncached = new CountingExaminer(false, false);
+        root = root(uncached, false);
+        root.createChild(3, 64, 3).heuristicDistance(root.getGoal());
+        root.createChild(3, 64, 3).heuristicDistance(root.getGoal());
+        assertThat(uncached.costChecks, is(2));
+    }
+
+    @Test
+    public void cachesPassableVerdictsWithinSearch() {
+        CountingExaminer cached = new CountingExaminer(true, false);
+        VectorNode root = root(cached, false);
+        root.getNeighbours();
+        int first = cached.getStandChecks();
+        assertTrue(first > 0);
+        root.getNeighbours();
+        assertThat(cached.getStandChecks(), is(first));
+
+        // corners probed for diagonal moves are examined again without the cache
+        CountingExaminer uncached = new CountingExaminer(false, false);
+        root = root(uncached, false);
+        root.getNeighbours();
+        int uncachedFirst = uncached.getStandChecks();
+        assertTrue(uncachedFirst > first);
+        root.getNeighbours();
+        assertThat(uncached.getStandChecks(), is(uncachedFirst * 2));
+    }
+
+    @Test
+    public void cachesVerdictsPerApproach() {
+        CountingExaminer examiner = new CountingExaminer(true, false);
+        VectorNode root = root(examiner, false);
+        // stepping up onto the ledge from the side is rejected, walking onto it from the same height isn't
+        assertTrue(find(root.getNeighbours(), LEDGE) == null);
+        VectorNode beside = root.createChild(2, 65, 0);
+        assertNotNull(find(beside.getNeighbours(), LEDGE));
+        assertTrue(find(root.getNeighbours(), LEDGE) == null);
+    }
+
+    @Test
+    public void nestedPooledSearchesUseSeparateArenas() {
+        VectorNode outer = root(new CountingExaminer(true, false), true);
+        VectorNode inner = root(new CountingExaminer(true, false), true);
+        VectorNode released = outer.createChild(1, 64, 0);
+        released.discard();
+        assertNotSame(released, inner.createChild(1, 64, 0));
+        assertSame(released, outer.createChild(2, 64, 0));
+        inner.onSearchFinished();
+        outer.onSearchFinished();
+    }
+
+    @Test
+    public void reexaminesPositionsWithCallbacks() {
+        CountingExaminer examiner = new CountingExaminer(true, true);
+        VectorNode root = root(examiner, false);
+        root.getNeighbours();
+        int first = examiner.standChecks.get(DOOR);
+        assertTrue(first > 0);
+        VectorNode door = find(root.getNeighbours(), DOOR);
+        assertThat(examiner.standChecks.get(DOOR), is(first * 2));
+        assertNotNull(door);
+        assertThat(door.callbacks.size(), is(1));
+    }
+
+    @Test
+    public void releasesPooledNodesWhenSearchFinishes() {
+        VectorNode root = root(new CountingExaminer(true, false), true);
+        VectorNode first = root.createChild(1, 64, 0);
+        root.onSearchFinished();
+        assertTrue(first.getParentPoint() == null);
+
+        VectorNode next = root(new CountingExaminer(true, false), true);
+        VectorNode reused = next.createChild(3, 64, 3);
+        assertSame(first, reused);
+        assertSame(next, reused.getParentPoint());
+        assertThat(reused.getVector().getBlockX(), is(3));
+        next.onSearchFinished();
+    }
+
+    @Test
+    public void reusesDiscardedPooledNodes() {
+        VectorNode root = root(new CountingExaminer(true, false), true);
+        VectorNode discarded = root.createChild(1, 64, 0);
+        discarded.discard();
+        VectorNode reused = root.createChild(2, 64, 1);
+        assertSame(discarded, reused);
+        assertThat(reused.getVector().getBlockX(), is(2));
+        assertThat(reused.getVector().getBlockZ(), is(1));
+        assertTrue(reused.callbacks == null);
+
+        List<AStarNode> neighbours = (List<AStarNode>) root.getNeighbours();
+        assertSame(neighbours, root.getNeighbours());
+        root.onSearchFinished();
+    }
+
+    private static VectorNode find(Iterable<AStarNode> nodes, BlockVector position) {
+        for (AStarNode node : nodes) {
+            VectorNode vector = (VectorNode) node;
+            if (vector.getVector().toBlockVector().equals(position))
+                return vector;
+        }
+        return null;
+    }
+
+    private static VectorNode root(CountingExaminer examiner, boolean pooled) {
+        NavigatorParameters params = new NavigatorParameters();
+        params.examiner(examiner);
+        VectorGoal goal = new VectorGoal(new Location(null, 10, 64, 10), 0);
+        return new VectorNode(goal, new Location(null, 0, 64, 0), new TestBlockSource(), params, pooled);
+    }
+
+    /**
+     * Flat ground at y = 64, with an optional door at {@link #DOOR} and a ledge at {@link #LEDGE} that can't be
+     * stepped up onto from the side.
+     */
+    private static class CountingExaminer implements BlockExaminer {
+        private final boolean cacheable;
+        private int costChecks;
+        private final boolean door;
+        private final Map<BlockVector, Integer> standChecks = new HashMap<>();
+
+        private CountingExaminer(boolean cacheable, boolean door) {
+            this.cacheable = cacheable;
+            this.door = door;
+        }
+
+        @Override
+        public StandableState canStandAt(BlockSource source, PathPoint point) {
+            BlockVector pos = point.getVector().toBlockVector();
+            standChecks.merge(pos, 1, Integer::sum);
+            if (door && pos.equals(DOOR)) {
+                point.addCallback(CALLBACK);
+            }
+            if (pos.equals(LEDGE))
+                return point.getParentPoint().getVector().getBlockY() == 65 ? StandableState.STANDABLE
+                        : StandableState.NOT_STANDABLE;
+            return pos.getBlockY() == 64 ? StandableState.STANDABLE : StandableState.NOT_STANDABLE;
+        }
+
+        @Override
+        public float getCost(BlockSource source, PathPoint point) {
+            costChecks++;
+            return 0;
+        }
+
+        private int getStandChecks() {
+            int total = 0;
+            for (int count : standChecks.values()) {
+                total += count;
+            }
+            return total;
+        }
+
+        @Override
+        public boolean isCacheable() {
+            return cacheable;
+        }
+
+        @Override
+        public PassableState isPassable(BlockSource source, PathPoint point) {
+            return PassableState.PASSABLE;
+        }
+    }
+
+    private static final PathCallback CALLBACK = new PathCallback() {
+        @Override
+        public void run(NPC npc, Block point, List<Block> path, int index) {
+        }
+    };
+    private static final BlockVector DOOR = new BlockVector(1, 64, 0);
+    private static final BlockVector LEDGE = new BlockVector(1, 65, 0);
+}
@@ -1,23 +1,33 @@
 package net.citizensnpcs.api.hpastar;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Queue;
+import java.util.Random;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
 
 import org.bukkit.Location;
 import org.bukkit.block.data.BlockData;
 import org.bukkit.util.Vector;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import net.citizensnpcs.api.astar.Plan;
 import net.citizensnpcs.api.astar.pathfinder.BlockSource;
@@ -25,6 +35,9 @@ import net.citizensnpcs.api.astar.pathfinder.Path;
 import net.citizensnpcs.api.util.BoundingBox;
 
 public class HPAGraphTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void cachesWalkabilityChecksWithinCluster() {
         TestBlockSource source = new TestBlockSource(true);
@@ -86,6 +99,49 @@ public class HPAGraphTest {
         assertTrue(after.isEmpty());
     }
 
+    @Test
+    public void reusesConcretePathsBetweenEntrances() {
+        TestBlockSource source = new TestBlockSource(false);
+        source.fillWalkableRect(0, 63, 5, 5);
+        CountingHPAGraph graph = new CountingHPAGraph(source, 0, 64, 0);
+        graph.addClusters(0, 0);
+
+        int beforeFirst = graph.walkableCalls;
+        List<Vector> first = vectors(graph.findPath(loc(1, 64, 5), loc(60, 64, 5)));
+        int firstCalls = graph.walkableCalls - beforeFirst;
+
+        int beforeSecond = graph.walkableCalls;
+        List<Vector> second = vectors(graph.findPath(loc(1, 64, 5), loc(60, 64, 5)));
+        int secondCalls = graph.walkableCalls - beforeSecond;
+
+        assertThat(second, is(first));
+        assertTrue("refinement between entrances should be memoised", secondCalls < firstCalls);
+    }
+
+    @Test
+    public void repairsOnlyDirtyClusters() {
+        TestBlockSource source = new TestBlockSource(false);
+        source.fillWalkableRect(0, 63, 5, 5);
+        CountingHPAGraph graph = new CountingHPAGraph(source, 0, 64, 0);
+        graph.addClusters(0, 0);
+        assertThat(vectors(graph.findPath(loc(1, 64, 5), loc(60, 64, 5))).isEmpty(), is(false));
+
+        source.setBlockedAtWalkLevel(40, 5, true);
+        int walkableCallsBeforeRepair = graph.walkableCalls;
+        graph.markDirtyBlock(40, 64, 5);
+        graph.applyPendingPatches();
+        assertTrue("repair should only rescan clusters around the block",
+                graph.walkableCalls - walkableCallsBeforeRepair < 16 * 8 * 16 * 8);
+        assertTrue(vectors(graph.findPath(loc(1, 64, 5), loc(60, 64, 5))).isEmpty());
+
+        source.setBlockedAtWalkLevel(40, 5, false);
+        graph.markDirtyBlock(40, 64, 5);
+        graph.applyPendingPatches();
+        List<Vector> path = vectors(graph.findPath(loc(1, 64, 5), loc(60, 64, 5)));
+        assertThat(path.isEmpty(), is(false));
+        assertVector(path.get(path.size() - 1), 60, 64, 5);
+    }
+
     @Test
     public void keepsPathOnRequestedWalkLevel() {
         TestBlockSource source = new TestBlockSource(false, 67);
@@ -102,6 +158,39 @@ public class HPAGraphTest {
         }
     }
 
+    @Test
+    public void findsManyPathsToSharedGoal() {
+        TestBlockSource source = new TestBlockSource(false);
+        source.fillWalkableRect(0, 63, 5, 5);
+        source.fillWalkableRect(30, 30, 0, 40);
+        TestHPAGraph graph = new TestHPAGraph(source, 0, 64, 0);
+        graph.addClusters(0, 0);
+
+        List<Location> starts = Arrays.asList(loc(1, 64, 5), loc(60, 64, 5), loc(30, 64, 40), loc(2, 64, 30));
+        List<Plan> plans = graph.findPaths(starts, loc(30, 64, 20));
+        assertThat(plans.size(), is(4));
+        for (int i = 0; i < 3; i++) {
+            List<Vector> path = vectors(plans.get(i));
+            assertThat(path.isEmpty(), is(false));
+            assertVector(path.get(0), starts.get(i).getBlockX(), 64, starts.get(i).getBlockZ());
+            assertVector(path.get(path.size() - 1), 30, 64, 20);
+        }
+        assertTrue("unreachable start should get an empty path", vectors(plans.get(3)).isEmpty());
+    }
+
+    @Test
+    public void findsPathBelowZero() {
+        TestBlockSource source = new TestBlockSource(false, -30, -64);
+        source.fillWalkableRect(0, 31, 5, 5);
+        HPAGraph graph = new TestHPAGraph(source, 0, -30, 0);
+        graph.addClusters(0, 0);
+
+        List<Vector> path = vectors(graph.findPath(loc(1, -30, 5), loc(20, -30, 5)));
+        assertThat(path.isEmpty(), is(false));
+        assertVector(path.get(0), 1, -30, 5);
+        assertVector(path.get(path.size() - 1), 20, -30, 5);
+    }
+
     @Test
     public void navigatesStairsWithObstacleDetour() {
         TestBlockSource source = new TestBlockSource(false);
@@ -133,6 +222,146 @@ public class HPAGraphTest {
         }
     }
 
+    @Test
+    public void patchesLevelGraphAfterRepairs() {
+        TestBlockSource source = new TestBlockSource(false);
+        for (int line = 4; line < 192; line += 16) {
+            source.fillWalkableRect(0, 191, line, line);
+            source.fillWalkableRect(line, line, 0, 127);
+        }
+        TestHPAGraph graph = new TestHPAGraph(source, 0, 64, 0);
+        for (int x = 0; x < 128; x += 64) {
+            for (int z = 0; z < 128; z += 64) {
+                graph.addClusters(x, z);
+            }
+        }
+        HPALevelGraph snapshot = graph.getLevelGraph(0);
+        Random random = new Random(1);
+        for (int i = 0; i < 40; i++) {
+            if (i == 20) {
+                graph.addClusters(128, 0);
+            } else {
+                // cut or reopen a corridor, moving entrances and forcing detours
+                int line = 4 + random.nextInt(8) * 16, along = random.nextInt(128);
+                int x = random.nextBoolean() ? line : along, z = x == line ? along : line;
+                source.setBlockedAtWalkLevel(x, z, random.nextBoolean());
+                graph.markDirtyBlock(x, 64, z);
+                graph.applyPendingPatches();
+            }
+            HPALevelGraph patched = graph.getLevelGraph(0);
+            if (i == 0) {
+                assertSame("a small repair should patch the snapshot", snapshot, patched);
+            }
+            HPALevelGraph rebuilt = new HPALevelGraph(0, graph.clusters.get(0));
+            assertThat(patched.getNodeCount(), is(rebuilt.getNodeCount()));
+            List<HPAGraphNode> nodes = new ArrayList<>();
+            for (HPACluster cluster : graph.clusters.get(0)) {
+                nodes.addAll(cluster.getNodes());
+            }
+            for (int j = 0; j < 20; j++) {
+                HPAGraphNode from = nodes.get(random.nextInt(nodes.size()));
+                HPAGraphNode to = nodes.get(random.nextInt(nodes.size()));
+                assertEquals(rebuilt.search(from, to).cost, patched.search(from, to).cost, 0.001);
+            }
+        }
+    }
+
+    @Test
+    public void parallelBuildMatchesSerialBuild() {
+        TestBlockSource source = new TestBlockSource(false);
+        source.fillWalkableRect(0, 63, 0, 63);
+        source.fillBlockedRect(20, 20, 0, 50);
+        TestHPAGraph serial = new TestHPAGraph(source, 0, 64, 0);
+        serial.addClusters(0, 0);
+
+        TestHPAGraph parallel = new TestHPAGraph(source, 0, 64, 0);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            parallel.setBuildPool(pool);
+            parallel.addClusters(0, 0);
+        } finally {
+            pool.shutdown();
+        }
+        for (int depth = 0; depth < serial.clusters.size(); depth++) {
+            assertThat(parallel.clusters.get(depth).size(), is(serial.clusters.get(depth).size()));
+        }
+        List<Vector> expected = vectors(serial.findPath(loc(2, 64, 2), loc(40, 64, 10)));
+        List<Vector> actual = vectors(parallel.findPath(loc(2, 64, 2), loc(40, 64, 10)));
+        assertThat(actual.isEmpty(), is(false));
+        assertThat(actual.size(), is(expected.size()));
+        assertVector(actual.get(actual.size() - 1), 40, 64, 10);
+    }
+
+    @Test
+    public void restoresRegionFromStoreUntilBlocksChange() throws IOException {
+        TestBlockSource source = new TestBlockSource(false);
+        source.fillWalkableRect(0, 31, 5, 5);
+        CountingRegionStore store = new CountingRegionStore(folder.newFolder());
+        TestHPAGraph built = new TestHPAGraph(source, 0, 64, 0);
+        built.setRegionStore(store);
+        built.addClusters(0, 0);
+        store.flush();
+        assertThat(store.restores, is(0));
+
+        TestHPAGraph restored = new TestHPAGraph(source, 0, 64, 0);
+        restored.setRegionStore(store);
+        restored.addClusters(0, 0);
+        assertThat(store.restores, is(1));
+        for (int depth = 0; depth < built.clusters.size(); depth++) {
+            assertThat(restored.clusters.get(depth).size(), is(built.clusters.get(depth).size()));
+        }
+        List<Vector> expected = vectors(built.findPath(loc(1, 64, 5), loc(20, 64, 5)));
+        List<Vector> actual = vectors(restored.findPath(loc(1, 64, 5), loc(20, 64, 5)));
+        assertThat(actual.isEmpty(), is(false));
+        assertThat(actual.size(), is(expected.size()));
+
+        // a change no graph was told about, e.g. one made while the server was offline, is never restored
+        source.setBlockedAtWalkLevel(10, 5, true);
+        TestHPAGraph rebuilt = new TestHPAGraph(source, 0, 64, 0);
+        rebuilt.setRegionStore(store);
+        rebuilt.addClusters(0, 0);
+        assertThat(store.restores, is(1));
+        assertTrue(vectors(rebuilt.findPath(loc(1, 64, 5), loc(20, 64, 5))).isEmpty());
+        store.flush();
+
+        // and once rebuilt the region is restored again
+        TestHPAGraph reloaded = new TestHPAGraph(source, 0, 64, 0);
+        reloaded.setRegionStore(store);
+        reloaded.addClusters(0, 0);
+        assertThat(store.restores, is(2));
+        assertTrue(vectors(reloaded.findPath(loc(1, 64, 5), loc(20, 64, 5))).isEmpty());
+
+        // as is a region saved after repairing a reported change
+        source.setBlockedAtWalkLevel(10, 5, false);
+        reloaded.markDirtyBlock(10, 64, 5);
+        reloaded.applyPendingPatches();
+        store.flush();
+        TestHPAGraph repaired = new TestHPAGraph(source, 0, 64, 0);
+        repaired.setRegionStore(store);
+        repaired.addClusters(0, 0);
+        assertThat(store.restores, is(3));
+        assertThat(vectors(repaired.findPath(loc(1, 64, 5), loc(20, 64, 5))).size(), is(expected.size()));
+    }
+
+    @Test
+    public void storesRegionsPerGraphOrigin() throws IOException {
+        TestBlockSource source = new TestBlockSource(false);
+        source.fillWalkableRect(0, 31, 5, 5);
+        CountingRegionStore store = new CountingRegionStore(folder.newFolder());
+        TestHPAGraph built = new TestHPAGraph(source, 0, 64, 0);
+        built.setRegionStore(store);
+        built.addClusters(0, 0);
+        store.flush();
+
+        TestHPAGraph shifted = new TestHPAGraph(source, 8, 64, 8);
+        shifted.setRegionStore(store);
+        shifted.addClusters(8, 8);
+        assertThat(store.restores, is(0));
+        TestHPAGraph fresh = new TestHPAGraph(source, 8, 64, 8);
+        fresh.addClusters(8, 8);
+        assertThat(shifted.clusters.get(0).size(), is(fresh.clusters.get(0).size()));
+    }
+
     @Test
     public void returnsInfiniteCostForDisconnectedNodes() {
         TestBlockSource source = new TestBlockSource(true);
@@ -368,9 +597,27 @@ public class HPAGraphTest {
         }
     }
 
+    private static class CountingRegionStore extends HPARegionStore {
+        private int restores;
+
+        private CountingRegionStore(File directory) {
+            super(directory, UUID.randomUUID());
+        }
+
+        @Override
+        List<HPACluster> load(String region, long layout, long[] fingerprints, List<HPACluster> candidates) {
+            List<HPACluster> restored = super.load(region, layout, fingerprints, candidates);
+            if (restored != null) {
+                restores++;
+            }
+            return restored;
+        }
+    }
+
     private static class TestBlockSource extends BlockSource {
         private final Map<BlockCoord, Boolean> blockedOverrides = new HashMap<>();
         private final boolean defaultWalkableAtWalkLevel;
+        private final int minY;
         private final Map<ColumnCoord, Integer> walkLevelOverrides = new HashMap<>();
         private final int walkLevelY;
 
@@ -379,8 +626,13 @@ public class HPAGraphTest {
         }
 
         private TestBlockSource(boolean defaultWalkableAtWalkLevel, int walkLevelY) {
+            this(defaultWalkableAtWalkLevel, walkLevelY, 0);
+        }
+
+        private TestBlockSource(boolean defaultWalkableAtWalkLevel, int walkLevelY, int minY) {
             this.defaultWalkableAtWalkLevel = defaultWalkableAtWalkLevel;
             this.walkLevelY = walkLevelY;
+            this.minY = minY;
         }
 
         private void fillBlockedRect(int minX, int maxX, int minZ, int maxZ) {
@@ -434,7 +686,7 @@ public class HPAGraphTest {
 
         @Override
         public boolean isYWithinBounds(int y) {
-            return y >= 0 && y < 256;
+            return y >= minY && y < 256;
         }
 
         private int resolveWalkLevel(int x, int z) {
@@ -0,0 +1,95 @@
+package net.citizensnpcs.api.util;
+
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Compares the {@link SpatialIndex} implementations on the workload of {@link net.citizensnpcs.api.LocationLookup}:
+ * building the index, moving a fraction of the entries each cycle and running tracking-range queries around entries,
+ * at increasing NPC densities. Run with <code>java ... SpatialIndexBenchmark</code>.
+ */
+public class SpatialIndexBenchmark {
+    private static long build(SpatialIndex.Factory factory, double[][] keys, Object[] values) {
+        long start = System.nanoTime();
+        SpatialIndex<Object> index = factory.create();
+        for (int i = 0; i < keys.length; i++) {
+            index.insert(keys[i].clone(), values[i]);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static double[][] generate(Random random, int count, double size) {
+        double[][] keys = new double[count][];
+        for (int i = 0; i < count; i++) {
+            keys[i] = new double[] { random.nextDouble() * size, 60 + random.nextDouble() * 10,
+                    random.nextDouble() * size };
+        }
+        return keys;
+    }
+
+    public static void main(String[] args) {
+        String[] names = { "phtree", "grid" };
+        SpatialIndex.Factory[] factories = { PhTreeSpatialIndex.FACTORY, GridSpatialIndex.FACTORY };
+        System.out.printf("%-8s %8s %6s %12s %12s %12s%n", "index", "npcs", "area", "build ms", "move ms", "query ms");
+        for (int count : new int[] { 1000, 10000, 50000 }) {
+            for (double size : new double[] { 256, 1024, 4096 }) {
+                Random random = new Random(count ^ (long) size);
+                double[][] keys = generate(random, count, size);
+                Object[] values = new Object[count];
+                for (int i = 0; i < count; i++) {
+                    values[i] = new Object();
+                }
+                for (int f = 0; f < factories.length; f++) {
+                    long buildNanos = 0, moveNanos = 0, queryNanos = 0;
+                    for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+                        long built = build(factories[f], keys, values);
+                        SpatialIndex<Object> index = factories[f].create();
+                        double[][] current = new double[count][];
+                        for (int i = 0; i < count; i++) {
+                            current[i] = keys[i].clone();
+                            index.insert(current[i], values[i]);
+                        }
+                        long moved = move(index, current, values, random);
+                        long queried = query(index, current);
+                        if (round >= WARMUP_ROUNDS) {
+                            buildNanos += built;
+                            moveNanos += moved;
+                            queryNanos += queried;
+                        }
+                    }
+                    System.out.printf("%-8s %8d %6d %12.3f %12.3f %12.3f%n", names[f], count, (int) size,
+                            buildNanos / 1e6 / ROUNDS, moveNanos / 1e6 / ROUNDS, queryNanos / 1e6 / ROUNDS);
+                }
+            }
+        }
+    }
+
+    private static long move(SpatialIndex<Object> index, double[][] current, Object[] values, Random random) {
+        long start = System.nanoTime();
+        for (int i = 0; i < current.length; i += 10) {
+            double[] to = { current[i][0] + random.nextDouble() * 2 - 1, current[i][1],
+                    current[i][2] + random.nextDouble() * 2 - 1 };
+            index.move(values[i], current[i], to);
+            current[i] = to;
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long query(SpatialIndex<Object> index, double[][] current) {
+        long start = System.nanoTime();
+        int found = 0;
+        for (int i = 0; i < current.length; i += 10) {
+            for (Iterator<Object> itr = index.rangeQuery(TRACKING_RANGE, current[i][0], current[i][1],
+                    current[i][2]); itr.hasNext(); itr.next()) {
+                found++;
+            }
+        }
+        sink += found;
+        return System.nanoTime() - start;
+    }
+
+    private static final int ROUNDS = 5;
+    static int sink;
+    private static final double TRACKING_RANGE = 64;
+    private static final int WARMUP_ROUNDS = 3;
+}
@@ -0,0 +1,80 @@
+package net.citizensnpcs.api.util;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class SpatialIndexTest {
+    private Set<Integer> collect(Iterator<Integer> itr) {
+        Set<Integer> result = new HashSet<>();
+        while (itr.hasNext()) {
+            result.add(itr.next());
+        }
+        return result;
+    }
+
+    @Test
+    public void gridMatchesPhTree() {
+        SpatialIndex<Integer> grid = GridSpatialIndex.FACTORY.create();
+        SpatialIndex<Integer> tree = PhTreeSpatialIndex.FACTORY.create();
+        Random random = new Random(1);
+        double[][] gridKeys = new double[500][], treeKeys = new double[500][];
+        for (int i = 0; i < gridKeys.length; i++) {
+            // coarse coordinates so that some values share a position
+            gridKeys[i] = new double[] { random.nextInt(100) - 50, 64, random.nextInt(100) - 50 };
+            treeKeys[i] = gridKeys[i].clone();
+            grid.insert(gridKeys[i], i);
+            tree.insert(treeKeys[i], i);
+        }
+        for (int i = 0; i < gridKeys.length; i += 3) {
+            double[] to = { gridKeys[i][0] + random.nextInt(40) - 20, 64, gridKeys[i][2] + random.nextInt(40) - 20 };
+            double[] treeTo = to.clone();
+            grid.move(i, gridKeys[i], to);
+            tree.move(i, treeKeys[i], treeTo);
+            gridKeys[i] = to;
+            treeKeys[i] = treeTo;
+        }
+        for (int i = 1; i < gridKeys.length; i += 7) {
+            grid.remove(i, gridKeys[i]);
+            tree.remove(i, treeKeys[i]);
+        }
+        for (int i = 0; i < 50; i++) {
+            // offset from the block grid so that no value lies exactly on the boundary of a query
+            double x = random.nextInt(120) - 59.5, z = random.nextInt(120) - 59.5, dist = random.nextInt(40);
+            assertThat(collect(grid.rangeQuery(dist, x, 64, z)), is(collect(tree.rangeQuery(dist, x, 64, z))));
+            double[] min = { x - dist, 0, z - dist }, max = { x + dist, 256, z + dist };
+            assertThat(collect(grid.query(min, max)), is(collect(tree.query(min, max))));
+        }
+    }
+
+    @Test
+    public void gridNearestMatchesPhTree() {
+        SpatialIndex<Integer> grid = GridSpatialIndex.FACTORY.create();
+        SpatialIndex<Integer> tree = PhTreeSpatialIndex.FACTORY.create();
+        Random random = new Random(2);
+        for (int i = 0; i < 500; i++) {
+            double[] key = { random.nextDouble() * 400 - 200, random.nextDouble() * 64,
+                    random.nextDouble() * 400 - 200 };
+            grid.insert(key, i);
+            tree.insert(key.clone(), i);
+        }
+        for (int i = 0; i < 50; i++) {
+            double x = random.nextDouble() * 500 - 250, z = random.nextDouble() * 500 - 250;
+            int k = 1 + random.nextInt(10);
+            double maxDist = i % 2 == 0 ? Double.MAX_VALUE : random.nextDouble() * 60;
+            List<Integer> expected = new ArrayList<>();
+            tree.nearest(k, maxDist, x, 32, z).forEachRemaining(expected::add);
+            List<Integer> actual = new ArrayList<>();
+            grid.nearest(k, maxDist, x, 32, z).forEachRemaining(actual::add);
+            assertThat(actual, is(expected));
+        }
+    }
+}